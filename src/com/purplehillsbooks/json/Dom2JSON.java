@@ -1,8 +1,13 @@
 package com.purplehillsbooks.json;
 
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Hashtable;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
@@ -185,6 +190,14 @@ import org.w3c.dom.NodeList;
  * for the small block marked bold would be ignored.  Another way of thinking
  * about this is that text for data can only exist as leaves at the end of
  * the tree.  Text that is not at a leaf will be ignored.</p>
+ *
+ * <h1>STREAMING</h1>
+ *
+ * <p>convertXMLToJSON reads the XML directly from a stream with StAX and makes
+ * the JSON in a single pass, without building a DOM.  For large XML files this
+ * needs only the memory for the resulting JSON, instead of the DOM and the JSON
+ * together.  The result is the same as parsing the file into a DOM (the way Mel
+ * does it, not namespace aware) and calling convertDomToJSON with the same hints.</p>
  */
 
 public class Dom2JSON {
@@ -207,6 +220,177 @@ public class Dom2JSON {
         return convertElementToJSON(rootEle, hints);
     }
 
+    /**
+     * Read XML from the stream, and you get a JSON object that represents
+     * the entire contents, without building a DOM in between.
+     * The stream is not closed.
+     */
+    public static JSONObject convertXMLToJSON(InputStream is) throws Exception {
+        return convertXMLToJSON(is, new Hashtable<String,Integer>());
+    }
+
+    /**
+     * Read XML from the stream, and you get a JSON object that represents
+     * the entire contents, without building a DOM in between.
+     * The stream is not closed.
+     */
+    public static JSONObject convertXMLToJSON(InputStream is, Hashtable<String,Integer> hints) throws Exception {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        XMLStreamReader reader = factory.createXMLStreamReader(is);
+        try {
+            return convertStreamToJSON(reader, hints);
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Converts the next element of the reader, and everything in it, to a
+     * stand alone JSON structure in the same way as convertElementToJSON.
+     * Anything before the element is skipped, and the reader is left at
+     * the end tag of the element.
+     */
+    public static JSONObject convertStreamToJSON(XMLStreamReader reader,
+            Hashtable<String,Integer> hints) throws Exception {
+        while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+            if (!reader.hasNext()) {
+                throw new JSONException("XML stream does not contain an element to convert");
+            }
+            reader.next();
+        }
+        JSONObject jo = new JSONObject();
+        String tagName = qualifiedName(reader.getPrefix(), reader.getLocalName());
+        jo.put(tagName, readElement(reader, hints));
+        return jo;
+    }
+
+    /**
+     * Reads the element the reader is on, up to and including its end tag.
+     * Returns a String for a simple element, otherwise a JSONObject.
+     * Without a hint, an element is simple if it has no attributes, but that
+     * it has no sub elements is only known at the end tag, so the text is
+     * kept until the first sub element shows up.
+     */
+    private static Object readElement(XMLStreamReader reader, Hashtable<String,Integer> hints) throws Exception {
+        Integer hintValue = hints.get(qualifiedName(reader.getPrefix(), reader.getLocalName()));
+        int nsCount = reader.getNamespaceCount();
+        int attCount = reader.getAttributeCount();
+        boolean isSimple = true;
+        boolean decided = false;
+        if (hintValue!=null) {
+            int val = hintValue.intValue();
+            isSimple = (val==0 || val==1);
+            decided = true;
+        }
+        else if (attCount+nsCount>0) {
+            isSimple = false;
+            decided = true;
+        }
+
+        //attributes are put last, after the sub elements, same as getElementObj
+        String[] attributes = null;
+        if (!isSimple || !decided) {
+            attributes = new String[(nsCount+attCount)*2];
+            int pos = 0;
+            for (int i=0; i<nsCount; i++) {
+                String prefix = reader.getNamespacePrefix(i);
+                attributes[pos++] = qualifiedName("xmlns", prefix);
+                attributes[pos++] = reader.getNamespaceURI(i);
+            }
+            for (int i=0; i<attCount; i++) {
+                attributes[pos++] = qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i));
+                attributes[pos++] = reader.getAttributeValue(i);
+            }
+        }
+
+        StringBuilder text = new StringBuilder();
+        Hashtable<String,ArrayList<String>> stringMap = null;
+        Hashtable<String,ArrayList<JSONObject>> objectMap = null;
+        while (true) {
+            int event = reader.next();
+            if (event==XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+            if (event==XMLStreamConstants.CHARACTERS || event==XMLStreamConstants.CDATA
+                    || event==XMLStreamConstants.SPACE) {
+                if (isSimple) {
+                    text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                }
+            }
+            else if (event==XMLStreamConstants.START_ELEMENT) {
+                if (isSimple && decided) {
+                    //hint says simple, the sub elements are ignored
+                    skipElement(reader);
+                    continue;
+                }
+                if (isSimple) {
+                    isSimple = false;
+                    decided = true;
+                    text = null;
+                }
+                if (stringMap==null) {
+                    stringMap = new Hashtable<String,ArrayList<String>>();
+                    objectMap = new Hashtable<String,ArrayList<JSONObject>>();
+                }
+                String tagName = qualifiedName(reader.getPrefix(), reader.getLocalName());
+                Object value = readElement(reader, hints);
+                if (value instanceof String) {
+                    ArrayList<String> stringList = stringMap.get(tagName);
+                    if (stringList==null) {
+                        stringList = new ArrayList<String>();
+                        stringMap.put(tagName, stringList);
+                    }
+                    stringList.add((String)value);
+                }
+                else {
+                    ArrayList<JSONObject> objList = objectMap.get(tagName);
+                    if (objList==null) {
+                        objList = new ArrayList<JSONObject>();
+                        objectMap.put(tagName, objList);
+                    }
+                    objList.add((JSONObject)value);
+                }
+            }
+        }
+        if (isSimple) {
+            return text.toString();
+        }
+        JSONObject jo = new JSONObject();
+        if (stringMap!=null) {
+            putGroupedMembers(jo, stringMap, objectMap, hints);
+        }
+        for (int i=0; i<attributes.length; i+=2) {
+            jo.put(attributes[i], attributes[i+1]);
+        }
+        return jo;
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws Exception {
+        int depth = 1;
+        while (depth>0) {
+            int event = reader.next();
+            if (event==XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            }
+            else if (event==XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static String qualifiedName(String prefix, String localName) {
+        if (prefix==null || prefix.length()==0) {
+            return localName;
+        }
+        if (localName==null || localName.length()==0) {
+            return prefix;
+        }
+        return prefix + ":" + localName;
+    }
+
     /**
      * Pass in an element and make a stand alone JSON structure for this one
      * element.   Please note that this method can not be used if the element
@@ -315,6 +499,31 @@ public class Dom2JSON {
                 //System.out.println("Found unknown element: "+type+"   Name: "+node.getNodeName());
             }
         }
+        putGroupedMembers(jo, stringMap, objectMap, hints);
+        NamedNodeMap nnm = ele.getAttributes();
+        last = nnm.getLength();
+        for (int i=0; i<last; i++) {
+            Node node = nnm.item(i);
+            if (Node.ATTRIBUTE_NODE==node.getNodeType()) {
+                String attName = node.getNodeName();
+                String attValue = node.getNodeValue();
+                jo.put(attName, attValue);
+            }
+            else {
+                //System.out.println("Attribute list contains a non attribute: "+node.getNodeType()+" = "+node.getNodeName());
+            }
+        }
+
+        return jo;
+    }
+
+    /**
+     * Puts the collected sub elements into the object, making an array
+     * for each name that appears more than once, or that has a hint
+     * saying that it is multiple.
+     */
+    private static void putGroupedMembers(JSONObject jo, Hashtable<String,ArrayList<String>> stringMap,
+            Hashtable<String,ArrayList<JSONObject>> objectMap, Hashtable<String,Integer> hints) throws Exception {
         for (String key : stringMap.keySet()) {
             ArrayList<String> stringList = stringMap.get(key);
             boolean isArray = stringList.size()>1;
@@ -355,21 +564,6 @@ public class Dom2JSON {
                 jo.put(key, ja);
             }
         }
-        NamedNodeMap nnm = ele.getAttributes();
-        last = nnm.getLength();
-        for (int i=0; i<last; i++) {
-            Node node = nnm.item(i);
-            if (Node.ATTRIBUTE_NODE==node.getNodeType()) {
-                String attName = node.getNodeName();
-                String attValue = node.getNodeValue();
-                jo.put(attName, attValue);
-            }
-            else {
-                //System.out.println("Attribute list contains a non attribute: "+node.getNodeType()+" = "+node.getNodeName());
-            }
-        }
-
-        return jo;
     }
 
     /**
@@ -32,11 +32,13 @@ import java.io.OutputStreamWriter;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Array;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.List;
+import java.util.RandomAccess;
 
 /**
  * A JSONArray is an ordered sequence of values. Its external text form is a
@@ -92,6 +94,23 @@ public class JSONArray {
      */
     private final ArrayList<Object> myArrayList;
 
+    /**
+     * Once frozen, the array and all the objects and arrays within it
+     * can no longer be changed.
+     */
+    private boolean frozen = false;
+
+    /**
+     * The structural hash, remembered only once the array is frozen.
+     */
+    private volatile long structuralHash = 0;
+
+    /**
+     * Indexes that need to be told about changes to the array.
+     * Null until an index is requested.
+     */
+    private ArrayList<JSONArrayIndex> indexes = null;
+
 
     /**
      * Construct an empty JSONArray.
@@ -100,6 +119,160 @@ public class JSONArray {
         this.myArrayList = new ArrayList<Object>();
     }
 
+
+    /**
+     * Make this array, and all the objects and arrays contained within it,
+     * permanently unmodifiable.  See JSONObject.freeze() for details.
+     *
+     * @return this, which is now frozen.
+     */
+    public JSONArray freeze() {
+        if (frozen) {
+            return this;
+        }
+        for (Object child : this.myArrayList) {
+            if (child instanceof JSONObject) {
+                ((JSONObject)child).freeze();
+            }
+            else if (child instanceof JSONArray) {
+                ((JSONArray)child).freeze();
+            }
+        }
+        frozen = true;
+        return this;
+    }
+
+    /**
+     * @return true if this array has been frozen and can not be modified.
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Returns a new, modifiable JSONArray with the same elements as this one.
+     * This is a shallow copy: the objects and arrays within it are shared with
+     * this array, and if this array is frozen, they are frozen as well.
+     */
+    public JSONArray thaw() {
+        JSONArray copy = new JSONArray();
+        copy.myArrayList.ensureCapacity(this.myArrayList.size());
+        copy.myArrayList.addAll(this.myArrayList);
+        return copy;
+    }
+
+    /**
+     * Get the JSONObject at the index in a form that can be modified.
+     * If it is frozen, then a thawed copy of it replaces it in this array,
+     * and that copy is returned.
+     *
+     * @throws JSONException if there is no JSONObject at that index.
+     */
+    public JSONObject editJSONObject(int index) throws JSONException {
+        JSONObject child = this.getJSONObject(index);
+        if (child.isFrozen()) {
+            child = child.thaw();
+            this.put(index, child);
+        }
+        return child;
+    }
+
+    /**
+     * Get the JSONArray at the index in a form that can be modified.
+     * If it is frozen, then a thawed copy of it replaces it in this array,
+     * and that copy is returned.
+     *
+     * @throws JSONException if there is no JSONArray at that index.
+     */
+    public JSONArray editJSONArray(int index) throws JSONException {
+        JSONArray child = this.getJSONArray(index);
+        if (child.frozen) {
+            child = child.thaw();
+            this.put(index, child);
+        }
+        return child;
+    }
+
+    private void assertNotFrozen() {
+        if (frozen) {
+            throw new UnsupportedOperationException("This JSONArray is frozen and can not be modified.  Use thaw() to get a modifiable copy.");
+        }
+    }
+
+
+    /**
+     * Returns a complete, independent copy of this array and all the objects
+     * and arrays within it.  The copy is never frozen.
+     */
+    public JSONArray deepCopy() {
+        int size = this.myArrayList.size();
+        JSONArray copy = new JSONArray();
+        copy.myArrayList.ensureCapacity(size);
+        for (int i=0; i<size; i++) {
+            copy.myArrayList.add(JSONObject.deepCopyValue(this.myArrayList.get(i)));
+        }
+        return copy;
+    }
+
+    /**
+     * Tells whether the other array has the same elements in the same order,
+     * comparing all the objects and arrays within them as well.
+     * See JSONObject.deepEquals for details.
+     */
+    public boolean deepEquals(JSONArray other) {
+        if (other == this) {
+            return true;
+        }
+        int size = this.myArrayList.size();
+        if (other == null || other.myArrayList.size() != size) {
+            return false;
+        }
+        if (this.frozen && other.frozen && this.structuralHash() != other.structuralHash()) {
+            return false;
+        }
+        for (int i=0; i<size; i++) {
+            if (!JSONObject.deepEqualValues(this.myArrayList.get(i), other.myArrayList.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A hash code consistent with deepEquals.
+     */
+    public int deepHashCode() {
+        int hash = 1;
+        for (Object value : this.myArrayList) {
+            hash = 31*hash + JSONObject.deepHashValue(value);
+        }
+        return hash;
+    }
+
+    /**
+     * A 64 bit hash of the array and everything in it, consistent with
+     * deepEquals, that is remembered once the array is frozen.
+     * See JSONObject.structuralHash for details.
+     */
+    public long structuralHash() {
+        long hash = structuralHash;
+        if (hash != 0) {
+            return hash;
+        }
+        hash = 0x4A41L;
+        for (Object value : this.myArrayList) {
+            hash = (hash ^ JSONObject.structuralHashValue(value)) * 0x100000001B3L;
+        }
+        hash = JSONObject.mixHash(hash + this.myArrayList.size());
+        if (hash == 0) {
+            hash = 1;
+        }
+        if (frozen) {
+            structuralHash = hash;
+        }
+        return hash;
+    }
+
     /**
      * Construct a JSONArray object from a file.
      * Remember, the file has to start with a square brace.
@@ -675,7 +848,14 @@ public class JSONArray {
      * @return this.
      */
     public JSONArray put(Object value) {
+        assertNotFrozen();
         this.myArrayList.add(value);
+        if (indexes != null) {
+            int pos = this.myArrayList.size() - 1;
+            for (JSONArrayIndex index : indexes) {
+                index.elementAdded(pos);
+            }
+        }
         return this;
     }
 
@@ -788,8 +968,14 @@ public class JSONArray {
         if (index < 0) {
             throw new JSONException("JSONArray[" + index + "] not found.");
         }
+        assertNotFrozen();
         if (index < this.length()) {
-            this.myArrayList.set(index, value);
+            Object old = this.myArrayList.set(index, value);
+            if (indexes != null) {
+                for (JSONArrayIndex arrIndex : indexes) {
+                    arrIndex.elementReplaced(index, old);
+                }
+            }
         } else {
             while (index != this.length()) {
                 this.put(JSONObject.NULL);
@@ -800,6 +986,32 @@ public class JSONArray {
     }
 
 
+    /**
+     * Insert a value at the position, moving the value that was there and
+     * everything after it up by one.  An index equal to the length adds the
+     * value to the end.
+     * @param index The position for the value, from 0 to length().
+     * @param value The value to insert.
+     * @return this.
+     * @throws JSONException If the index is out of range or if the the value
+     *  is an invalid number.
+     */
+    public JSONArray insert(int index, Object value) throws JSONException {
+        JSONObject.testValidity(value);
+        if (index < 0 || index > this.length()) {
+            throw new JSONException("JSONArray[" + index + "] is out of range for insert.");
+        }
+        assertNotFrozen();
+        this.myArrayList.add(index, value);
+        if (indexes != null) {
+            for (JSONArrayIndex arrIndex : indexes) {
+                arrIndex.elementInserted(index);
+            }
+        }
+        return this;
+    }
+
+
     /**
      * Remove an index and close the hole.
      * @param index The index of the element to be removed.
@@ -807,11 +1019,59 @@ public class JSONArray {
      * or null if there was no value.
      */
     public Object remove(int index) {
+        assertNotFrozen();
         Object o = this.opt(index);
         this.myArrayList.remove(index);
+        if (indexes != null) {
+            for (JSONArrayIndex arrIndex : indexes) {
+                arrIndex.elementRemoved(index, o);
+            }
+        }
         return o;
     }
 
+    /**
+     * <p>Returns a hash index on the records (JSONObjects) in this array by the
+     * value of the named member, so that records can be found, replaced and
+     * deleted by key without scanning the array.  The index is created the first
+     * time it is requested, and from then on it is kept up to date as the array
+     * is changed.</p>
+     *
+     * <pre>
+     * JSONObject user = users.getIndex("id").get("u1234");
+     * </pre>
+     *
+     * @see com.purplehillsbooks.json.JSONArrayIndex
+     */
+    public JSONArrayIndex getIndex(String keyMember) {
+        if (indexes == null) {
+            indexes = new ArrayList<JSONArrayIndex>();
+        }
+        for (JSONArrayIndex index : indexes) {
+            if (index.getKeyMember().equals(keyMember)) {
+                return index;
+            }
+        }
+        JSONArrayIndex index = new JSONArrayIndex(this, keyMember);
+        indexes.add(index);
+        return index;
+    }
+
+    /**
+     * Stop maintaining the index on the named member, if there is one.
+     */
+    public void removeIndex(String keyMember) {
+        if (indexes == null) {
+            return;
+        }
+        for (int i = 0; i < indexes.size(); i++) {
+            if (indexes.get(i).getKeyMember().equals(keyMember)) {
+                indexes.remove(i);
+                return;
+            }
+        }
+    }
+
     /**
      * Add all the elements from one JSONArray into the array this is called on.
      */
@@ -840,9 +1100,14 @@ public class JSONArray {
      *  </p>
      */
     public List<JSONObject> getJSONObjectList() throws Exception {
-        ArrayList<JSONObject> res = new ArrayList<JSONObject>();
-        for (int i=0; i<this.length();i++) {
-            res.add(this.getJSONObject(i));
+        int size = this.myArrayList.size();
+        ArrayList<JSONObject> res = new ArrayList<JSONObject>(size);
+        for (int i=0; i<size; i++) {
+            Object o = this.myArrayList.get(i);
+            if (!(o instanceof JSONObject)) {
+                throw new JSONException("JSONArray[" + i + "] is not a JSONObject.");
+            }
+            res.add((JSONObject)o);
         }
         return res;
     }
@@ -866,13 +1131,117 @@ public class JSONArray {
      *  </p>
      */
     public List<String> getStringList() throws Exception {
-        ArrayList<String> res = new ArrayList<String>();
-        for (int i=0; i<this.length();i++) {
-            res.add(this.getString(i));
+        int size = this.myArrayList.size();
+        ArrayList<String> res = new ArrayList<String>(size);
+        for (int i=0; i<size; i++) {
+            Object o = this.myArrayList.get(i);
+            if (!(o instanceof String)) {
+                throw new JSONException("JSONArray[" + i + "] not a string.");
+            }
+            res.add((String)o);
+        }
+        return res;
+    }
+
+    /**
+     * <p>
+     * Like getJSONObjectList, but instead of copying the elements into a new
+     * list, this returns a read-only view of the array itself.  The types of the
+     * elements are checked once, when the view is made, and no list is allocated,
+     * which matters for very large arrays.
+     * </p>
+     * <pre>
+     *  for (JSONObject j : myList.viewJSONObjectList()) {
+     *     ...
+     *  }
+     * </pre>
+     * <p>
+     * The view reflects later changes to the array.  If a value that is not a
+     * JSONObject is put into the array later, then getting that element from the
+     * view throws a ClassCastException.
+     * </p>
+     * @throws JSONException if any element is not a JSONObject
+     */
+    public List<JSONObject> viewJSONObjectList() throws JSONException {
+        return new TypedView<JSONObject>(JSONObject.class, "is not a JSONObject.");
+    }
+
+    /**
+     * Like getStringList, but returns a read-only view of the array itself
+     * instead of a copy.  See viewJSONObjectList.
+     * @throws JSONException if any element is not a String
+     */
+    public List<String> viewStringList() throws JSONException {
+        return new TypedView<String>(String.class, "not a string.");
+    }
+
+    /**
+     * Returns a cursor for reading the elements as primitive numbers
+     * without boxing or exceptions for each element:
+     * <pre>
+     * JSONNumberCursor cursor = myArray.numberCursor();
+     * while (cursor.next()) {
+     *     total += cursor.getDouble();
+     * }
+     * </pre>
+     */
+    public JSONNumberCursor numberCursor() {
+        return new JSONNumberCursor(this.myArrayList);
+    }
+
+    /**
+     * Returns all the elements as a long array.
+     * @throws JSONException if any element is not a number
+     */
+    public long[] toLongArray() throws JSONException {
+        long[] res = new long[this.myArrayList.size()];
+        JSONNumberCursor cursor = numberCursor();
+        for (int i=0; cursor.next(); i++) {
+            res[i] = cursor.getLong();
+        }
+        return res;
+    }
+
+    /**
+     * Returns all the elements as a double array.
+     * @throws JSONException if any element is not a number
+     */
+    public double[] toDoubleArray() throws JSONException {
+        double[] res = new double[this.myArrayList.size()];
+        JSONNumberCursor cursor = numberCursor();
+        for (int i=0; cursor.next(); i++) {
+            res[i] = cursor.getDouble();
         }
         return res;
     }
 
+    /**
+     * A read-only list backed by the array, with the element type checked once
+     */
+    private class TypedView<T> extends AbstractList<T> implements RandomAccess {
+        private final Class<T> type;
+
+        TypedView(Class<T> type, String complaint) throws JSONException {
+            this.type = type;
+            int size = myArrayList.size();
+            for (int i=0; i<size; i++) {
+                if (!type.isInstance(myArrayList.get(i))) {
+                    throw new JSONException("JSONArray[" + i + "] " + complaint);
+                }
+            }
+        }
+
+        @Override
+        public T get(int index) {
+            return type.cast(myArrayList.get(index));
+        }
+
+        @Override
+        public int size() {
+            return myArrayList.size();
+        }
+    }
+
 
     /**
      * <p>
@@ -0,0 +1,341 @@
+package com.purplehillsbooks.json;
+
+import java.util.HashMap;
+
+/**
+ * <p>A hash index on a JSONArray of records (JSONObjects) by the value of one
+ * member of the records, usually an id.  Finding, replacing, or deleting a record
+ * by key does not need to scan the array.</p>
+ *
+ * <pre>
+ * JSONArray users = doc.getJSONArray("users");
+ * JSONArrayIndex byId = users.getIndex("id");
+ * JSONObject user = byId.get("u1234");
+ * byId.upsert(changedUser);
+ * byId.delete("u999");
+ * </pre>
+ *
+ * <p>The index is attached to the array and is kept up to date as values
+ * are put into and removed from the array, whether through the index or through
+ * the array directly.  Keys are compared as strings, and numbers are converted
+ * so that the key 5 and the key "5" are the same.  Elements that are not
+ * objects, or that do not have the key member, are simply not in the index.
+ * If more than one record has the same key, the index finds the first one,
+ * the same one that a scan from the beginning would find.</p>
+ *
+ * <p>Removing or inserting an element moves every element after it, and the
+ * array does that by copying, which takes time in proportion to the length of
+ * the array.  The index does not walk those elements.  Each remove or insert is
+ * recorded as a shift, and a position found in the index is corrected by the
+ * shifts recorded since it was stored, at the time it is looked up.  After 64
+ * shifts, every position in the index is corrected at once and the record of
+ * shifts is cleared, so the cost of keeping the index is spread over many
+ * changes rather than paid for each one.</p>
+ *
+ * <p>If the key member of a record already in the array is changed, the index
+ * notices this on the next lookup of that key and rebuilds itself.  A record that
+ * gets a new key value that was never in the index is not found until
+ * rebuild() is called.</p>
+ *
+ * <p>Like JSONArray itself, this is not synchronized.  If the array is shared
+ * between threads, then lookups through the index must be protected the same way
+ * that other access to the array is.</p>
+ */
+public class JSONArrayIndex {
+
+    private final JSONArray array;
+    private final String keyMember;
+    private final HashMap<String,Slot> positions = new HashMap<String,Slot>();
+    private boolean stale = true;
+    private boolean hasDuplicates = false;
+
+    // the removes and inserts not yet applied to every slot: a remove at
+    // shiftPos moves the positions after it down, an insert moves it and
+    // the positions after it up
+    private static final int MAX_SHIFTS = 64;
+    private final int[] shiftPos = new int[MAX_SHIFTS];
+    private final boolean[] shiftInsert = new boolean[MAX_SHIFTS];
+    private int shiftCount = 0;
+
+    /**
+     * The position of a key, as it was after the first 'applied' shifts
+     */
+    private static class Slot {
+        int pos;
+        int applied;
+
+        Slot(int pos, int applied) {
+            this.pos = pos;
+            this.applied = applied;
+        }
+    }
+
+    JSONArrayIndex(JSONArray array, String keyMember) {
+        this.array = array;
+        this.keyMember = keyMember;
+    }
+
+    /**
+     * The name of the member of the records that is the key.
+     */
+    public String getKeyMember() {
+        return keyMember;
+    }
+
+    /**
+     * Returns the record with the key, or null if there is none.
+     */
+    public JSONObject get(Object key) {
+        int pos = indexOf(key);
+        if (pos < 0) {
+            return null;
+        }
+        return (JSONObject) array.opt(pos);
+    }
+
+    /**
+     * Tells whether there is a record with the key.
+     */
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Returns the position in the array of the record with the key, or -1.
+     */
+    public int indexOf(Object key) {
+        String skey = keyString(key);
+        if (skey == null) {
+            return -1;
+        }
+        if (stale) {
+            rebuild();
+        }
+        int pos = currentPos(skey);
+        if (pos < 0) {
+            return -1;
+        }
+        if (!skey.equals(keyAt(pos))) {
+            //the record was changed since it was indexed
+            rebuild();
+            pos = currentPos(skey);
+        }
+        return pos;
+    }
+
+    /**
+     * If there is a record with the same key, replace it with this record,
+     * otherwise add this record to the end of the array.
+     * @return the record that was replaced, or null if this was added.
+     * @throws JSONException if the record does not have the key member.
+     */
+    public JSONObject upsert(JSONObject record) throws JSONException {
+        Object key = record.opt(keyMember);
+        if (keyString(key) == null) {
+            throw new JSONException("Record can not be put into the index because it has no value for the key member {0}", keyMember);
+        }
+        int pos = indexOf(key);
+        if (pos < 0) {
+            array.put(record);
+            return null;
+        }
+        JSONObject old = (JSONObject) array.opt(pos);
+        array.put(pos, record);
+        return old;
+    }
+
+    /**
+     * Remove the record with the key from the array.
+     * @return the record that was removed, or null if there was none.
+     */
+    public JSONObject delete(Object key) {
+        int pos = indexOf(key);
+        if (pos < 0) {
+            return null;
+        }
+        return (JSONObject) array.remove(pos);
+    }
+
+    /**
+     * Scan the entire array and make the index again from scratch.
+     * Normally this is done automatically when needed.
+     */
+    public void rebuild() {
+        positions.clear();
+        hasDuplicates = false;
+        shiftCount = 0;
+        int len = array.length();
+        for (int i = 0; i < len; i++) {
+            addPosition(keyAt(i), i);
+        }
+        stale = false;
+    }
+
+
+    //////////////// notifications from the array ////////////////
+
+    void elementAdded(int pos) {
+        if (!stale) {
+            addPosition(keyAt(pos), pos);
+        }
+    }
+
+    void elementReplaced(int pos, Object oldValue) {
+        if (stale) {
+            return;
+        }
+        if (!forgetKey(keyOf(oldValue), pos)) {
+            return;
+        }
+        putEarliest(keyAt(pos), pos);
+    }
+
+    /**
+     * Everything from pos on has moved up one place, and the new
+     * element is at pos.
+     */
+    void elementInserted(int pos) {
+        if (stale) {
+            return;
+        }
+        addShift(pos, true);
+        putEarliest(keyAt(pos), pos);
+    }
+
+    /**
+     * The element at pos was removed, so everything after it
+     * has moved down one place.
+     */
+    void elementRemoved(int pos, Object oldValue) {
+        if (stale) {
+            return;
+        }
+        if (!forgetKey(keyOf(oldValue), pos)) {
+            return;
+        }
+        addShift(pos, false);
+    }
+
+    /**
+     * The element with the key is no longer at pos, so remove it from the
+     * index.  If other records might have the same key, the index is marked
+     * to be made again, and false is returned.
+     */
+    private boolean forgetKey(String oldKey, int pos) {
+        if (oldKey != null && currentPos(oldKey) == pos) {
+            if (hasDuplicates) {
+                //another record might have the old key
+                stale = true;
+                return false;
+            }
+            positions.remove(oldKey);
+        }
+        return true;
+    }
+
+    /**
+     * A record with the key is at pos, so index it there unless
+     * a record before it has the same key.
+     */
+    private void putEarliest(String newKey, int pos) {
+        if (newKey == null) {
+            return;
+        }
+        int existing = currentPos(newKey);
+        if (existing < 0 || existing > pos) {
+            if (existing >= 0) {
+                hasDuplicates = true;
+            }
+            positions.put(newKey, new Slot(pos, shiftCount));
+        }
+        else if (existing != pos) {
+            hasDuplicates = true;
+        }
+    }
+
+    private void addShift(int pos, boolean insert) {
+        if (shiftCount == MAX_SHIFTS) {
+            //bring every slot up to date so the record of shifts can be cleared
+            for (Slot slot : positions.values()) {
+                applyShifts(slot);
+                slot.applied = 0;
+            }
+            shiftCount = 0;
+        }
+        shiftPos[shiftCount] = pos;
+        shiftInsert[shiftCount] = insert;
+        shiftCount++;
+    }
+
+    /**
+     * Returns the current position of the key, or -1 if it is not in the index
+     */
+    private int currentPos(String key) {
+        Slot slot = positions.get(key);
+        if (slot == null) {
+            return -1;
+        }
+        applyShifts(slot);
+        return slot.pos;
+    }
+
+    private void applyShifts(Slot slot) {
+        int pos = slot.pos;
+        for (int i = slot.applied; i < shiftCount; i++) {
+            if (shiftInsert[i]) {
+                if (pos >= shiftPos[i]) {
+                    pos++;
+                }
+            }
+            else if (pos > shiftPos[i]) {
+                pos--;
+            }
+        }
+        slot.pos = pos;
+        slot.applied = shiftCount;
+    }
+
+
+    private void addPosition(String key, int pos) {
+        if (key == null) {
+            return;
+        }
+        if (positions.containsKey(key)) {
+            hasDuplicates = true;
+            return;
+        }
+        positions.put(key, new Slot(pos, shiftCount));
+    }
+
+    private String keyAt(int pos) {
+        return keyOf(array.opt(pos));
+    }
+
+    private String keyOf(Object element) {
+        if (element instanceof JSONObject) {
+            return keyString(((JSONObject) element).opt(keyMember));
+        }
+        return null;
+    }
+
+    /**
+     * Keys are compared as strings.  Whole numbers are written without a
+     * decimal point so that 5, 5.0 and "5" are all the same key.
+     */
+    static String keyString(Object key) {
+        if (key == null || JSONObject.NULL.equals(key)) {
+            return null;
+        }
+        if (key instanceof String) {
+            return (String) key;
+        }
+        if (key instanceof Number) {
+            double d = ((Number) key).doubleValue();
+            if (d == (long) d) {
+                return Long.toString(((Number) key).longValue());
+            }
+            return Double.toString(d);
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,317 @@
+package com.purplehillsbooks.json;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Converts Java beans to JSONObject and back again, using the getter and
+ * setter methods of the bean.  The methods of a class are examined only once,
+ * the first time an object of that class is converted, and the accessors are
+ * kept as MethodHandles for that class.  After that, converting an object costs
+ * only the calls to the getters or setters.</p>
+ *
+ * <p>The getters are the public methods with no parameters and a name that starts
+ * with "get" or "is" followed by an upper case letter.  The setters are the public
+ * methods with one parameter and a name that starts with "set" followed by an upper
+ * case letter.  The key is the rest of the name, with the first letter changed to
+ * lower case unless the second letter is also upper case.  A method named
+ * <code>getName</code> produces the key <code>name</code>, and <code>getURL</code>
+ * produces the key <code>URL</code>.</p>
+ *
+ * <h1>USAGE</h1>
+ *
+ * <pre>
+ * JSONObject jo = new JSONObject(customer);
+ * ...
+ * Customer cust = JSONBeanBinding.toBean(jo, Customer.class);
+ * </pre>
+ *
+ * <p>Setting values into a bean converts the JSON value to the type of the setter
+ * parameter: strings, all the primitive types and their wrappers, enums,
+ * JSONObject, JSONArray, Lists of any of these, and other beans (which must have
+ * a public no argument constructor).  Members of the JSONObject that have no
+ * setter are ignored.</p>
+ *
+ * <p>The binding for a class is kept for as long as the class is loaded, and
+ * it holds the class and the MethodHandles for its methods.  Do not count on a
+ * class that has been converted being unloaded.</p>
+ */
+public class JSONBeanBinding {
+
+    private static final ClassValue<JSONBeanBinding> bindings = new ClassValue<JSONBeanBinding>() {
+        @Override
+        protected JSONBeanBinding computeValue(Class<?> type) {
+            return new JSONBeanBinding(type);
+        }
+    };
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final Class<?> beanClass;
+    private final List<Getter> getters = new ArrayList<Getter>();
+    private final HashMap<String,Setter> setters = new HashMap<String,Setter>();
+
+
+    private static class Getter {
+        String key;
+        MethodHandle handle;
+    }
+
+    private static class Setter {
+        String key;
+        MethodHandle handle;
+        Class<?> paramClass;
+        Type paramType;
+    }
+
+
+    private JSONBeanBinding(Class<?> klass) {
+        beanClass = klass;
+
+        // If klass is a System class then only the declared methods are used
+        boolean includeSuperClass = klass.getClassLoader() != null;
+        Method[] methods = includeSuperClass
+                ? klass.getMethods()
+                : klass.getDeclaredMethods();
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        Set<String> setterConflicts = new HashSet<String>();
+
+        for (Method method : methods) {
+            if (!Modifier.isPublic(method.getModifiers())) {
+                continue;
+            }
+            boolean isStatic = Modifier.isStatic(method.getModifiers());
+            String name = method.getName();
+            Class<?>[] params = method.getParameterTypes();
+            try {
+                if (params.length == 0) {
+                    String key = "";
+                    if (name.startsWith("get")) {
+                        if (!"getClass".equals(name) && !"getDeclaringClass".equals(name)) {
+                            key = name.substring(3);
+                        }
+                    }
+                    else if (name.startsWith("is")) {
+                        key = name.substring(2);
+                    }
+                    if (key.length() > 0 && Character.isUpperCase(key.charAt(0))) {
+                        Getter g = new Getter();
+                        g.key = propertyName(key);
+                        MethodHandle mh = lookup.unreflect(method);
+                        if (isStatic) {
+                            //static getters are called too, ignoring the bean
+                            mh = MethodHandles.dropArguments(mh, 0, Object.class);
+                        }
+                        g.handle = mh.asType(GETTER_TYPE);
+                        getters.add(g);
+                    }
+                }
+                else if (params.length == 1 && !isStatic && name.startsWith("set") && name.length() > 3
+                        && Character.isUpperCase(name.charAt(3))) {
+                    String key = propertyName(name.substring(3));
+                    if (setters.containsKey(key)) {
+                        //overloaded setters are ambiguous, so leave them out
+                        setterConflicts.add(key);
+                        continue;
+                    }
+                    Setter s = new Setter();
+                    s.key = key;
+                    s.handle = lookup.unreflect(method).asType(SETTER_TYPE);
+                    s.paramClass = params[0];
+                    s.paramType = method.getGenericParameterTypes()[0];
+                    setters.put(key, s);
+                }
+            }
+            catch (IllegalAccessException e) {
+                //public method in a class that is not public, can not be called
+            }
+        }
+        for (String key : setterConflicts) {
+            setters.remove(key);
+        }
+    }
+
+    private static String propertyName(String key) {
+        if (key.length() == 1) {
+            return key.toLowerCase();
+        }
+        if (!Character.isUpperCase(key.charAt(1))) {
+            return key.substring(0, 1).toLowerCase() + key.substring(1);
+        }
+        return key;
+    }
+
+    /**
+     * Returns the (cached) binding for the class
+     */
+    public static JSONBeanBinding forClass(Class<?> klass) {
+        return bindings.get(klass);
+    }
+
+    /**
+     * The class this binding is for.
+     */
+    public Class<?> getBeanClass() {
+        return beanClass;
+    }
+
+
+    /**
+     * Calls all the getters of the bean, and puts the non-null results
+     * into the map of a JSONObject.  A getter that throws an exception is
+     * skipped, the same as if it had returned null.
+     */
+    void populateMap(Object bean, Map<String, Object> map) {
+        for (Getter g : getters) {
+            try {
+                Object result = (Object) g.handle.invokeExact(bean);
+                if (result != null) {
+                    map.put(g.key, JSONObject.wrap(result));
+                }
+            }
+            catch (Throwable ignore) {
+            }
+        }
+    }
+
+
+    /**
+     * Create a new bean of the class, and set all the values from
+     * the JSONObject that have a matching setter.
+     */
+    public static <T> T toBean(JSONObject jo, Class<T> beanClass) throws Exception {
+        T bean;
+        try {
+            bean = beanClass.getDeclaredConstructor().newInstance();
+        }
+        catch (InvocationTargetException e) {
+            //the constructor itself threw, report what it threw
+            throw new JSONException("Unable to construct a bean of class {0}", e.getCause(), beanClass.getName());
+        }
+        catch (Exception e) {
+            throw new JSONException("Unable to construct a bean of class {0}", e, beanClass.getName());
+        }
+        forClass(beanClass).populateBean(jo, bean);
+        return bean;
+    }
+
+    /**
+     * For every member of the JSONObject that has a matching setter,
+     * convert the value to the type of the setter parameter, and call the setter.
+     * Members with no setter are ignored.
+     */
+    public void populateBean(JSONObject jo, Object bean) throws Exception {
+        for (String key : jo.keySet()) {
+            Setter s = setters.get(key);
+            if (s == null) {
+                continue;
+            }
+            Object value = jo.opt(key);
+            try {
+                Object arg = convert(value, s.paramClass, s.paramType);
+                if (arg == null && s.paramClass.isPrimitive()) {
+                    continue;
+                }
+                s.handle.invokeExact(bean, arg);
+            }
+            catch (Throwable e) {
+                throw new JSONException("Unable to set property {0} on bean of class {1}",
+                        e, key, beanClass.getName());
+            }
+        }
+    }
+
+
+    private static Object convert(Object value, Class<?> target, Type genericType) throws Exception {
+        if (value == null || JSONObject.NULL.equals(value)) {
+            return null;
+        }
+        if (target.isInstance(value)) {
+            return value;
+        }
+        if (target == String.class) {
+            return value.toString();
+        }
+        if (target == int.class || target == Integer.class) {
+            return value instanceof Number ? Integer.valueOf(((Number)value).intValue())
+                    : Integer.valueOf(Integer.parseInt(value.toString()));
+        }
+        if (target == long.class || target == Long.class) {
+            return value instanceof Number ? Long.valueOf(((Number)value).longValue())
+                    : Long.valueOf(Long.parseLong(value.toString()));
+        }
+        if (target == double.class || target == Double.class) {
+            return value instanceof Number ? Double.valueOf(((Number)value).doubleValue())
+                    : Double.valueOf(value.toString());
+        }
+        if (target == float.class || target == Float.class) {
+            return value instanceof Number ? Float.valueOf(((Number)value).floatValue())
+                    : Float.valueOf(value.toString());
+        }
+        if (target == short.class || target == Short.class) {
+            return value instanceof Number ? Short.valueOf(((Number)value).shortValue())
+                    : Short.valueOf(value.toString());
+        }
+        if (target == byte.class || target == Byte.class) {
+            return value instanceof Number ? Byte.valueOf(((Number)value).byteValue())
+                    : Byte.valueOf(value.toString());
+        }
+        if (target == boolean.class || target == Boolean.class) {
+            if (value instanceof Boolean) {
+                return value;
+            }
+            return Boolean.valueOf("true".equalsIgnoreCase(value.toString()));
+        }
+        if (target == char.class || target == Character.class) {
+            String s = value.toString();
+            return s.length() == 0 ? null : Character.valueOf(s.charAt(0));
+        }
+        if (target.isEnum()) {
+            return enumValue(target, value.toString());
+        }
+        if (value instanceof JSONArray && (target == List.class || target == Collection.class
+                || target == ArrayList.class)) {
+            Class<?> elemClass = Object.class;
+            Type elemType = Object.class;
+            if (genericType instanceof ParameterizedType) {
+                elemType = ((ParameterizedType)genericType).getActualTypeArguments()[0];
+                if (elemType instanceof Class) {
+                    elemClass = (Class<?>) elemType;
+                }
+                else if (elemType instanceof ParameterizedType) {
+                    elemClass = (Class<?>) ((ParameterizedType)elemType).getRawType();
+                }
+            }
+            JSONArray ja = (JSONArray) value;
+            int size = ja.length();
+            ArrayList<Object> list = new ArrayList<Object>(size);
+            for (int i=0; i<size; i++) {
+                list.add(convert(ja.opt(i), elemClass, elemType));
+            }
+            return list;
+        }
+        if (value instanceof JSONObject) {
+            return toBean((JSONObject) value, target);
+        }
+        throw new JSONException("Can not convert value {0} to class {1}", value, target.getName());
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Object enumValue(Class<?> target, String name) {
+        return Enum.valueOf((Class<? extends Enum>) target, name);
+    }
+}
@@ -0,0 +1,695 @@
+package com.purplehillsbooks.json;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A compact binary encoding for a tree of JSONObject and JSONArray values.
+ * Reading a textual JSON file requires that every character be scanned and
+ * every number be parsed from digits.  This format is type-tagged and length
+ * prefixed, so that strings are read as a block of bytes, numbers are read
+ * directly as their binary value, and a reader that is looking for a single
+ * member can skip entire subtrees without looking at the contents.</p>
+ *
+ * <p>The format is:</p>
+ *
+ * <pre>
+ * header:      'P' 'J' 'B' version(1)
+ * dictionary:  count, then count keys, each as (length, UTF-8 bytes)
+ * root value:  a tagged value, normally an object
+ *
+ * tagged values:
+ *   0 null
+ *   1 false
+ *   2 true
+ *   3 int      4 byte big-endian
+ *   4 long     8 byte big-endian
+ *   5 double   8 byte IEEE 754
+ *   6 string   length, UTF-8 bytes
+ *   7 object   member count, 4 byte body length, then (key index, value) pairs
+ *   8 array    element count, 4 byte body length, then values
+ *   9 number   length, UTF-8 bytes of the number in JSON text form
+ * </pre>
+ *
+ * <p>Counts, lengths and key indexes are written as unsigned variable length
+ * integers, seven bits per byte with the high bit set on all bytes except the
+ * last.  Every key used anywhere in the tree is stored once in the dictionary, and
+ * members refer to the key by position, so the key strings are shared by all the
+ * JSONObjects that are read from the file.</p>
+ *
+ * <h1>USAGE</h1>
+ *
+ * <pre>
+ * JSONBinary.writeToFile(jo, file);
+ * JSONObject jo = JSONBinary.readFromFile(file);
+ * </pre>
+ *
+ * <p>The file is written safely in the same way as JSONObject.writeToFile, first to
+ * a temporary file, which is then renamed to the final name.</p>
+ *
+ * <p>This class has a main routine to convert a file from one form to the other:</p>
+ *
+ * <pre>JSONBinary {input-file-name} {output-file-name}</pre>
+ *
+ * <p>If the input file is binary it is written out as formatted JSON text,
+ * otherwise the input file is read as JSON text and written out as binary.</p>
+ */
+public class JSONBinary {
+
+    private static final int VERSION = 1;
+
+    private static final int TAG_NULL   = 0;
+    private static final int TAG_FALSE  = 1;
+    private static final int TAG_TRUE   = 2;
+    private static final int TAG_INT    = 3;
+    private static final int TAG_LONG   = 4;
+    private static final int TAG_DOUBLE = 5;
+    private static final int TAG_STRING = 6;
+    private static final int TAG_OBJECT = 7;
+    private static final int TAG_ARRAY  = 8;
+    private static final int TAG_NUMBER = 9;
+
+
+    /////////////////////////// WRITING ///////////////////////////
+
+    /**
+     * Write the JSONObject tree to the output stream in binary form.
+     * The stream is not closed, but it is flushed.
+     */
+    public static void write(JSONObject jo, OutputStream os) throws Exception {
+        Encoder enc = new Encoder();
+        enc.measure(jo);
+        BufferedOutputStream bos = new BufferedOutputStream(os, 65536);
+        enc.writeHeader(bos);
+        enc.writeValue(bos, jo);
+        bos.flush();
+    }
+
+    /**
+     * Write the entire contents of the JSONObject tree to the specified file in
+     * binary form.  Just like JSONObject.writeToFile this is written first to a
+     * temporary file, and then the temporary file is renamed to the
+     * desired output file name, so that there is never a half-written file.
+     */
+    public static void writeToFile(JSONObject jo, File outFile) throws Exception {
+        try {
+            File folder = outFile.getParentFile();
+            File tempFile = new File(folder, "~"+outFile.getName()+"~tmp~"+System.currentTimeMillis());
+            if (tempFile.exists()) {
+                tempFile.delete();
+                if (tempFile.exists()) {
+                    throw new Exception("Before writing binary JSON tmp file, unable to delete the old tmp file: "+tempFile);
+                }
+            }
+            FileOutputStream fos = new FileOutputStream(tempFile);
+            try {
+                write(jo, fos);
+            }
+            finally {
+                fos.close();
+            }
+            Path sourcePath      = Paths.get(tempFile.toString());
+            Path destinationPath = Paths.get(outFile.toString());
+            Files.move(sourcePath, destinationPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (!outFile.exists()) {
+                throw new Exception("Unable to rename the binary JSON tmp file ("+tempFile+") to the actual file name("+outFile+")");
+            }
+        }
+        catch (Exception e) {
+            throw new Exception("Unable to write binary JSON objects to the file: "+outFile, e);
+        }
+    }
+
+
+    /////////////////////////// READING ///////////////////////////
+
+    /**
+     * Read a JSONObject tree from a stream that contains the binary form.
+     * Exactly the bytes of the root value are read, so anything that follows
+     * it can still be read from the stream, which is not closed.  No buffer is
+     * added, so pass a BufferedInputStream if the stream is not buffered already.
+     */
+    public static JSONObject read(InputStream is) throws Exception {
+        Decoder dec = new Decoder(is);
+        Object root = dec.readValue();
+        if (!(root instanceof JSONObject)) {
+            throw new JSONException("Binary JSON stream does not contain an object at the root");
+        }
+        return (JSONObject) root;
+    }
+
+    /**
+     * Open the file, read the binary contents, and return the
+     * JSONObject tree that the file represents.
+     */
+    public static JSONObject readFromFile(File inFile) throws Exception {
+        try {
+            FileInputStream fis = new FileInputStream(inFile);
+            try {
+                return read(new BufferedInputStream(fis, 65536));
+            }
+            finally {
+                fis.close();
+            }
+        }
+        catch (Exception e) {
+            throw new Exception("Unable to read binary JSON objects from file: "+inFile, e);
+        }
+    }
+
+    /**
+     * Read a single value out of a binary file without reading the entire tree.
+     * The path is a list of member names separated by dots, and each name must
+     * address a member of an object.  All the members that are not on the path
+     * are skipped over using the length prefix, without decoding them.
+     * Returns null if the path does not address a value in the file.
+     */
+    public static Object readValueAt(File inFile, String path) throws Exception {
+        try {
+            FileInputStream fis = new FileInputStream(inFile);
+            try {
+                Decoder dec = new Decoder(new BufferedInputStream(fis, 65536));
+                return dec.findValue(splitPath(path), 0);
+            }
+            finally {
+                fis.close();
+            }
+        }
+        catch (Exception e) {
+            throw new Exception("Unable to read value ("+path+") from binary JSON file: "+inFile, e);
+        }
+    }
+
+    /**
+     * Tests the first few bytes of the file to see if it is in the binary
+     * form.  Returns false if the file does not exist, or if it is a text file.
+     */
+    public static boolean isBinaryFile(File inFile) throws Exception {
+        if (!inFile.exists()) {
+            return false;
+        }
+        FileInputStream fis = new FileInputStream(inFile);
+        try {
+            return fis.read()=='P' && fis.read()=='J' && fis.read()=='B';
+        }
+        finally {
+            fis.close();
+        }
+    }
+
+
+    /**
+     * <p>Command line conversion between the binary form and the text form.</p>
+     *
+     * <pre>JSONBinary {input-file-name} {output-file-name}</pre>
+     *
+     * <p>If the input file is binary, the output is JSON text, otherwise the
+     * input is parsed as JSON text and the output is binary.</p>
+     */
+    public static void main(String[] args) {
+        try {
+            if (args.length<2) {
+                throw new Exception("Command: JSONBinary <inputfile> <outputfile>");
+            }
+            File fileIn  = new File(args[0]);
+            File fileOut = new File(args[1]);
+            if (!fileIn.exists()) {
+                throw new Exception("Can't find input file: "+fileIn.getCanonicalPath());
+            }
+            if (isBinaryFile(fileIn)) {
+                readFromFile(fileIn).writeToFile(fileOut);
+            }
+            else {
+                writeToFile(JSONObject.readFromFile(fileIn), fileOut);
+            }
+        }
+        catch (Exception e) {
+            System.out.println("##### Failed to Convert File");
+            e.printStackTrace();
+        }
+    }
+
+
+    private static List<String> splitPath(String path) {
+        List<String> names = new ArrayList<String>();
+        int start = 0;
+        int pos = path.indexOf('.');
+        while (pos>=0) {
+            if (pos>start) {
+                names.add(path.substring(start, pos));
+            }
+            start = pos+1;
+            pos = path.indexOf('.', start);
+        }
+        if (start<path.length()) {
+            names.add(path.substring(start));
+        }
+        return names;
+    }
+
+    /**
+     * Values that are not native to the JSON tree are converted the same way
+     * that JSONObject.write converts them.  Returns either a JSONObject, a
+     * JSONArray, or a scalar value.
+     */
+    private static Object normalize(Object value) throws Exception {
+        if (value == null || JSONObject.NULL.equals(value)) {
+            return JSONObject.NULL;
+        }
+        if (value instanceof JSONObject || value instanceof JSONArray
+                || value instanceof String || value instanceof Number
+                || value instanceof Boolean) {
+            return value;
+        }
+        if (value instanceof Map) {
+            return new JSONObject(value);
+        }
+        if (value instanceof Collection<?> || value.getClass().isArray()) {
+            return new JSONArray(value);
+        }
+        if (value instanceof JSONString) {
+            String text = ((JSONString) value).toJSONString();
+            if (text == null) {
+                return value.toString();
+            }
+            return new JSONTokener(text).nextValue();
+        }
+        return value.toString();
+    }
+
+
+    /**
+     * Holds the state needed to write one tree: the key dictionary and the
+     * body lengths of all the containers, computed in a first pass so that the
+     * second pass can write straight to the stream.
+     */
+    private static class Encoder {
+        HashMap<String,Integer> keyIndex = new HashMap<String,Integer>();
+        List<String> keys = new ArrayList<String>();
+        IdentityHashMap<Object,Integer> bodyLength = new IdentityHashMap<Object,Integer>();
+        byte[] scratch = new byte[1024];
+
+        /**
+         * Returns the total number of bytes the tagged value will take, and
+         * records the keys and container body lengths along the way.
+         */
+        int measure(Object value) throws Exception {
+            if (value instanceof JSONObject) {
+                JSONObject jo = (JSONObject) value;
+                int body = 0;
+                for (String key : jo.keySet()) {
+                    Integer idx = keyIndex.get(key);
+                    if (idx == null) {
+                        idx = Integer.valueOf(keys.size());
+                        keyIndex.put(key, idx);
+                        keys.add(key);
+                    }
+                    body += varIntLength(idx.intValue());
+                    body += measure(normalize(jo.opt(key)));
+                }
+                bodyLength.put(jo, Integer.valueOf(body));
+                return 1 + varIntLength(jo.length()) + 4 + body;
+            }
+            if (value instanceof JSONArray) {
+                JSONArray ja = (JSONArray) value;
+                int body = 0;
+                int len = ja.length();
+                for (int i=0; i<len; i++) {
+                    body += measure(normalize(ja.opt(i)));
+                }
+                bodyLength.put(ja, Integer.valueOf(body));
+                return 1 + varIntLength(len) + 4 + body;
+            }
+            if (value instanceof String) {
+                int len = utf8Length((String) value);
+                return 1 + varIntLength(len) + len;
+            }
+            if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                return 5;
+            }
+            if (value instanceof Long) {
+                return 9;
+            }
+            if (value instanceof Double || value instanceof Float) {
+                return 9;
+            }
+            if (value instanceof Number) {
+                int len = utf8Length(JSONObject.numberToString((Number) value));
+                return 1 + varIntLength(len) + len;
+            }
+            //null, true, false
+            return 1;
+        }
+
+        void writeHeader(OutputStream os) throws Exception {
+            os.write('P');
+            os.write('J');
+            os.write('B');
+            os.write(VERSION);
+            writeVarInt(os, keys.size());
+            for (String key : keys) {
+                writeString(os, key);
+            }
+        }
+
+        void writeValue(OutputStream os, Object value) throws Exception {
+            if (value instanceof JSONObject) {
+                JSONObject jo = (JSONObject) value;
+                Integer body = bodyLength.get(jo);
+                if (body == null) {
+                    //this was created by normalize, so measure it now
+                    measure(jo);
+                    body = bodyLength.get(jo);
+                }
+                os.write(TAG_OBJECT);
+                writeVarInt(os, jo.length());
+                writeInt(os, body.intValue());
+                for (String key : jo.keySet()) {
+                    writeVarInt(os, keyIndex.get(key).intValue());
+                    writeValue(os, normalize(jo.opt(key)));
+                }
+            }
+            else if (value instanceof JSONArray) {
+                JSONArray ja = (JSONArray) value;
+                Integer body = bodyLength.get(ja);
+                if (body == null) {
+                    measure(ja);
+                    body = bodyLength.get(ja);
+                }
+                int len = ja.length();
+                os.write(TAG_ARRAY);
+                writeVarInt(os, len);
+                writeInt(os, body.intValue());
+                for (int i=0; i<len; i++) {
+                    writeValue(os, normalize(ja.opt(i)));
+                }
+            }
+            else if (value instanceof String) {
+                os.write(TAG_STRING);
+                writeString(os, (String) value);
+            }
+            else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                os.write(TAG_INT);
+                writeInt(os, ((Number) value).intValue());
+            }
+            else if (value instanceof Long) {
+                os.write(TAG_LONG);
+                writeLong(os, ((Long) value).longValue());
+            }
+            else if (value instanceof Double || value instanceof Float) {
+                JSONObject.testValidity(value);
+                os.write(TAG_DOUBLE);
+                writeLong(os, Double.doubleToLongBits(((Number) value).doubleValue()));
+            }
+            else if (value instanceof Number) {
+                os.write(TAG_NUMBER);
+                writeString(os, JSONObject.numberToString((Number) value));
+            }
+            else if (Boolean.TRUE.equals(value)) {
+                os.write(TAG_TRUE);
+            }
+            else if (Boolean.FALSE.equals(value)) {
+                os.write(TAG_FALSE);
+            }
+            else {
+                os.write(TAG_NULL);
+            }
+        }
+
+        /**
+         * Writes the length and the UTF-8 bytes.  Unpaired surrogates are written
+         * as '?' the same way that the standard UTF-8 encoder does it.
+         */
+        void writeString(OutputStream os, String s) throws Exception {
+            int byteLen = utf8Length(s);
+            writeVarInt(os, byteLen);
+            if (scratch.length < byteLen) {
+                scratch = new byte[byteLen];
+            }
+            byte[] buf = scratch;
+            int pos = 0;
+            int len = s.length();
+            for (int i=0; i<len; i++) {
+                char ch = s.charAt(i);
+                if (ch < 0x80) {
+                    buf[pos++] = (byte) ch;
+                }
+                else if (ch < 0x800) {
+                    buf[pos++] = (byte) (0xC0 | (ch >> 6));
+                    buf[pos++] = (byte) (0x80 | (ch & 0x3F));
+                }
+                else if (Character.isHighSurrogate(ch) && i+1<len && Character.isLowSurrogate(s.charAt(i+1))) {
+                    int cp = Character.toCodePoint(ch, s.charAt(++i));
+                    buf[pos++] = (byte) (0xF0 | (cp >> 18));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+                }
+                else if (Character.isSurrogate(ch)) {
+                    buf[pos++] = (byte) '?';
+                }
+                else {
+                    buf[pos++] = (byte) (0xE0 | (ch >> 12));
+                    buf[pos++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (ch & 0x3F));
+                }
+            }
+            os.write(buf, 0, pos);
+        }
+    }
+
+    private static int utf8Length(String s) {
+        int total = 0;
+        int len = s.length();
+        for (int i=0; i<len; i++) {
+            char ch = s.charAt(i);
+            if (ch < 0x80) {
+                total += 1;
+            }
+            else if (ch < 0x800) {
+                total += 2;
+            }
+            else if (Character.isHighSurrogate(ch) && i+1<len && Character.isLowSurrogate(s.charAt(i+1))) {
+                total += 4;
+                i++;
+            }
+            else if (Character.isSurrogate(ch)) {
+                total += 1;
+            }
+            else {
+                total += 3;
+            }
+        }
+        return total;
+    }
+
+    private static int varIntLength(int val) {
+        int count = 1;
+        while ((val & ~0x7F) != 0) {
+            val = val >>> 7;
+            count++;
+        }
+        return count;
+    }
+
+    private static void writeVarInt(OutputStream os, int val) throws IOException {
+        while ((val & ~0x7F) != 0) {
+            os.write((val & 0x7F) | 0x80);
+            val = val >>> 7;
+        }
+        os.write(val);
+    }
+
+    private static void writeInt(OutputStream os, int val) throws IOException {
+        os.write(val >>> 24);
+        os.write(val >>> 16);
+        os.write(val >>> 8);
+        os.write(val);
+    }
+
+    private static void writeLong(OutputStream os, long val) throws IOException {
+        writeInt(os, (int) (val >>> 32));
+        writeInt(os, (int) val);
+    }
+
+
+    /**
+     * Reads one binary tree from a stream.  The dictionary is read when
+     * the decoder is constructed.
+     */
+    private static class Decoder {
+        DataInputStream dis;
+        String[] keys;
+        byte[] scratch = new byte[1024];
+
+        Decoder(InputStream is) throws Exception {
+            dis = new DataInputStream(is);
+            if (dis.read()!='P' || dis.read()!='J' || dis.read()!='B') {
+                throw new JSONException("Stream does not contain binary JSON, the header is missing");
+            }
+            int version = dis.read();
+            if (version != VERSION) {
+                throw new JSONException("Binary JSON version {0} is not supported", Integer.valueOf(version));
+            }
+            int count = readVarInt();
+            keys = new String[count];
+            for (int i=0; i<count; i++) {
+                keys[i] = readString();
+            }
+        }
+
+        Object readValue() throws Exception {
+            return readValue(dis.read());
+        }
+
+        Object readValue(int tag) throws Exception {
+            switch (tag) {
+            case TAG_NULL:
+                return JSONObject.NULL;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_INT:
+                return Integer.valueOf(dis.readInt());
+            case TAG_LONG:
+                return Long.valueOf(dis.readLong());
+            case TAG_DOUBLE:
+                return Double.valueOf(dis.readDouble());
+            case TAG_STRING:
+                return readString();
+            case TAG_NUMBER:
+                return JSONObject.stringToValue(readString());
+            case TAG_OBJECT: {
+                int count = readVarInt();
+                dis.readInt();   //body length, not needed when reading everything
+                JSONObject jo = new JSONObject();
+                for (int i=0; i<count; i++) {
+                    String key = keys[readVarInt()];
+                    jo.put(key, readValue());
+                }
+                return jo;
+            }
+            case TAG_ARRAY: {
+                int count = readVarInt();
+                dis.readInt();
+                JSONArray ja = new JSONArray();
+                for (int i=0; i<count; i++) {
+                    ja.put(readValue());
+                }
+                return ja;
+            }
+            case -1:
+                throw new EOFException("Binary JSON stream ended in the middle of a value");
+            default:
+                throw new JSONException("Binary JSON stream contains unknown type tag {0}", Integer.valueOf(tag));
+            }
+        }
+
+        /**
+         * Walk down the named members, skipping everything else.
+         */
+        Object findValue(List<String> names, int index) throws Exception {
+            int tag = dis.read();
+            if (index >= names.size()) {
+                return readValue(tag);
+            }
+            if (tag != TAG_OBJECT) {
+                return null;
+            }
+            int count = readVarInt();
+            dis.readInt();
+            String target = names.get(index);
+            for (int i=0; i<count; i++) {
+                String key = keys[readVarInt()];
+                if (target.equals(key)) {
+                    return findValue(names, index+1);
+                }
+                skipValue();
+            }
+            return null;
+        }
+
+        void skipValue() throws Exception {
+            int tag = dis.read();
+            switch (tag) {
+            case TAG_NULL:
+            case TAG_FALSE:
+            case TAG_TRUE:
+                return;
+            case TAG_INT:
+                skipFully(4);
+                return;
+            case TAG_LONG:
+            case TAG_DOUBLE:
+                skipFully(8);
+                return;
+            case TAG_STRING:
+            case TAG_NUMBER:
+                skipFully(readVarInt());
+                return;
+            case TAG_OBJECT:
+            case TAG_ARRAY:
+                readVarInt();
+                skipFully(dis.readInt());
+                return;
+            default:
+                throw new JSONException("Binary JSON stream contains unknown type tag {0}", Integer.valueOf(tag));
+            }
+        }
+
+        void skipFully(int amt) throws Exception {
+            while (amt > 0) {
+                int skipped = dis.skipBytes(amt);
+                if (skipped <= 0) {
+                    throw new EOFException("Binary JSON stream ended while skipping a value");
+                }
+                amt -= skipped;
+            }
+        }
+
+        int readVarInt() throws Exception {
+            int result = 0;
+            int shift = 0;
+            while (true) {
+                int b = dis.read();
+                if (b < 0) {
+                    throw new EOFException("Binary JSON stream ended in the middle of a number");
+                }
+                result |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+                shift += 7;
+            }
+        }
+
+        String readString() throws Exception {
+            int len = readVarInt();
+            if (scratch.length < len) {
+                scratch = new byte[len];
+            }
+            dis.readFully(scratch, 0, len);
+            return new String(scratch, 0, len, "UTF-8");
+        }
+    }
+
+}
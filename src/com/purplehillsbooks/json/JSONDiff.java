@@ -3,9 +3,17 @@ package com.purplehillsbooks.json;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import com.purplehillsbooks.json.JSONArray;
 import com.purplehillsbooks.json.JSONObject;
 import com.purplehillsbooks.streams.CSVHelper;
@@ -27,7 +35,9 @@ import com.purplehillsbooks.streams.CSVHelper;
  * array will be compared in exactly the order they are found, but this might or might
  * not be useful.  No attempt is made to find a canonical order for the array elements.
  * The path is constructed using the index in square bracket (e.g. [0], [1], etc.)
- * so that the path is once again unique to specify that value.</p>
+ * so that the path is once again unique to specify that value.
+ * For arrays of records, use setArrayKey to match the records by an id member
+ * instead, or setMatchArrayContent to skip over the elements that did not change.</p>
  *
  * <p>The output is a three column CSV file.   The first column is the full path key,
  * the second is the value from the first json object,
@@ -99,6 +109,14 @@ import com.purplehillsbooks.streams.CSVHelper;
  * all keys found will be reported, even if the two input files have the same
  * value for that key.   reportAll=false will output ONLY the keys that the
  * two files have different values for.</p>
+ *
+ * <p>With reportAll=false, nested objects and arrays that are equal are skipped
+ * without reporting anything in them.  If both documents are frozen, the
+ * structural hash of each subtree is remembered, and a subtree that changed is
+ * recognized by its hash without walking it again.  When the second document was
+ * made from the first with thaw() and editJSONObject(), the unchanged subtrees are
+ * the same instances and are skipped at once, so the comparison takes time in
+ * proportion to the part that changed.</p>
 
  * <h1>Augmented Output</h1>
  *
@@ -118,6 +136,10 @@ import com.purplehillsbooks.streams.CSVHelper;
 
  *    <pre>"key111": "(*)This is a Value"</pre>
 
+ * <p>A frozen object in the second tree can not be changed, so it is not
+ * extended.  This includes the objects shared through thaw().  The rows
+ * reported are the same either way.</p>
+
 
  * <h1>Command Line Arguments</h1>
  *
@@ -138,10 +160,26 @@ import com.purplehillsbooks.streams.CSVHelper;
  *
  * <p>The augmented object output will be written to second file name with ".augment.json" on the end.
  * In the example above, the file would be written to <tt>Second-File.json.augment.json</tt></p>
+
+ * <h1>Large Documents</h1>
+ *
+ * <p>Instead of collecting the whole table in memory, the rows can be passed to a
+ * JSONDiffSink as they are produced, for example one that writes CSV directly to a file:</p>
+ *
+ * <pre>
+ * jdiff.createDiff(ob1, ob2, JSONDiff.csvSink(writer));
+ * </pre>
+ *
+ * <p>With setParallelThreads, the members of the top level object that hold objects
+ * or arrays are compared at the same time on several threads.  The rows are still
+ * delivered to the sink in the same order as the single threaded comparison.</p>
  */
 public class JSONDiff {
 
     boolean includeAll = true;
+    int parallelThreads = 1;
+    String arrayKey = null;
+    boolean matchArrayContent = false;
 
  /**
  * <p>The boolean parameter on the constructor defines whether to include all
@@ -154,6 +192,40 @@ public class JSONDiff {
         includeAll = reportAll;
     }
 
+/**
+* <p>Compare the members of the top level object on this many threads at once.
+* The default is 1, which compares everything on the calling thread.
+* This only helps when the top level has many large objects or arrays.</p>
+*/
+    public void setParallelThreads(int threads) {
+        parallelThreads = threads;
+    }
+
+/**
+* <p>Match the elements of arrays by the value of this member instead of by
+* their position.  This applies to every array where all the elements are objects
+* that have a value for this member.  The path of a matched element shows the key
+* instead of the index, for example <tt>users[id=u1234]</tt>, so inserting or
+* removing one record reports only that record.  Other arrays are compared by
+* position.</p>
+*/
+    public void setArrayKey(String keyMember) {
+        arrayKey = keyMember;
+    }
+
+/**
+* <p>For arrays compared by position, skip over the elements that are equal at
+* the start and the end of both arrays, and compare only the part in the middle
+* that differs.  An element inserted at the front of a long array is then
+* reported as a single change, instead of every following element being reported
+* as changed.  This takes linear time, and it is not a complete longest common
+* subsequence match: two separate changes far apart will have the elements
+* between them compared by position.</p>
+*/
+    public void setMatchArrayContent(boolean matchContent) {
+        matchArrayContent = matchContent;
+    }
+
 /**
 * <p>Creates a table that represents the difference of the two JSON objects
 * passed in. The table is a list of rows, and each row is a triplet of Strings
@@ -164,9 +236,39 @@ public class JSONDiff {
 * the third column is the corresponding value from the second json object</p>
 */
     public List<List<String>> createDiff(JSONObject ob1, JSONObject ob2) throws Exception {
-        List<List<String>> table = new ArrayList<List<String>>();
-        addRecursive(table, "", ob1, ob2);
-        return table;
+        TableSink table = new TableSink();
+        createDiff(ob1, ob2, table);
+        return table.table;
+    }
+
+/**
+* <p>Compares the two JSON objects and passes each row of the difference to the sink
+* as soon as it is found, in the same order as the table from the other createDiff.
+* Nothing is accumulated, so this can be used for documents of any size.</p>
+*/
+    public void createDiff(JSONObject ob1, JSONObject ob2, JSONDiffSink sink) throws Exception {
+        if (parallelThreads > 1) {
+            addTopLevelParallel(sink, ob1, ob2);
+        }
+        else {
+            addRecursive(sink, "", ob1, ob2);
+        }
+    }
+
+/**
+* <p>Returns a sink that writes each row as a line of CSV to the writer,
+* in the same format as CSVHelper.writeTable.</p>
+*/
+    public static JSONDiffSink csvSink(final Writer w) {
+        return new JSONDiffSink() {
+            public void addRow(String path, String value1, String value2) throws Exception {
+                List<String> row = new ArrayList<String>(3);
+                row.add(path);
+                row.add(value1);
+                row.add(value2);
+                CSVHelper.writeLine(w, row);
+            }
+        };
     }
 
 
@@ -214,9 +316,7 @@ public class JSONDiff {
                 obj2 = JSONObject.readFromFile(file2);
             }
             JSONDiff jdiff = new JSONDiff(doAllRows);
-            List<List<String>> table = new ArrayList<List<String>>();
-            jdiff.addRow(table, "DIFF", fileName1, fileName2);
-            jdiff.addRecursive(table, "", obj1, obj2);
+            jdiff.setParallelThreads(Runtime.getRuntime().availableProcessors());
 
             File fileOut = new File(fileName2+"diff.csv");
             if (fileOut.exists()) {
@@ -224,7 +324,9 @@ public class JSONDiff {
             }
             FileOutputStream fos = new FileOutputStream(fileOut);
             OutputStreamWriter osw = new OutputStreamWriter(fos, "UTF-8");
-            CSVHelper.writeTable(osw, table);
+            JSONDiffSink sink = csvSink(osw);
+            sink.addRow("DIFF", fileName1, fileName2);
+            jdiff.createDiff(obj1, obj2, sink);
             osw.flush();
             osw.close();
 
@@ -256,9 +358,103 @@ public class JSONDiff {
         return o.toString();
     }
 
+    /**
+     * Tells whether comparing the two values would produce no rows, so that
+     * they can be skipped.  This is stricter than deepEquals: simple values are
+     * compared the way the rows show them, so 1 and 1.0 are different.
+     * Two frozen trees with different structural hashes can not be the same,
+     * and are rejected without walking them.
+     */
+    private static boolean sameForDiff(Object a, Object b) throws Exception {
+        if (a == b) {
+            return true;
+        }
+        if (a instanceof JSONObject) {
+            if (!(b instanceof JSONObject)) {
+                return false;
+            }
+            JSONObject jo1 = (JSONObject)a;
+            JSONObject jo2 = (JSONObject)b;
+            if (jo1.length() != jo2.length()) {
+                return false;
+            }
+            if (jo1.isFrozen() && jo2.isFrozen() && jo1.structuralHash() != jo2.structuralHash()) {
+                return false;
+            }
+            for (String key : jo1.keySet()) {
+                if (!jo2.has(key) || !sameForDiff(jo1.opt(key), jo2.opt(key))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (a instanceof JSONArray) {
+            if (!(b instanceof JSONArray)) {
+                return false;
+            }
+            JSONArray ja1 = (JSONArray)a;
+            JSONArray ja2 = (JSONArray)b;
+            int len = ja1.length();
+            if (len != ja2.length()) {
+                return false;
+            }
+            if (ja1.isFrozen() && ja2.isFrozen() && ja1.structuralHash() != ja2.structuralHash()) {
+                return false;
+            }
+            for (int i=0; i<len; i++) {
+                if (!sameForDiff(ja1.opt(i), ja2.opt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (a == null || b == null || b instanceof JSONObject || b instanceof JSONArray) {
+            return false;
+        }
+        return smartValue(a).equals(smartValue(b));
+    }
+
+
+    /**
+     * Merge the sorted keys of both objects into one sorted list without duplicates.
+     */
+    private static List<String> mergedKeys(JSONObject ob1, JSONObject ob2) {
+        List<String> keys1 = ob1.sortedKeySet();
+        List<String> keys2 = ob2.sortedKeySet();
+        int size1 = keys1.size();
+        int size2 = keys2.size();
+        List<String> allKeys = new ArrayList<String>(size1 + size2);
+        int i = 0;
+        int j = 0;
+        while (i < size1 && j < size2) {
+            String k1 = keys1.get(i);
+            String k2 = keys2.get(j);
+            int comp = k1.compareTo(k2);
+            if (comp < 0) {
+                allKeys.add(k1);
+                i++;
+            }
+            else if (comp > 0) {
+                allKeys.add(k2);
+                j++;
+            }
+            else {
+                allKeys.add(k1);
+                i++;
+                j++;
+            }
+        }
+        while (i < size1) {
+            allKeys.add(keys1.get(i++));
+        }
+        while (j < size2) {
+            allKeys.add(keys2.get(j++));
+        }
+        return allKeys;
+    }
+
 
-    private void addRecursive(List<List<String>> table, String baseKey, JSONObject ob1, JSONObject ob2) throws Exception {
-        List<String> allKeys = new ArrayList<String>();
+    private void addRecursive(JSONDiffSink sink, String baseKey, JSONObject ob1, JSONObject ob2) throws Exception {
 
         //a null is treated the same as an empty object
         if (ob1==null) {
@@ -268,141 +464,334 @@ public class JSONDiff {
             ob2 = new JSONObject();
         }
 
-        //find all the keys and sort them
-        for (String key : ob1.keySet()) {
-            if (!allKeys.contains(key)) {
-                allKeys.add(key);
-            }
+        //iterate the keys
+        for (String key : mergedKeys(ob1, ob2)) {
+            addMember(sink, baseKey, key, ob1, ob2);
         }
-        for (String key : ob2.keySet()) {
-            if (!allKeys.contains(key)) {
-                allKeys.add(key);
+    }
+
+    /**
+     * Compare the values of one key of the two objects
+     */
+    private void addMember(JSONDiffSink sink, String baseKey, String key, JSONObject ob1, JSONObject ob2) throws Exception {
+        Object o1 = ob1.opt(key);
+        Object o2 = ob2.opt(key);
+        if (o1 == null) {
+            if (o2 == null) {
+                //there is a silly situation where you put in the JSON the null value
+                //and we want to just ignore those.
+                return;
+            }
+            else if (o2 instanceof JSONObject) {
+                addRecursive(sink, baseKey + key + ".", null, (JSONObject)o2);
+            }
+            else if (o2 instanceof JSONArray) {
+                iterateArray(sink, baseKey + key + "[", null, (JSONArray)o2);
+            }
+            else {
+                addRow(sink, baseKey + key, smartValue(o1), smartValue(o2));
             }
         }
-        Collections.sort(allKeys);
-
-        //iterate the keys
-        for (String key : allKeys) {
-            Object o1 = ob1.opt(key);
-            Object o2 = ob2.opt(key);
-            String val1 = smartValue(o1);
-            String val2 = smartValue(o2);
-            if (o1 == null) {
-                if (o2 == null) {
-                    //there is a silly situation where you put in the JSON the null value
-                    //and we want to just ignore those.
-                    continue;
-                }
-                else if (o2 instanceof JSONObject) {
-                    addRecursive(table, baseKey + key + ".", null, (JSONObject)o2);
+        else if (o1 instanceof JSONObject) {
+            if (o2!=null && o2 instanceof JSONObject) {
+                if (!includeAll && sameForDiff(o1, o2)) {
+                    //identical subtrees produce no rows, and need nothing augmented
+                    return;
                 }
-                else if (o2 instanceof JSONArray) {
-                    iterateArray(table, baseKey + key + "[", null, (JSONArray)o2);
-                }
-                else {
-                    addRow(table, baseKey + key, val1, val2);
+                //if they are both objects then drill down
+                addRecursive(sink, baseKey + key + ".", (JSONObject)o1, (JSONObject)o2);
+            }
+            else if (o2==null) {
+                //the object is missing to add it
+                if (!ob2.isFrozen()) {
+                    ob2.put(key, new JSONObject());
                 }
+                addRecursive(sink, baseKey + key + ".", (JSONObject)o1, null);
             }
-            else if (o1 instanceof JSONObject) {
-                if (o2!=null && o2 instanceof JSONObject) {
-                    //if they are both objects then drill down
-                    addRecursive(table, baseKey + key + ".", (JSONObject)o1, (JSONObject)o2);
+            else {
+                //a conflicting value exists, so treat like null
+                addRecursive(sink, baseKey + key + ".", (JSONObject)o1, null);
+            }
+
+        }
+        else if (o1 instanceof JSONArray) {
+            if (o2!=null && o2 instanceof JSONArray) {
+                if (!includeAll && sameForDiff(o1, o2)) {
+                    return;
                 }
-                else if (o2==null) {
-                    //the object is missing to add it
-                    JSONObject replace = new JSONObject();
+                iterateArray(sink, baseKey + key + "[", (JSONArray)o1, (JSONArray)o2);
+            }
+            else if (o2==null) {
+                //the object is missing to add it
+                JSONArray replace = new JSONArray();
+                if (!ob2.isFrozen()) {
                     ob2.put(key, replace);
-                    addRecursive(table, baseKey + key + ".", (JSONObject)o1, null);
-                }
-                else {
-                    //a conflicting value exists, so treat like null
-                    addRecursive(table, baseKey + key + ".", (JSONObject)o1, null);
                 }
+                iterateArray(sink, baseKey + key + "[", (JSONArray)o1, replace);
+            }
+            else {
+                //in all other cases have to consider o2 to be null
+                iterateArray(sink, baseKey + key + "[", (JSONArray)o1, null);
+            }
+        }
+        else {
+            String val1 = smartValue(o1);
+            addRow(sink, baseKey + key, val1, smartValue(o2));
+            if (o2==null && !ob2.isFrozen()) {
+                //in this case put a value in the place
+                ob2.put(key, "(*)"+val1);
+            }
+        }
+    }
+
 
+    /**
+     * Members holding objects or arrays are compared on a pool of threads, each
+     * collecting its own rows.  Every change to the top level of the second object
+     * is made on this thread before any of the tasks start: missing objects and arrays
+     * are added empty, and simple values are compared and filled in.  After that the
+     * tasks only read the top level, and each one changes only its own subtree.
+     * The rows are passed to the sink in key order.
+     */
+    private void addTopLevelParallel(JSONDiffSink sink, final JSONObject ob1, JSONObject ob2In) throws Exception {
+        final JSONObject ob2 = ob2In == null ? new JSONObject() : ob2In;
+        List<String> allKeys = mergedKeys(ob1, ob2);
+        int keyCount = allKeys.size();
+
+        //simpleRows holds the rows of each key that is not compared by a task
+        final Set<String> missing = new HashSet<String>();
+        TableSink[] simpleRows = new TableSink[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            String key = allKeys.get(i);
+            Object o1 = ob1.opt(key);
+            Object o2 = ob2.opt(key);
+            boolean container = (o1 instanceof JSONObject || o1 instanceof JSONArray)
+                    || (o1 == null && (o2 instanceof JSONObject || o2 instanceof JSONArray));
+            if (!container) {
+                simpleRows[i] = new TableSink();
+                addMember(simpleRows[i], "", key, ob1, ob2);
             }
-            else if (o1 instanceof JSONArray) {
-                if (o2!=null && o2 instanceof JSONArray) {
-                    iterateArray(table, baseKey + key + "[", (JSONArray)o1, (JSONArray)o2);
-                }
-                else if (o2==null) {
-                    //the object is missing to add it
-                    JSONArray replace = new JSONArray();
-                    ob2.put(key, replace);
-                    iterateArray(table, baseKey + key + "[", (JSONArray)o1, replace);
+            else if (o2 == null && !ob2.isFrozen()) {
+                //add the missing container the same way that addMember would
+                if (o1 instanceof JSONObject) {
+                    ob2.put(key, new JSONObject());
                 }
                 else {
-                    //in all other cases have to consider o2 to be null
-                    iterateArray(table, baseKey + key + "[", (JSONArray)o1, null);
+                    ob2.put(key, new JSONArray());
                 }
+                missing.add(key);
             }
-            else {
-                addRow(table, baseKey + key, val1, val2);
-                if (o2==null) {
-                    //in this case put a value in the place
-                    ob2.put(key, "(*)"+val1);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(parallelThreads);
+        try {
+            List<Future<TableSink>> results = new ArrayList<Future<TableSink>>(keyCount);
+            for (int i = 0; i < keyCount; i++) {
+                if (simpleRows[i] != null) {
+                    results.add(null);
+                    continue;
+                }
+                final String key = allKeys.get(i);
+                final boolean wasMissing = missing.contains(key);
+                results.add(pool.submit(new Callable<TableSink>() {
+                    public TableSink call() throws Exception {
+                        TableSink rows = new TableSink();
+                        Object val1 = ob1.opt(key);
+                        if (wasMissing && val1 instanceof JSONObject) {
+                            addRecursive(rows, key + ".", (JSONObject)val1, null);
+                        }
+                        else {
+                            addMember(rows, "", key, ob1, ob2);
+                        }
+                        return rows;
+                    }
+                }));
+            }
+            for (int i = 0; i < keyCount; i++) {
+                TableSink rows = simpleRows[i];
+                if (rows == null) {
+                    try {
+                        rows = results.get(i).get();
+                    }
+                    catch (ExecutionException e) {
+                        throw new Exception("Unable to compare the values of key: "+allKeys.get(i), e.getCause());
+                    }
+                }
+                for (List<String> row : rows.table) {
+                    sink.addRow(row.get(0), row.get(1), row.get(2));
                 }
             }
         }
+        finally {
+            pool.shutdownNow();
+        }
     }
 
-    private void addRow(List<List<String>> table, String v1, String v2, String v3) {
+
+    private void addRow(JSONDiffSink sink, String v1, String v2, String v3) throws Exception {
         if (includeAll || !v2.equals(v3)) {
-            List<String> row = new ArrayList<String>();
-            row.add(v1);
-            row.add(v2);
-            row.add(v3);
-            table.add(row);
+            sink.addRow(v1, v2, v3);
         }
     }
 
-    private void iterateArray(List<List<String>> table, String baseKey, JSONArray ja1, JSONArray ja2) throws Exception {
+    private void iterateArray(JSONDiffSink sink, String baseKey, JSONArray ja1, JSONArray ja2) throws Exception {
+        if (ja1==null) {
+            ja1 = new JSONArray();
+        }
         if (ja2==null) {
             ja2 = new JSONArray();
         }
-        int size = ja1.length();
-        if (ja2.length()>size) {
-            size = ja2.length();
+        if (arrayKey!=null && isKeyedArray(ja1) && isKeyedArray(ja2)) {
+            iterateKeyedArray(sink, baseKey, ja1, ja2);
+            return;
+        }
+        int len1 = ja1.length();
+        int len2 = ja2.length();
+
+        //with content matching, the equal elements at the start and end are
+        //not compared pairwise, so an insert or delete only reports the change
+        int start = 0;
+        int end1 = len1;
+        int end2 = len2;
+        if (matchArrayContent) {
+            while (start<end1 && start<end2 && sameForDiff(ja1.opt(start), ja2.opt(start))) {
+                start++;
+            }
+            while (end1>start && end2>start && sameForDiff(ja1.opt(end1-1), ja2.opt(end2-1))) {
+                end1--;
+                end2--;
+            }
+            if (includeAll) {
+                for (int i=0; i<start; i++) {
+                    compareElement(sink, baseKey+i+"]", ja1.opt(i), ja2.opt(i));
+                }
+            }
         }
 
-        for (int i=0; i<size; i++) {
+        int size = Math.max(end1 - start, end2 - start);
+        for (int k=0; k<size; k++) {
             Object o1 = null;
-            if (i<ja1.length()) {
-                o1 = ja1.get(i);
+            if (start+k<end1) {
+                o1 = ja1.opt(start+k);
             }
             Object o2 = null;
-            if (i<ja2.length()) {
-                o2 = ja1.get(i);
+            if (start+k<end2) {
+                o2 = ja2.opt(start+k);
             }
-            if (o1==null) {
-                if (o2==null) {
-                    continue;
-                }
-                else if (o2 instanceof JSONObject) {
-                    addRecursive(table, baseKey+i+"]", null, (JSONObject)o2);
-                }
+            compareElement(sink, baseKey+(start+k)+"]", o1, o2);
+        }
+
+        if (matchArrayContent && includeAll) {
+            for (int i=end1; i<len1; i++) {
+                compareElement(sink, baseKey+i+"]", ja1.opt(i), ja2.opt(i - end1 + end2));
             }
-            else if (o1 instanceof JSONObject) {
-                if (o2!=null && o2 instanceof JSONObject) {
-                    addRecursive(table, baseKey+i+"]", (JSONObject)o1, (JSONObject)o2);
-                }
-                else {
-                    addRecursive(table, baseKey+i+"]", (JSONObject)o1, null);
-                }
+        }
+    }
+
+    private void compareElement(JSONDiffSink sink, String path, Object o1, Object o2) throws Exception {
+        if (o1==null) {
+            if (o2==null) {
+                return;
             }
-            else if (o1 instanceof JSONArray) {
-                if (o2!=null && o2 instanceof JSONArray) {
-                    iterateArray(table, baseKey+i+"][", (JSONArray)o1, (JSONArray)o2);
-                }
-                else {
-                    iterateArray(table, baseKey+i+"][", (JSONArray)o1, null);
+            else if (o2 instanceof JSONObject) {
+                addRecursive(sink, path, null, (JSONObject)o2);
+            }
+            else if (o2 instanceof JSONArray) {
+                iterateArray(sink, path+"[", null, (JSONArray)o2);
+            }
+            else {
+                addRow(sink, path, smartValue(o1), smartValue(o2));
+            }
+        }
+        else if (o1 instanceof JSONObject) {
+            if (o2!=null && o2 instanceof JSONObject) {
+                if (!includeAll && sameForDiff(o1, o2)) {
+                    return;
                 }
+                addRecursive(sink, path, (JSONObject)o1, (JSONObject)o2);
+            }
+            else {
+                addRecursive(sink, path, (JSONObject)o1, null);
+            }
+        }
+        else if (o1 instanceof JSONArray) {
+            if (o2!=null && o2 instanceof JSONArray) {
+                iterateArray(sink, path+"[", (JSONArray)o1, (JSONArray)o2);
             }
             else {
-                addRow(table,  baseKey+i+"]", smartValue(o1), smartValue(o2));
+                iterateArray(sink, path+"[", (JSONArray)o1, null);
             }
         }
+        else {
+            addRow(sink, path, smartValue(o1), smartValue(o2));
+        }
     }
 
+    /**
+     * An array can be matched by key if every element is an object
+     * with a value for the key member.
+     */
+    private boolean isKeyedArray(JSONArray ja) {
+        int len = ja.length();
+        for (int i=0; i<len; i++) {
+            Object o = ja.opt(i);
+            if (!(o instanceof JSONObject)
+                    || JSONArrayIndex.keyString(((JSONObject)o).opt(arrayKey))==null) {
+                return false;
+            }
+        }
+        return true;
+    }
 
+    /**
+     * Records are paired up by the value of the key member.  Records of the
+     * first array are reported in their order, followed by the records that
+     * are only in the second array, in their order.
+     */
+    private void iterateKeyedArray(JSONDiffSink sink, String baseKey, JSONArray ja1, JSONArray ja2) throws Exception {
+        int len1 = ja1.length();
+        int len2 = ja2.length();
+        HashMap<String,JSONObject> second = new HashMap<String,JSONObject>(len2*4/3+1);
+        for (int i=0; i<len2; i++) {
+            JSONObject rec = (JSONObject) ja2.opt(i);
+            String key = JSONArrayIndex.keyString(rec.opt(arrayKey));
+            if (!second.containsKey(key)) {
+                second.put(key, rec);
+            }
+        }
+        Set<String> seen = new HashSet<String>(len1*4/3+1);
+        for (int i=0; i<len1; i++) {
+            JSONObject rec1 = (JSONObject) ja1.opt(i);
+            String key = JSONArrayIndex.keyString(rec1.opt(arrayKey));
+            if (!seen.add(key)) {
+                //duplicate key in the first array, only the first is compared
+                continue;
+            }
+            compareElement(sink, baseKey+arrayKey+"="+key+"]", rec1, second.get(key));
+        }
+        for (int i=0; i<len2; i++) {
+            JSONObject rec2 = (JSONObject) ja2.opt(i);
+            String key = JSONArrayIndex.keyString(rec2.opt(arrayKey));
+            if (seen.add(key)) {
+                compareElement(sink, baseKey+arrayKey+"="+key+"]", null, rec2);
+            }
+        }
+    }
+
+
+    /**
+     * Collects the rows into a table in memory
+     */
+    private static class TableSink implements JSONDiffSink {
+        List<List<String>> table = new ArrayList<List<String>>();
+
+        public void addRow(String path, String value1, String value2) {
+            List<String> row = new ArrayList<String>(3);
+            row.add(path);
+            row.add(value1);
+            row.add(value2);
+            table.add(row);
+        }
+    }
 
 }
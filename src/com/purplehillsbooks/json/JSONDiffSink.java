@@ -0,0 +1,23 @@
+package com.purplehillsbooks.json;
+
+/**
+ * <p>Receives the rows of a JSONDiff comparison as they are produced, so that
+ * the result of comparing large documents can be written out or processed
+ * without holding the whole table in memory.</p>
+ *
+ * <p>Rows are delivered in the same order that they appear in the table
+ * returned by JSONDiff.createDiff, and always from a single thread at a time,
+ * even when the diff is running in parallel.</p>
+ *
+ * @see com.purplehillsbooks.json.JSONDiff
+ */
+public interface JSONDiffSink {
+
+    /**
+     * @param path the full path key of the value
+     * @param value1 the value from the first object
+     * @param value2 the value from the second object
+     */
+    public void addRow(String path, String value1, String value2) throws Exception;
+
+}
@@ -0,0 +1,472 @@
+package com.purplehillsbooks.json;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * <p>Provides random access to the members of a very large JSON file without
+ * reading the whole file into memory.  A scan of the file produces a
+ * sidecar index file that records, for every member of the root object
+ * (and optionally members of nested objects down to a specified depth), the
+ * byte range where the value of that member is found in the file.</p>
+ *
+ * <p>A lookup then memory maps the file, and parses only the bytes of the
+ * requested value with a JSONTokener.  The operating system pages in only the
+ * part of the file that is needed, and only the requested record is ever
+ * placed in the Java heap.</p>
+ *
+ * <pre>
+ * Data file:     c:/a/b/c/reference.json
+ * Index file:    c:/a/b/c/reference.json.idx
+ * </pre>
+ *
+ * <p>The index file is itself a JSON file holding the length and timestamp of
+ * the data file, so that a stale index (from before the data file changed) is
+ * detected and rebuilt automatically when opened.</p>
+ *
+ * <p>Paths are the member names joined with dots, the same way that JSONDiff
+ * forms paths.  With depth 1 only the members of the root object are indexed
+ * ("cust123"), with depth 2 the members of those objects are indexed as well
+ * ("cust123.address").</p>
+ *
+ * <h1>USAGE</h1>
+ *
+ * <pre>
+ * JSONFileIndex index = JSONFileIndex.open(new File("c:/a/b/c/reference.json"));
+ * try {
+ *     JSONObject rec = index.getJSONObject("cust123");
+ *     ...
+ * }
+ * finally {
+ *     index.close();
+ * }
+ * </pre>
+ *
+ * <p>An index object can be shared by multiple threads for lookups.
+ * This class has a main routine so that the index can be built ahead of time
+ * from the command line:</p>
+ *
+ * <pre>JSONFileIndex {json-file-name} [depth]</pre>
+ *
+ * <p>The file must be UTF-8 encoded, and the root must be an object.  Keys
+ * must be quoted.</p>
+ */
+public class JSONFileIndex {
+
+    /**
+     * Regions of the file are mapped in windows of this size, and the windows
+     * are kept for reuse by later lookups.
+     */
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private File dataFile;
+    private File indexFile;
+    private int depth;
+    private HashMap<String,long[]> ranges;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private HashMap<Long,MappedByteBuffer> windows = new HashMap<Long,MappedByteBuffer>();
+
+
+    private JSONFileIndex(File jsonFile, int depth, HashMap<String,long[]> ranges) {
+        this.dataFile  = jsonFile;
+        this.indexFile = getIndexFile(jsonFile);
+        this.depth     = depth;
+        this.ranges    = ranges;
+    }
+
+    /**
+     * The sidecar index file for a particular data file.
+     */
+    public static File getIndexFile(File jsonFile) {
+        return new File(jsonFile.getParentFile(), jsonFile.getName()+".idx");
+    }
+
+    /**
+     * Scan the JSON file, and write a new index file for it.
+     * The index covers the members of objects down to the specified depth,
+     * where depth 1 means only the members of the root object.
+     */
+    public static JSONFileIndex buildIndex(File jsonFile, int depth) throws Exception {
+        if (depth<1) {
+            throw new JSONException("Index depth must be at least 1, got {0}", Integer.valueOf(depth));
+        }
+        try {
+            long length = jsonFile.length();
+            long modified = jsonFile.lastModified();
+            HashMap<String,long[]> ranges = new HashMap<String,long[]>();
+            FileInputStream fis = new FileInputStream(jsonFile);
+            try {
+                Scanner scan = new Scanner(fis, ranges, depth);
+                scan.scanRoot();
+            }
+            finally {
+                fis.close();
+            }
+            JSONFileIndex index = new JSONFileIndex(jsonFile, depth, ranges);
+            index.writeIndexFile(length, modified);
+            return index;
+        }
+        catch (Exception e) {
+            throw new Exception("Unable to build the index for JSON file: "+jsonFile, e);
+        }
+    }
+
+    /**
+     * Open the index for the JSON file.  If there is no index file, or
+     * if the data file has changed since the index was made, then the
+     * index is rebuilt (at depth 1 if there was no index before).
+     */
+    public static JSONFileIndex open(File jsonFile) throws Exception {
+        File idxFile = getIndexFile(jsonFile);
+        if (!idxFile.exists()) {
+            return buildIndex(jsonFile, 1);
+        }
+        JSONObject idx = JSONObject.readFromFile(idxFile);
+        int depth = idx.optInt("depth", 1);
+        if (idx.optLong("length", -1) != jsonFile.length()
+                || idx.optLong("modified", -1) != jsonFile.lastModified()) {
+            return buildIndex(jsonFile, depth);
+        }
+        JSONObject rangeObj = idx.getJSONObject("ranges");
+        HashMap<String,long[]> ranges = new HashMap<String,long[]>(rangeObj.length()*4/3+1);
+        for (String key : rangeObj.keySet()) {
+            JSONArray pair = rangeObj.getJSONArray(key);
+            ranges.put(key, new long[] {pair.getLong(0), pair.getLong(1)});
+        }
+        return new JSONFileIndex(jsonFile, depth, ranges);
+    }
+
+    private void writeIndexFile(long length, long modified) throws Exception {
+        JSONObject idx = new JSONObject();
+        idx.put("length", length);
+        idx.put("modified", modified);
+        idx.put("depth", depth);
+        JSONObject rangeObj = new JSONObject();
+        for (String key : ranges.keySet()) {
+            long[] range = ranges.get(key);
+            rangeObj.put(key, new JSONArray().put(range[0]).put(range[1]));
+        }
+        idx.put("ranges", rangeObj);
+        idx.writeToFile(indexFile);
+    }
+
+
+    /**
+     * Returns the set of all paths that are in the index.
+     */
+    public Set<String> paths() {
+        return ranges.keySet();
+    }
+
+    /**
+     * Tells whether there is a value in the index for the path.
+     */
+    public boolean has(String path) {
+        return ranges.containsKey(path);
+    }
+
+    /**
+     * Returns the value at the path, parsed from the file, which can be a
+     * JSONObject, JSONArray, String, Number, Boolean or JSONObject.NULL.
+     * Returns null if the path is not in the index.
+     */
+    public Object get(String path) throws Exception {
+        long[] range = ranges.get(path);
+        if (range == null) {
+            return null;
+        }
+        try {
+            ByteBuffer bytes = mapRange(range[0], range[1]);
+            CharBuffer chars = StandardCharsets.UTF_8.decode(bytes);
+            JSONTokener jt = new JSONTokener(new CharArrayReader(chars.array(),
+                    chars.arrayOffset()+chars.position(), chars.remaining()));
+            return jt.nextValue();
+        }
+        catch (Exception e) {
+            throw new Exception("Unable to read value ("+path+") from indexed JSON file: "+dataFile, e);
+        }
+    }
+
+    /**
+     * Returns the JSONObject at the path, or null if the path is not in the index.
+     * @throws JSONException if the value at the path is not an object.
+     */
+    public JSONObject getJSONObject(String path) throws Exception {
+        Object o = get(path);
+        if (o == null || o instanceof JSONObject) {
+            return (JSONObject) o;
+        }
+        throw new JSONException("Indexed value ({0}) is not a JSONObject", path);
+    }
+
+    /**
+     * Release the file and the memory mapped regions.  The mapped regions
+     * are released by the garbage collector after this.
+     */
+    public synchronized void close() throws Exception {
+        windows.clear();
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        if (raf != null) {
+            raf.close();
+            raf = null;
+        }
+    }
+
+    /**
+     * Returns a buffer positioned on the byte range.  Ranges that fit in a
+     * window use the shared mapping of the window, otherwise the range is
+     * mapped by itself.
+     */
+    private synchronized ByteBuffer mapRange(long start, long end) throws Exception {
+        if (channel == null) {
+            raf = new RandomAccessFile(dataFile, "r");
+            channel = raf.getChannel();
+        }
+        long winNum = start / WINDOW_SIZE;
+        long winStart = winNum * WINDOW_SIZE;
+        if (end > winStart + WINDOW_SIZE) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, end-start);
+        }
+        Long key = Long.valueOf(winNum);
+        MappedByteBuffer window = windows.get(key);
+        if (window == null) {
+            long winLen = Math.min(WINDOW_SIZE, channel.size() - winStart);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, winStart, winLen);
+            windows.put(key, window);
+        }
+        ByteBuffer view = window.duplicate();
+        view.limit((int) (end - winStart));
+        view.position((int) (start - winStart));
+        return view;
+    }
+
+
+    /**
+     * <p>The command line builds (or rebuilds) the index file:</p>
+     *
+     * <pre>JSONFileIndex {json-file-name} [depth]</pre>
+     */
+    public static void main(String[] args) {
+        try {
+            if (args.length==0) {
+                throw new Exception("Command: JSONFileIndex <jsonfile> [depth]");
+            }
+            File jsonFile = new File(args[0]);
+            if (!jsonFile.exists()) {
+                throw new Exception("Can't find file: "+jsonFile.getCanonicalPath());
+            }
+            int depth = 1;
+            if (args.length>1) {
+                depth = Integer.parseInt(args[1]);
+            }
+            JSONFileIndex index = buildIndex(jsonFile, depth);
+            System.out.println("Indexed "+index.ranges.size()+" values into "+index.indexFile);
+        }
+        catch (Exception e) {
+            System.out.println("##### Failed to Index File");
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * Scans the bytes of the file for the structure, keeping track of the
+     * byte offset.  Since all the structural characters of JSON are ASCII,
+     * this can be done on the UTF-8 bytes without decoding the characters.
+     * Only the keys are decoded.
+     */
+    private static class Scanner {
+        InputStream in;
+        HashMap<String,long[]> ranges;
+        int maxDepth;
+        long pos = 0;
+        int peeked = -2;
+        ByteArrayOutputStream keyBytes = new ByteArrayOutputStream();
+
+        Scanner(InputStream is, HashMap<String,long[]> ranges, int maxDepth) {
+            this.in = new BufferedInputStream(is, 65536);
+            this.ranges = ranges;
+            this.maxDepth = maxDepth;
+        }
+
+        int peek() throws Exception {
+            if (peeked == -2) {
+                peeked = in.read();
+            }
+            return peeked;
+        }
+
+        int read() throws Exception {
+            int b = peek();
+            peeked = -2;
+            if (b >= 0) {
+                pos++;
+            }
+            return b;
+        }
+
+        int nextClean() throws Exception {
+            int b = peek();
+            while (b >= 0 && b <= ' ') {
+                read();
+                b = peek();
+            }
+            return b;
+        }
+
+        JSONException syntaxError(String message) {
+            return new JSONException(message+" at byte "+pos);
+        }
+
+        void scanRoot() throws Exception {
+            if (nextClean() != '{') {
+                throw syntaxError("Indexed JSON file must have an object at the root");
+            }
+            scanMembers("", 1);
+        }
+
+        /**
+         * Positioned on the open brace of an object.  Records the range of
+         * every member, and continues down if not yet at the max depth.
+         */
+        void scanMembers(String prefix, int level) throws Exception {
+            read();   // the open brace
+            int b = nextClean();
+            if (b == '}') {
+                read();
+                return;
+            }
+            while (true) {
+                if (b != '"' && b != '\'') {
+                    throw syntaxError("Expected a quoted key");
+                }
+                String key = readKey();
+                b = nextClean();
+                if (b != ':' && b != '=') {
+                    throw syntaxError("Expected a ':' after a key");
+                }
+                read();
+                b = nextClean();
+                long start = pos;
+                if (b == '{' && level < maxDepth) {
+                    scanMembers(prefix + key + ".", level+1);
+                }
+                else {
+                    skipValue();
+                }
+                ranges.put(prefix + key, new long[] {start, pos});
+                b = nextClean();
+                if (b == ',' || b == ';') {
+                    read();
+                    b = nextClean();
+                    if (b == '}') {
+                        read();
+                        return;
+                    }
+                }
+                else if (b == '}') {
+                    read();
+                    return;
+                }
+                else {
+                    throw syntaxError("Expected a ',' or '}'");
+                }
+            }
+        }
+
+        String readKey() throws Exception {
+            int quote = read();
+            keyBytes.reset();
+            keyBytes.write(quote);
+            boolean escaped = false;
+            while (true) {
+                int b = read();
+                if (b < 0) {
+                    throw syntaxError("Unterminated key string");
+                }
+                keyBytes.write(b);
+                if (b == '\\') {
+                    escaped = true;
+                    keyBytes.write(read());
+                }
+                else if (b == quote) {
+                    break;
+                }
+            }
+            String raw = keyBytes.toString("UTF-8");
+            if (escaped) {
+                return new JSONTokener(raw).nextValue().toString();
+            }
+            return raw.substring(1, raw.length()-1);
+        }
+
+        /**
+         * Skip over an entire value, leaving pos just after the last byte of it.
+         */
+        void skipValue() throws Exception {
+            int b = peek();
+            if (b == '{' || b == '[') {
+                int nest = 0;
+                do {
+                    b = read();
+                    if (b < 0) {
+                        throw syntaxError("File ended inside an object or array");
+                    }
+                    if (b == '"' || b == '\'') {
+                        skipString(b);
+                    }
+                    else if (b == '{' || b == '[') {
+                        nest++;
+                    }
+                    else if (b == '}' || b == ']') {
+                        nest--;
+                    }
+                } while (nest > 0);
+            }
+            else if (b == '"' || b == '\'') {
+                skipString(read());
+            }
+            else {
+                //unquoted scalar, like a number, true, false or null
+                while (b >= 0 && b > ' ' && b != ',' && b != '}' && b != ']' && b != ';') {
+                    read();
+                    b = peek();
+                }
+            }
+        }
+
+        /**
+         * The open quote has already been read
+         */
+        void skipString(int quote) throws Exception {
+            while (true) {
+                int b = read();
+                if (b < 0) {
+                    throw syntaxError("Unterminated string");
+                }
+                if (b == '\\') {
+                    read();
+                }
+                else if (b == quote) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.purplehillsbooks.json;
+
+import java.util.List;
+
+/**
+ * <p>Reads the elements of a JSONArray as primitive numbers, one at a time,
+ * without boxing the values and without throwing and catching exceptions to
+ * find out the type of each element.  Get one from JSONArray.numberCursor().</p>
+ *
+ * <pre>
+ * JSONNumberCursor cursor = myArray.numberCursor();
+ * while (cursor.next()) {
+ *     total += cursor.getDouble();
+ * }
+ * </pre>
+ *
+ * <p>Elements that are strings are parsed as numbers, the same way that
+ * JSONArray.getDouble and getLong do.  Any other kind of element causes
+ * next() to throw a JSONException saying which element it was.</p>
+ */
+public class JSONNumberCursor {
+
+    private final List<Object> list;
+    private int pos = -1;
+    private long longVal;
+    private double doubleVal;
+
+    JSONNumberCursor(List<Object> list) {
+        this.list = list;
+    }
+
+    /**
+     * Move to the next element.
+     * @return false when there are no more elements.
+     * @throws JSONException if the element is not a number or a string that can be parsed as one
+     */
+    public boolean next() throws JSONException {
+        pos++;
+        if (pos >= list.size()) {
+            return false;
+        }
+        Object o = list.get(pos);
+        if (o instanceof Integer || o instanceof Long || o instanceof Short || o instanceof Byte) {
+            longVal = ((Number) o).longValue();
+            doubleVal = longVal;
+        }
+        else if (o instanceof Number) {
+            doubleVal = ((Number) o).doubleValue();
+            longVal = (long) doubleVal;
+        }
+        else if (o instanceof String) {
+            String s = ((String) o).trim();
+            try {
+                if (s.indexOf('.') < 0 && s.indexOf('e') < 0 && s.indexOf('E') < 0) {
+                    //whole numbers are parsed as long so that large values are exact
+                    longVal = Long.parseLong(s);
+                    doubleVal = longVal;
+                }
+                else {
+                    doubleVal = Double.parseDouble(s);
+                    longVal = (long) doubleVal;
+                }
+            }
+            catch (NumberFormatException e) {
+                throw new JSONException("JSONArray[" + pos + "] is not a number.");
+            }
+        }
+        else {
+            throw new JSONException("JSONArray[" + pos + "] is not a number.");
+        }
+        return true;
+    }
+
+    /**
+     * The position in the array of the current element
+     */
+    public int position() {
+        return pos;
+    }
+
+    public long getLong() {
+        return longVal;
+    }
+
+    public int getInt() {
+        return (int) longVal;
+    }
+
+    public double getDouble() {
+        return doubleVal;
+    }
+}
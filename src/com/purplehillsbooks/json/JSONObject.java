@@ -41,8 +41,6 @@ import java.io.OutputStreamWriter;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Field;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -177,6 +175,18 @@ public class JSONObject {
      */
     private final Map<String, Object> map;
 
+    /**
+     * Once frozen, the object and all the objects and arrays within it
+     * can no longer be changed.
+     */
+    private boolean frozen = false;
+
+    /**
+     * The structural hash, remembered only once the object is frozen.
+     * Zero means it has not been calculated.
+     */
+    private volatile long structuralHash = 0;
+
 
     /**
      * It is sometimes more convenient and less ambiguous to have a
@@ -194,6 +204,335 @@ public class JSONObject {
         this.map = new HashMap<String,Object>();
     }
 
+    /**
+     * Construct an empty JSONObject with room for a known number of members
+     */
+    private JSONObject(int expectedSize) {
+        this.map = new HashMap<String,Object>(expectedSize*4/3+1);
+    }
+
+
+    /**
+     * <p>Make this object, and all the objects and arrays contained within it,
+     * permanently unmodifiable.  Any attempt to put or remove a value will
+     * throw an UnsupportedOperationException.</p>
+     *
+     * <p>A frozen tree can be cached and handed out to many threads at the same
+     * time without copying, since no one can change it.  When a caller needs to
+     * make changes, use thaw() to get a modifiable copy which shares all of the
+     * (frozen) contents with the original, and then use editJSONObject and
+     * editJSONArray to get modifiable copies of only those parts along the path
+     * to the values being changed.  The rest of the tree remains shared.</p>
+     *
+     * <pre>
+     * JSONObject config = JSONObject.readFromFile(configFile).freeze();
+     * ...
+     * JSONObject mine = config.thaw();
+     * mine.editJSONObject("server").put("port", 8081);
+     * </pre>
+     *
+     * <p>The frozen tree must be handed to other threads in the normal, safe
+     * way, for example through a synchronized cache.</p>
+     *
+     * @return this, which is now frozen.
+     */
+    public JSONObject freeze() {
+        if (frozen) {
+            return this;
+        }
+        for (Object child : this.map.values()) {
+            if (child instanceof JSONObject) {
+                ((JSONObject)child).freeze();
+            }
+            else if (child instanceof JSONArray) {
+                ((JSONArray)child).freeze();
+            }
+        }
+        frozen = true;
+        return this;
+    }
+
+    /**
+     * @return true if this object has been frozen and can not be modified.
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Returns a new, modifiable JSONObject with the same members as this one.
+     * This is a shallow copy: the objects and arrays within it are shared with
+     * this object, and if this object is frozen, they are frozen as well.
+     * Use editJSONObject and editJSONArray to get modifiable copies of them.
+     */
+    public JSONObject thaw() {
+        JSONObject copy = new JSONObject(this.map.size());
+        copy.map.putAll(this.map);
+        return copy;
+    }
+
+    /**
+     * <p>Get the JSONObject value associated with a key in a form that can be
+     * modified, creating an empty one if it does not exist yet.
+     * If the current value is frozen, then a thawed copy of it
+     * replaces it in this object, and that copy is returned.</p>
+     *
+     * <p>This is the way to change a value deep inside a tree that was
+     * produced by thaw(), copying only the objects along the path.</p>
+     *
+     * @throws JSONException if the key exists but is not a JSONObject.
+     */
+    public JSONObject editJSONObject(String key) throws JSONException {
+        Object object = this.opt(key);
+        if (object == null) {
+            JSONObject newVal = new JSONObject();
+            this.put(key, newVal);
+            return newVal;
+        }
+        if (!(object instanceof JSONObject)) {
+            throw new JSONException("JSONObject[" + quote(key) +
+                    "] is not a JSONObject.");
+        }
+        JSONObject child = (JSONObject) object;
+        if (child.frozen) {
+            child = child.thaw();
+            this.put(key, child);
+        }
+        return child;
+    }
+
+    /**
+     * Get the JSONArray value associated with a key in a form that can be
+     * modified, creating an empty one if it does not exist yet.
+     * If the current value is frozen, then a thawed copy of it
+     * replaces it in this object, and that copy is returned.
+     *
+     * @throws JSONException if the key exists but is not a JSONArray.
+     */
+    public JSONArray editJSONArray(String key) throws JSONException {
+        Object object = this.opt(key);
+        if (object == null) {
+            JSONArray newVal = new JSONArray();
+            this.put(key, newVal);
+            return newVal;
+        }
+        if (!(object instanceof JSONArray)) {
+            throw new JSONException("JSONObject[" + quote(key) +
+                    "] is not a JSONArray.");
+        }
+        JSONArray child = (JSONArray) object;
+        if (child.isFrozen()) {
+            child = child.thaw();
+            this.put(key, child);
+        }
+        return child;
+    }
+
+    private void assertNotFrozen() {
+        if (frozen) {
+            throw new UnsupportedOperationException("This JSONObject is frozen and can not be modified.  Use thaw() to get a modifiable copy.");
+        }
+    }
+
+
+    /**
+     * <p>Returns a complete, independent copy of this object and all the objects
+     * and arrays within it.  Strings, numbers, and booleans are immutable, and
+     * so they are shared.  The copy is never frozen.</p>
+     *
+     * <p>This is much faster than writing the object out to a string
+     * and parsing it again.</p>
+     */
+    public JSONObject deepCopy() {
+        JSONObject copy = new JSONObject(this.map.size());
+        for (Map.Entry<String,Object> entry : this.map.entrySet()) {
+            copy.map.put(entry.getKey(), deepCopyValue(entry.getValue()));
+        }
+        return copy;
+    }
+
+    /**
+     * <p>Tells whether the other object has exactly the same members with
+     * the same values, comparing all the objects and arrays within it
+     * as well.  The order of members does not matter, but the order of
+     * array elements does.  Numbers are compared by value, so 1 and 1.0
+     * are equal.</p>
+     *
+     * <p>This does not override equals() because JSONObjects are mutable, and
+     * existing code depends upon identity when putting them into collections.</p>
+     */
+    public boolean deepEquals(JSONObject other) {
+        if (other == this) {
+            return true;
+        }
+        if (other == null || other.map.size() != this.map.size()) {
+            return false;
+        }
+        if (this.frozen && other.frozen && this.structuralHash() != other.structuralHash()) {
+            return false;
+        }
+        for (Map.Entry<String,Object> entry : this.map.entrySet()) {
+            Object otherVal = other.map.get(entry.getKey());
+            if (otherVal == null || !deepEqualValues(entry.getValue(), otherVal)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A hash code consistent with deepEquals: two objects that are deepEquals
+     * will always have the same deepHashCode.  This walks the entire tree
+     * every time it is called.
+     */
+    public int deepHashCode() {
+        int hash = 0;
+        for (Map.Entry<String,Object> entry : this.map.entrySet()) {
+            hash += entry.getKey().hashCode() ^ deepHashValue(entry.getValue());
+        }
+        return hash;
+    }
+
+    /**
+     * <p>A 64 bit hash of the entire tree, consistent with deepEquals, and
+     * with a much lower chance of two different trees having the same value
+     * than deepHashCode.  Use it as a fingerprint to tell whether a
+     * document has changed, for example to validate a cache.</p>
+     *
+     * <p>Once an object is frozen, the hash is calculated only the first time
+     * it is asked for, and is remembered for this object and every object
+     * and array inside it.  After that, deepEquals between two frozen
+     * trees with different hashes returns false immediately, and JSONDiff and
+     * JSONPatch skip over frozen subtrees that did not change after only
+     * comparing the parts that differ.  For an object that is not frozen the
+     * hash is calculated again on every call, because a change to a child
+     * can not be seen from the parent.</p>
+     */
+    public long structuralHash() {
+        long hash = structuralHash;
+        if (hash != 0) {
+            return hash;
+        }
+        long sum = 0;
+        for (Map.Entry<String,Object> entry : this.map.entrySet()) {
+            //adding makes the member order irrelevant
+            sum += mixHash(stringHash(entry.getKey()) + 0x9E3779B97F4A7C15L * structuralHashValue(entry.getValue()));
+        }
+        hash = mixHash(sum ^ (0x4F424AL + this.map.size()));
+        if (hash == 0) {
+            hash = 1;
+        }
+        if (frozen) {
+            structuralHash = hash;
+        }
+        return hash;
+    }
+
+    static long structuralHashValue(Object value) {
+        if (value instanceof JSONObject) {
+            return ((JSONObject)value).structuralHash();
+        }
+        if (value instanceof JSONArray) {
+            return ((JSONArray)value).structuralHash();
+        }
+        if (value instanceof String) {
+            return stringHash((String)value);
+        }
+        if (value instanceof Number) {
+            //hash on the double value so that 1 and 1.0 hash the same
+            double d = ((Number)value).doubleValue();
+            if (d == 0) {
+                return 0x4E554DL;
+            }
+            return mixHash(Double.doubleToLongBits(d));
+        }
+        if (value == null) {
+            return 0;
+        }
+        return mixHash(value.hashCode());
+    }
+
+    private static long stringHash(String s) {
+        long h = 0xCBF29CE484222325L;
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001B3L;
+        }
+        return mixHash(h);
+    }
+
+    /**
+     * The final mixing step of MurmurHash3, spreads every input bit
+     * across the whole result.
+     */
+    static long mixHash(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    static Object deepCopyValue(Object value) {
+        if (value instanceof JSONObject) {
+            return ((JSONObject)value).deepCopy();
+        }
+        if (value instanceof JSONArray) {
+            return ((JSONArray)value).deepCopy();
+        }
+        return value;
+    }
+
+    static boolean deepEqualValues(Object a, Object b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return false;
+        }
+        if (a instanceof JSONObject) {
+            return b instanceof JSONObject && ((JSONObject)a).deepEquals((JSONObject)b);
+        }
+        if (a instanceof JSONArray) {
+            return b instanceof JSONArray && ((JSONArray)a).deepEquals((JSONArray)b);
+        }
+        if (a instanceof Number && b instanceof Number) {
+            if (isIntegral(a) && isIntegral(b)) {
+                return ((Number)a).longValue() == ((Number)b).longValue();
+            }
+            return ((Number)a).doubleValue() == ((Number)b).doubleValue();
+        }
+        return a.equals(b);
+    }
+
+    static int deepHashValue(Object value) {
+        if (value instanceof JSONObject) {
+            return ((JSONObject)value).deepHashCode();
+        }
+        if (value instanceof JSONArray) {
+            return ((JSONArray)value).deepHashCode();
+        }
+        if (value instanceof Number) {
+            //hash on the double value so that 1 and 1.0 hash the same
+            double d = ((Number)value).doubleValue();
+            if (d == 0) {
+                return 0;
+            }
+            long bits = Double.doubleToLongBits(d);
+            return (int)(bits ^ (bits >>> 32));
+        }
+        if (value == null) {
+            return 0;
+        }
+        return value.hashCode();
+    }
+
+    private static boolean isIntegral(Object num) {
+        return num instanceof Integer || num instanceof Long
+                || num instanceof Short || num instanceof Byte;
+    }
+
 
     /**
      * Open the file if exists, read the contents, and return the
@@ -443,8 +782,12 @@ public class JSONObject {
      * if the result of calling <code>object.getName()</code> is <code>"Larry Fine"</code>,
      * then the JSONObject will contain <code>"name": "Larry Fine"</code>.
      *
+     * The getters of each class are found only once and then cached.
+     * To go the other way, from a JSONObject to a bean, use JSONBeanBinding.toBean.
+     *
      * @param bean An object that has getter methods that should be used
      * to make a JSONObject.
+     * @see com.purplehillsbooks.json.JSONBeanBinding
      */
     public JSONObject(Object bean) {
         this();
@@ -856,6 +1199,9 @@ public class JSONObject {
      * @return Return a set of keys of the JSONObject
      */
     public Set<String> keySet() {
+        if (frozen) {
+            return Collections.unmodifiableSet(this.map.keySet());
+        }
         return this.map.keySet();
     }
 
@@ -893,7 +1239,7 @@ public class JSONObject {
      * @deprecated use keySet instead because iterators are old fashioned
      */
     public Iterator<String> keys() {
-        return this.map.keySet().iterator();
+        return this.keySet().iterator();
     }
 
 
@@ -1151,50 +1497,7 @@ public class JSONObject {
 
 
     private void populateMap(Object bean) {
-        Class<? extends Object> klass = bean.getClass();
-
-// If klass is a System class then set includeSuperClass to false.
-
-        boolean includeSuperClass = klass.getClassLoader() != null;
-
-        Method[] methods = includeSuperClass
-                ? klass.getMethods()
-                : klass.getDeclaredMethods();
-        for (int i = 0; i < methods.length; i += 1) {
-            try {
-                Method method = methods[i];
-                if (Modifier.isPublic(method.getModifiers())) {
-                    String name = method.getName();
-                    String key = "";
-                    if (name.startsWith("get")) {
-                        if ("getClass".equals(name) ||
-                                "getDeclaringClass".equals(name)) {
-                            key = "";
-                        } else {
-                            key = name.substring(3);
-                        }
-                    } else if (name.startsWith("is")) {
-                        key = name.substring(2);
-                    }
-                    if (key.length() > 0 &&
-                            Character.isUpperCase(key.charAt(0)) &&
-                            method.getParameterTypes().length == 0) {
-                        if (key.length() == 1) {
-                            key = key.toLowerCase();
-                        } else if (!Character.isUpperCase(key.charAt(1))) {
-                            key = key.substring(0, 1).toLowerCase() +
-                                key.substring(1);
-                        }
-
-                        Object result = method.invoke(bean, (Object[])null);
-                        if (result != null) {
-                            this.map.put(key, wrap(result));
-                        }
-                    }
-                }
-            } catch (Exception ignore) {
-            }
-        }
+        JSONBeanBinding.forClass(bean.getClass()).populateMap(bean, this.map);
     }
 
 
@@ -1297,6 +1600,7 @@ public class JSONObject {
         if (key == null) {
             throw new JSONException("Null key.");
         }
+        assertNotFrozen();
         if (value != null) {
             testValidity(value);
             this.map.put(key, value);
@@ -1357,15 +1661,9 @@ public class JSONObject {
      * @return  That value correctly encoded for insertion in a JSON text.
      */
     public static String quote(String string) {
-        StringWriter sw = new StringWriter();
-        synchronized (sw.getBuffer()) {
-            try {
-                return quote(string, sw).toString();
-            } catch (IOException ignored) {
-                // will never happen - we are writing to a string writer
-                return "";
-            }
-        }
+        int len = string == null ? 0 : string.length();
+        StringBuilder sb = new StringBuilder(len + 16);
+        return quote(string, sb).toString();
     }
 
     /**
@@ -1382,60 +1680,188 @@ public class JSONObject {
             w.write("\"\"");
             return w;
         }
-
-        char b;
-        char c = 0;
-        String hhhh;
-        int i;
         int len = string.length();
-
+        int start = 0;
         w.write('"');
-        for (i = 0; i < len; i += 1) {
-            b = c;
-            c = string.charAt(i);
-            switch (c) {
-            case '\\':
-            case '"':
-                w.write('\\');
-                w.write(c);
-                break;
-            case '/':
-                if (b == '<') {
-                    w.write('\\');
-                }
-                w.write(c);
-                break;
-            case '\b':
-                w.write("\\b");
-                break;
-            case '\t':
-                w.write("\\t");
-                break;
-            case '\n':
-                w.write("\\n");
-                break;
-            case '\f':
-                w.write("\\f");
-                break;
-            case '\r':
-                w.write("\\r");
-                break;
-            default:
-                if (c < ' ' || (c >= '\u0080' && c < '\u00a0')
-                        || (c >= '\u2000' && c < '\u2100')) {
-                    w.write("\\u");
-                    hhhh = Integer.toHexString(c);
-                    w.write("0000", 0, 4 - hhhh.length());
-                    w.write(hhhh);
-                } else {
-                    w.write(c);
-                }
+        for (int i = 0; i < len; i++) {
+            char esc = escapeCode(string, i);
+            if (esc == 0) {
+                continue;
+            }
+            //write the run of safe characters in one go
+            if (i > start) {
+                w.write(string, start, i - start);
             }
+            w.write('\\');
+            if (esc == 'u') {
+                char c = string.charAt(i);
+                w.write('u');
+                w.write(HEX_DIGITS[(c >> 12) & 0xF]);
+                w.write(HEX_DIGITS[(c >> 8) & 0xF]);
+                w.write(HEX_DIGITS[(c >> 4) & 0xF]);
+                w.write(HEX_DIGITS[c & 0xF]);
+            }
+            else {
+                w.write(esc);
+            }
+            start = i + 1;
+        }
+        if (len > start) {
+            w.write(string, start, len - start);
         }
         w.write('"');
         return w;
     }
 
+    /**
+     * Writes a quoted (encoded) version of the characters to the Writer,
+     * exactly the same as the String version, and returns the same Writer.
+     * Use this for a StringBuilder, CharBuffer or other CharSequence, to
+     * avoid making a String of it first.  The characters are read with
+     * charAt and written to the Writer in blocks.
+     */
+    public static Writer quote(CharSequence chars, Writer w) throws IOException {
+        if (chars instanceof String) {
+            return quote((String) chars, w);
+        }
+        int len = chars == null ? 0 : chars.length();
+        //room for a block of characters, plus one six character escape
+        char[] buf = new char[Math.min(len, 1024) + 8];
+        int pos = 0;
+        char prev = 0;
+        buf[pos++] = '"';
+        for (int i = 0; i < len; i++) {
+            if (pos > buf.length - 7) {
+                w.write(buf, 0, pos);
+                pos = 0;
+            }
+            char c = chars.charAt(i);
+            char esc = escapeCode(c, prev);
+            prev = c;
+            if (esc == 0) {
+                buf[pos++] = c;
+                continue;
+            }
+            buf[pos++] = '\\';
+            if (esc == 'u') {
+                buf[pos++] = 'u';
+                buf[pos++] = HEX_DIGITS[(c >> 12) & 0xF];
+                buf[pos++] = HEX_DIGITS[(c >> 8) & 0xF];
+                buf[pos++] = HEX_DIGITS[(c >> 4) & 0xF];
+                buf[pos++] = HEX_DIGITS[c & 0xF];
+            }
+            else {
+                buf[pos++] = esc;
+            }
+        }
+        buf[pos++] = '"';
+        w.write(buf, 0, pos);
+        return w;
+    }
+
+    /**
+     * Appends a quoted (encoded) version of the string to the StringBuilder,
+     * exactly the same as the Writer version, and returns the same StringBuilder.
+     * Use this when building up a string, to avoid the synchronization and
+     * copying of a StringWriter.
+     */
+    public static StringBuilder quote(String string, StringBuilder sb) {
+        if (string == null || string.length() == 0) {
+            sb.append("\"\"");
+            return sb;
+        }
+        int len = string.length();
+        int start = 0;
+        sb.append('"');
+        for (int i = 0; i < len; i++) {
+            char esc = escapeCode(string, i);
+            if (esc == 0) {
+                continue;
+            }
+            if (i > start) {
+                sb.append(string, start, i);
+            }
+            sb.append('\\');
+            if (esc == 'u') {
+                char c = string.charAt(i);
+                sb.append('u');
+                sb.append(HEX_DIGITS[(c >> 12) & 0xF]);
+                sb.append(HEX_DIGITS[(c >> 8) & 0xF]);
+                sb.append(HEX_DIGITS[(c >> 4) & 0xF]);
+                sb.append(HEX_DIGITS[c & 0xF]);
+            }
+            else {
+                sb.append(esc);
+            }
+            start = i + 1;
+        }
+        if (len > start) {
+            sb.append(string, start, len);
+        }
+        sb.append('"');
+        return sb;
+    }
+
+    static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * For each ASCII character, zero if it can be written as is, 'u' if
+     * it must be written as a unicode escape, otherwise the character to
+     * write after the backslash.
+     */
+    private static final char[] ESCAPE_TABLE = new char[128];
+    static {
+        for (int i = 0; i < ' '; i++) {
+            ESCAPE_TABLE[i] = 'u';
+        }
+        ESCAPE_TABLE['\b'] = 'b';
+        ESCAPE_TABLE['\t'] = 't';
+        ESCAPE_TABLE['\n'] = 'n';
+        ESCAPE_TABLE['\f'] = 'f';
+        ESCAPE_TABLE['\r'] = 'r';
+        ESCAPE_TABLE['"'] = '"';
+        ESCAPE_TABLE['\\'] = '\\';
+        ESCAPE_TABLE['/'] = '/';
+    }
+
+    /**
+     * Returns the escape code for the character at position i,
+     * or zero if it does not need escaping.  A slash is escaped
+     * only after a less-than, so that "&lt;/" never appears in the output.
+     */
+    private static char escapeCode(String string, int i) {
+        char c = string.charAt(i);
+        if (c < 128) {
+            char esc = ESCAPE_TABLE[c];
+            if (esc == '/' && (i == 0 || string.charAt(i - 1) != '<')) {
+                return 0;
+            }
+            return esc;
+        }
+        if ((c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+            return 'u';
+        }
+        return 0;
+    }
+
+    /**
+     * The same as above, for a character and the character before it,
+     * which is zero at the start.
+     */
+    static char escapeCode(char c, char prev) {
+        if (c < 128) {
+            char esc = ESCAPE_TABLE[c];
+            if (esc == '/' && prev != '<') {
+                return 0;
+            }
+            return esc;
+        }
+        if ((c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+            return 'u';
+        }
+        return 0;
+    }
+
     /**
      * Remove a name and its value, if present.
      * @param key The name to be removed.
@@ -1443,6 +1869,7 @@ public class JSONObject {
      * or null if there was no value.
      */
     public Object remove(String key) {
+        assertNotFrozen();
         return this.map.remove(key);
     }
 
@@ -1822,7 +2249,7 @@ public class JSONObject {
 
             if (length == 1) {
                 String key = keys.get(0);
-                writer.write(quote(key));
+                quote(key, writer);
                 writer.write(':');
                 if (indentFactor > 0) {
                     writer.write(' ');
@@ -1839,7 +2266,7 @@ public class JSONObject {
                         writer.write('\n');
                     }
                     indent(writer, newindent);
-                    writer.write(quote(key));
+                    quote(key, writer);
                     writer.write(':');
                     if (indentFactor > 0) {
                         writer.write(' ');
@@ -0,0 +1,320 @@
+package com.purplehillsbooks.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Creates and applies JSON Patch documents (RFC 6902).  A patch is a JSONArray
+ * of operations that change one JSONObject into another.  When only a small part
+ * of a large document changes, the patch is small, and it can be sent to
+ * other servers or to clients instead of the whole document.</p>
+ *
+ * <pre>
+ * JSONArray patch = JSONPatch.createPatch(oldDoc, newDoc);
+ * ...
+ * JSONPatch.applyPatch(copyOfOldDoc, patch);
+ * </pre>
+ *
+ * <p>Each operation is an object with an "op" member, a "path" member that is
+ * a JSON Pointer (RFC 6901) like <tt>/users/3/name</tt>, and a "value" or "from"
+ * member depending on the operation.  All six operations can be applied: add,
+ * remove, replace, move, copy and test.  createPatch only produces add, remove
+ * and replace.</p>
+ *
+ * <p>createPatch walks both trees once, together, the same way that JSONDiff does,
+ * and only goes into the objects and arrays that are in both.  Objects that are the
+ * same instance in both trees (for example frozen objects that are shared) are
+ * skipped without looking inside.  Arrays are compared by position after skipping
+ * the elements that are equal at the start and the end, so that inserting or
+ * removing an element produces a single add or remove.  The values put into the
+ * patch are copies, so changing the second object later does not change the patch.</p>
+ *
+ * <p>applyPatch changes the object in place, and copies only the values that are
+ * added.  It is not atomic: if an operation fails, a JSONException is thrown and
+ * the operations before it have already been made.  If the patch might not fit
+ * the object, apply it to a deepCopy and keep the copy only if it succeeds.</p>
+ */
+public class JSONPatch {
+
+    /**
+     * Returns the list of operations that changes the first object into the second.
+     * The result is an empty array if the objects are equal.
+     */
+    public static JSONArray createPatch(JSONObject from, JSONObject to) throws JSONException {
+        JSONArray patch = new JSONArray();
+        diffObject(patch, "", from, to);
+        return patch;
+    }
+
+    private static void diffObject(JSONArray patch, String path, JSONObject a, JSONObject b) throws JSONException {
+        if (a == b) {
+            return;
+        }
+        for (String key : a.keySet()) {
+            String childPath = path + "/" + escape(key);
+            Object va = a.opt(key);
+            if (!b.has(key)) {
+                patch.put(operation("remove", childPath));
+            }
+            else {
+                diffValue(patch, childPath, va, b.opt(key));
+            }
+        }
+        for (String key : b.keySet()) {
+            if (!a.has(key)) {
+                patch.put(operation("add", path + "/" + escape(key))
+                        .put("value", JSONObject.deepCopyValue(b.opt(key))));
+            }
+        }
+    }
+
+    private static void diffValue(JSONArray patch, String path, Object va, Object vb) throws JSONException {
+        if (va instanceof JSONObject && vb instanceof JSONObject) {
+            diffObject(patch, path, (JSONObject) va, (JSONObject) vb);
+        }
+        else if (va instanceof JSONArray && vb instanceof JSONArray) {
+            diffArray(patch, path, (JSONArray) va, (JSONArray) vb);
+        }
+        else if (!JSONObject.deepEqualValues(va, vb)) {
+            patch.put(operation("replace", path).put("value", JSONObject.deepCopyValue(vb)));
+        }
+    }
+
+    private static void diffArray(JSONArray patch, String path, JSONArray a, JSONArray b) throws JSONException {
+        if (a == b) {
+            return;
+        }
+        int start = 0;
+        int end1 = a.length();
+        int end2 = b.length();
+        while (start < end1 && start < end2 && JSONObject.deepEqualValues(a.opt(start), b.opt(start))) {
+            start++;
+        }
+        while (end1 > start && end2 > start && JSONObject.deepEqualValues(a.opt(end1-1), b.opt(end2-1))) {
+            end1--;
+            end2--;
+        }
+        int common = Math.min(end1, end2) - start;
+        for (int i = start; i < start + common; i++) {
+            diffValue(patch, path + "/" + i, a.opt(i), b.opt(i));
+        }
+        //each remove moves the rest down, so the same index is removed repeatedly
+        int removePos = start + common;
+        for (int i = end2; i < end1; i++) {
+            patch.put(operation("remove", path + "/" + removePos));
+        }
+        for (int i = end1; i < end2; i++) {
+            patch.put(operation("add", path + "/" + i).put("value", JSONObject.deepCopyValue(b.opt(i))));
+        }
+    }
+
+    private static JSONObject operation(String op, String path) throws JSONException {
+        JSONObject jo = new JSONObject();
+        jo.put("op", op);
+        jo.put("path", path);
+        return jo;
+    }
+
+
+    /**
+     * Apply all the operations of the patch to the object, changing it in place.
+     * @throws JSONException if an operation is not valid, if a path does not
+     *         exist, or if a test operation fails.
+     */
+    public static void applyPatch(JSONObject target, JSONArray patch) throws JSONException {
+        int len = patch.length();
+        for (int i = 0; i < len; i++) {
+            JSONObject op = patch.getJSONObject(i);
+            try {
+                applyOperation(target, op);
+            }
+            catch (JSONException e) {
+                throw new JSONException("Unable to apply operation {0} of the patch: {1}", e, i, op.toString());
+            }
+        }
+    }
+
+    private static void applyOperation(JSONObject target, JSONObject op) throws JSONException {
+        String opName = op.getString("op");
+        List<String> path = parsePointer(op.getString("path"));
+        if ("add".equals(opName)) {
+            addValue(target, path, JSONObject.deepCopyValue(requireValue(op)));
+        }
+        else if ("remove".equals(opName)) {
+            removeValue(target, path);
+        }
+        else if ("replace".equals(opName)) {
+            Object value = JSONObject.deepCopyValue(requireValue(op));
+            Object parent = findParent(target, path);
+            String last = path.get(path.size() - 1);
+            if (parent instanceof JSONObject) {
+                if (!((JSONObject) parent).has(last)) {
+                    throw new JSONException("There is no member {0} to replace", last);
+                }
+                ((JSONObject) parent).put(last, value);
+            }
+            else {
+                JSONArray ja = (JSONArray) parent;
+                ja.put(arrayIndex(ja, last, false), value);
+            }
+        }
+        else if ("move".equals(opName)) {
+            String fromStr = op.getString("from");
+            String pathStr = op.getString("path");
+            if (pathStr.startsWith(fromStr + "/")) {
+                throw new JSONException("Can not move {0} into one of its own children", fromStr);
+            }
+            if (pathStr.equals(fromStr)) {
+                return;
+            }
+            Object value = removeValue(target, parsePointer(fromStr));
+            addValue(target, path, value);
+        }
+        else if ("copy".equals(opName)) {
+            Object value = getValue(target, parsePointer(op.getString("from")));
+            addValue(target, path, JSONObject.deepCopyValue(value));
+        }
+        else if ("test".equals(opName)) {
+            Object value = getValue(target, path);
+            if (!JSONObject.deepEqualValues(value, requireValue(op))) {
+                throw new JSONException("Test failed, the value at {0} is not the expected value", op.getString("path"));
+            }
+        }
+        else {
+            throw new JSONException("Unknown patch operation {0}", opName);
+        }
+    }
+
+    private static Object requireValue(JSONObject op) throws JSONException {
+        if (!op.has("value")) {
+            throw new JSONException("The {0} operation must have a value", op.optString("op"));
+        }
+        return op.opt("value");
+    }
+
+    private static void addValue(JSONObject target, List<String> path, Object value) throws JSONException {
+        Object parent = findParent(target, path);
+        String last = path.get(path.size() - 1);
+        if (parent instanceof JSONObject) {
+            ((JSONObject) parent).put(last, value);
+        }
+        else {
+            JSONArray ja = (JSONArray) parent;
+            ja.insert(arrayIndex(ja, last, true), value);
+        }
+    }
+
+    private static Object removeValue(JSONObject target, List<String> path) throws JSONException {
+        Object parent = findParent(target, path);
+        String last = path.get(path.size() - 1);
+        if (parent instanceof JSONObject) {
+            JSONObject jo = (JSONObject) parent;
+            if (!jo.has(last)) {
+                throw new JSONException("There is no member {0} to remove", last);
+            }
+            return jo.remove(last);
+        }
+        JSONArray ja = (JSONArray) parent;
+        return ja.remove(arrayIndex(ja, last, false));
+    }
+
+    private static Object getValue(JSONObject target, List<String> path) throws JSONException {
+        if (path.isEmpty()) {
+            return target;
+        }
+        Object parent = findParent(target, path);
+        String last = path.get(path.size() - 1);
+        if (parent instanceof JSONObject) {
+            JSONObject jo = (JSONObject) parent;
+            if (!jo.has(last)) {
+                throw new JSONException("There is no member {0}", last);
+            }
+            return jo.opt(last);
+        }
+        JSONArray ja = (JSONArray) parent;
+        return ja.opt(arrayIndex(ja, last, false));
+    }
+
+    /**
+     * Walks all but the last token of the path, and returns the object
+     * or array that the last token is applied to.
+     */
+    private static Object findParent(JSONObject target, List<String> path) throws JSONException {
+        if (path.isEmpty()) {
+            throw new JSONException("The whole document can not be the path of this operation");
+        }
+        Object current = target;
+        int last = path.size() - 1;
+        for (int i = 0; i < last; i++) {
+            String token = path.get(i);
+            if (current instanceof JSONObject) {
+                current = ((JSONObject) current).opt(token);
+            }
+            else {
+                JSONArray ja = (JSONArray) current;
+                current = ja.opt(arrayIndex(ja, token, false));
+            }
+            if (!(current instanceof JSONObject) && !(current instanceof JSONArray)) {
+                throw new JSONException("Path element {0} is not an object or an array", token);
+            }
+        }
+        return current;
+    }
+
+    private static int arrayIndex(JSONArray ja, String token, boolean forAdd) throws JSONException {
+        int len = ja.length();
+        if (forAdd && "-".equals(token)) {
+            return len;
+        }
+        int index = -1;
+        if (token.length() > 0 && (token.length() == 1 || token.charAt(0) != '0')) {
+            try {
+                index = Integer.parseInt(token);
+            }
+            catch (NumberFormatException e) {
+                //handled below
+            }
+        }
+        if (index < 0 || index > len || (index == len && !forAdd)) {
+            throw new JSONException("Array index {0} is not valid for an array of length {1}", token, len);
+        }
+        return index;
+    }
+
+    /**
+     * Splits a JSON Pointer into its unescaped tokens.
+     * The empty string is the whole document and has no tokens.
+     */
+    static List<String> parsePointer(String pointer) throws JSONException {
+        List<String> tokens = new ArrayList<String>();
+        if (pointer.length() == 0) {
+            return tokens;
+        }
+        if (pointer.charAt(0) != '/') {
+            throw new JSONException("JSON Pointer must start with a slash: {0}", pointer);
+        }
+        int pos = 1;
+        while (true) {
+            int slash = pointer.indexOf('/', pos);
+            String token = slash < 0 ? pointer.substring(pos) : pointer.substring(pos, slash);
+            if (token.indexOf('~') >= 0) {
+                token = token.replace("~1", "/").replace("~0", "~");
+            }
+            tokens.add(token);
+            if (slash < 0) {
+                return tokens;
+            }
+            pos = slash + 1;
+        }
+    }
+
+    /**
+     * Escapes a member name for use as a token of a JSON Pointer.
+     */
+    static String escape(String key) {
+        if (key.indexOf('~') < 0 && key.indexOf('/') < 0) {
+            return key;
+        }
+        return key.replace("~", "~0").replace("/", "~1");
+    }
+}
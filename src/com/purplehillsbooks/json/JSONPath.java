@@ -0,0 +1,457 @@
+package com.purplehillsbooks.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>A path expression that is parsed once, and then can be evaluated many
+ * times against JSONObject and JSONArray trees.  Evaluation walks the tree
+ * directly using the parsed segments, without splitting strings again.</p>
+ *
+ * <p>The path is a sequence of segments separated by dots, in the same style
+ * that the templates use:</p>
+ *
+ * <pre>
+ * cust.0.name                first customer's name
+ * cust[0].name               the same thing
+ * cust.*.address.city        city of every customer
+ * cust[1:3].name             names of customers 1 and 2
+ * cust[-1].name              the last customer's name
+ * cust[:2]                   the first two customers
+ * ['odd.key'].value          a member name containing a dot
+ * </pre>
+ *
+ * <p>A name segment selects the member of an object.  When applied to an array,
+ * a name that is all digits selects that element.  An asterisk selects all the
+ * members of an object or all the elements of an array.  Square brackets hold an
+ * index, a slice (start inclusive, end exclusive, either can be left out, and
+ * negative values count from the end), an asterisk, or a quoted name.  Spaces
+ * around names are trimmed.</p>
+ *
+ * <h1>USAGE</h1>
+ *
+ * <pre>
+ * JSONPath cityPath = JSONPath.compile("cust.*.address.city");
+ * for (Object city : cityPath.getAll(data)) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * <p>A compiled path has no state that changes, and so it can be cached and
+ * shared by many threads.</p>
+ *
+ * <p><b>Streaming:</b> getAll(JSONTokener) evaluates the path while reading a
+ * JSON text, and only builds the values that match.  All other parts of the
+ * text are skipped without making objects, which allows picking out a few
+ * values from a document too large to hold in memory.  Negative indexes
+ * can not be used when streaming, because the length of an array is not
+ * known until the end of it.</p>
+ */
+public class JSONPath {
+
+    private static final int NAME     = 1;
+    private static final int INDEX    = 2;
+    private static final int WILDCARD = 3;
+    private static final int SLICE    = 4;
+
+    /**
+     * Used for the start or end of a slice that was left out.
+     */
+    private static final int OPEN = Integer.MIN_VALUE;
+
+    private static class Segment {
+        int kind;
+        String name;
+        int index;
+        int sliceStart = OPEN;
+        int sliceEnd = OPEN;
+    }
+
+    private final String expression;
+    private final Segment[] segments;
+    private final boolean single;
+
+
+    private JSONPath(String expression, List<Segment> segs) {
+        this.expression = expression;
+        this.segments = segs.toArray(new Segment[segs.size()]);
+        boolean noWild = true;
+        for (Segment seg : segments) {
+            if (seg.kind == WILDCARD || seg.kind == SLICE) {
+                noWild = false;
+            }
+        }
+        this.single = noWild;
+    }
+
+    /**
+     * Parse the path expression.
+     * @throws JSONException if the expression is not well formed
+     */
+    public static JSONPath compile(String expression) throws JSONException {
+        if (expression == null) {
+            throw new JSONException("Null path expression");
+        }
+        List<Segment> segs = new ArrayList<Segment>();
+        int len = expression.length();
+        int pos = 0;
+        while (pos < len) {
+            char c = expression.charAt(pos);
+            if (c == '.') {
+                pos++;
+            }
+            else if (c == '[') {
+                int start = pos + 1;
+                while (start < len && expression.charAt(start) == ' ') {
+                    start++;
+                }
+                int close;
+                char quote = start < len ? expression.charAt(start) : 0;
+                if (quote == '\'' || quote == '"') {
+                    //quoted name may contain dots and brackets
+                    int endQuote = expression.indexOf(quote, start + 1);
+                    close = endQuote < 0 ? -1 : expression.indexOf(']', endQuote);
+                    if (close < 0) {
+                        throw new JSONException("Path expression ({0}) has an unterminated quoted name", expression);
+                    }
+                    Segment seg = new Segment();
+                    seg.kind = NAME;
+                    seg.name = expression.substring(start + 1, endQuote);
+                    seg.index = digitsValue(seg.name);
+                    segs.add(seg);
+                }
+                else {
+                    close = expression.indexOf(']', pos);
+                    if (close < 0) {
+                        throw new JSONException("Path expression ({0}) has a '[' with no ']'", expression);
+                    }
+                    segs.add(parseBracket(expression.substring(pos + 1, close).trim(), expression));
+                }
+                pos = close + 1;
+            }
+            else {
+                int end = pos;
+                while (end < len && expression.charAt(end) != '.' && expression.charAt(end) != '[') {
+                    end++;
+                }
+                String name = expression.substring(pos, end).trim();
+                if (name.length() > 0) {
+                    Segment seg = new Segment();
+                    if ("*".equals(name)) {
+                        seg.kind = WILDCARD;
+                    }
+                    else {
+                        seg.kind = NAME;
+                        seg.name = name;
+                        seg.index = digitsValue(name);
+                    }
+                    segs.add(seg);
+                }
+                pos = end;
+            }
+        }
+        return new JSONPath(expression, segs);
+    }
+
+    private static Segment parseBracket(String inside, String expression) throws JSONException {
+        Segment seg = new Segment();
+        try {
+            if ("*".equals(inside)) {
+                seg.kind = WILDCARD;
+            }
+            else if (inside.indexOf(':') >= 0) {
+                seg.kind = SLICE;
+                int colon = inside.indexOf(':');
+                String start = inside.substring(0, colon).trim();
+                String end = inside.substring(colon + 1).trim();
+                if (start.length() > 0) {
+                    seg.sliceStart = Integer.parseInt(start);
+                }
+                if (end.length() > 0) {
+                    seg.sliceEnd = Integer.parseInt(end);
+                }
+            }
+            else {
+                seg.kind = INDEX;
+                seg.index = Integer.parseInt(inside);
+            }
+        }
+        catch (NumberFormatException e) {
+            throw new JSONException("Path expression ({0}) has a bad index [{1}]", e, expression, inside);
+        }
+        return seg;
+    }
+
+    /**
+     * If the name is all digits, return the value, otherwise -1
+     */
+    private static int digitsValue(String name) {
+        if (name.length() > 9) {
+            return -1;
+        }
+        int val = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return -1;
+            }
+            val = val * 10 + ch - '0';
+        }
+        return val;
+    }
+
+
+    /**
+     * Returns the first value that the path selects, or null if nothing
+     * is selected.  For a path without wildcards or slices there is at most
+     * one value, and it is found without making any lists.
+     */
+    public Object getFirst(Object root) {
+        if (!single) {
+            List<Object> res = new ArrayList<Object>(1);
+            collect(root, 0, res, true);
+            return res.size() > 0 ? res.get(0) : null;
+        }
+        Object node = root;
+        for (Segment seg : segments) {
+            node = child(node, seg);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Returns all the values that the path selects, in document order
+     * (objects are visited in their key order).  Empty if nothing matches.
+     */
+    public List<Object> getAll(Object root) {
+        List<Object> res = new ArrayList<Object>();
+        collect(root, 0, res, false);
+        return res;
+    }
+
+    /**
+     * Tells whether the path selects at least one value.
+     */
+    public boolean matches(Object root) {
+        return getFirst(root) != null;
+    }
+
+    /**
+     * Returns the expression this path was compiled from.
+     */
+    public String toString() {
+        return expression;
+    }
+
+
+    private boolean collect(Object node, int segIdx, List<Object> res, boolean firstOnly) {
+        if (segIdx == segments.length) {
+            res.add(node);
+            return firstOnly;
+        }
+        Segment seg = segments[segIdx];
+        if (seg.kind == NAME || seg.kind == INDEX) {
+            Object next = child(node, seg);
+            return next != null && collect(next, segIdx + 1, res, firstOnly);
+        }
+        if (node instanceof JSONObject) {
+            if (seg.kind != WILDCARD) {
+                return false;
+            }
+            JSONObject jo = (JSONObject) node;
+            for (String key : jo.keySet()) {
+                if (collect(jo.opt(key), segIdx + 1, res, firstOnly)) {
+                    return true;
+                }
+            }
+        }
+        else if (node instanceof JSONArray) {
+            JSONArray ja = (JSONArray) node;
+            int len = ja.length();
+            int start = 0;
+            int end = len;
+            if (seg.kind == SLICE) {
+                start = sliceBound(seg.sliceStart, 0, len);
+                end = sliceBound(seg.sliceEnd, len, len);
+            }
+            for (int i = start; i < end; i++) {
+                if (collect(ja.opt(i), segIdx + 1, res, firstOnly)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int sliceBound(int val, int dflt, int len) {
+        if (val == OPEN) {
+            return dflt;
+        }
+        if (val < 0) {
+            val += len;
+        }
+        return Math.max(0, Math.min(len, val));
+    }
+
+    private static Object child(Object node, Segment seg) {
+        if (node instanceof JSONObject) {
+            if (seg.kind == NAME) {
+                return ((JSONObject) node).opt(seg.name);
+            }
+            return null;
+        }
+        if (node instanceof JSONArray) {
+            JSONArray ja = (JSONArray) node;
+            int idx = seg.index;
+            if (seg.kind == NAME && idx < 0) {
+                return null;
+            }
+            if (idx < 0) {
+                idx += ja.length();
+            }
+            return ja.opt(idx);
+        }
+        return null;
+    }
+
+
+    /**
+     * Evaluate the path while reading the JSON text from the tokener,
+     * building only the values that are selected.  Everything else is skipped.
+     * The tokener is left positioned after the value that was read.
+     * @throws JSONException if the text is not valid JSON, or the path has a negative index
+     */
+    public List<Object> getAll(JSONTokener x) throws JSONException {
+        List<Object> res = new ArrayList<Object>();
+        stream(x, 0, res);
+        return res;
+    }
+
+    private void stream(JSONTokener x, int segIdx, List<Object> res) throws JSONException {
+        if (segIdx == segments.length) {
+            res.add(x.nextValue());
+            return;
+        }
+        Segment seg = segments[segIdx];
+        char c = x.nextClean();
+        if (c == '{') {
+            streamObject(x, seg, segIdx, res);
+        }
+        else if (c == '[') {
+            streamArray(x, seg, segIdx, res);
+        }
+        else {
+            //a simple value has no members, so nothing below it can match
+            x.back();
+            x.skipValue();
+        }
+    }
+
+    /**
+     * Follows the same syntax rules as the JSONObject constructor
+     * The open brace has already been read.
+     */
+    private void streamObject(JSONTokener x, Segment seg, int segIdx, List<Object> res) throws JSONException {
+        for (;;) {
+            char c = x.nextClean();
+            if (c == 0) {
+                throw x.syntaxError("A JSONObject text must end with '}'");
+            }
+            if (c == '}') {
+                return;
+            }
+            x.back();
+            String key = x.nextValue().toString();
+            c = x.nextClean();
+            if (c == '=') {
+                if (x.next() != '>') {
+                    x.back();
+                }
+            } else if (c != ':') {
+                throw x.syntaxError("Expected a ':' after a key");
+            }
+            if (seg.kind == WILDCARD || (seg.kind == NAME && seg.name.equals(key))) {
+                stream(x, segIdx + 1, res);
+            }
+            else {
+                x.skipValue();
+            }
+            switch (x.nextClean()) {
+            case ';':
+            case ',':
+                if (x.nextClean() == '}') {
+                    return;
+                }
+                x.back();
+                break;
+            case '}':
+                return;
+            default:
+                throw x.syntaxError("Expected a ',' or '}'");
+            }
+        }
+    }
+
+    /**
+     * Follows the same syntax rules as the JSONArray constructor
+     * The open bracket has already been read.
+     */
+    private void streamArray(JSONTokener x, Segment seg, int segIdx, List<Object> res) throws JSONException {
+        int start = 0;
+        int end = Integer.MAX_VALUE;
+        if (seg.kind == NAME || seg.kind == INDEX) {
+            start = seg.index;
+            end = start + 1;
+        }
+        else if (seg.kind == SLICE) {
+            start = seg.sliceStart == OPEN ? 0 : seg.sliceStart;
+            end = seg.sliceEnd == OPEN ? Integer.MAX_VALUE : seg.sliceEnd;
+        }
+        if (start < 0 || end < 0) {
+            if (seg.kind != NAME) {
+                throw new JSONException("Path expression ({0}) uses a negative index, which can not be used when streaming", expression);
+            }
+        }
+        if (x.nextClean() == ']') {
+            return;
+        }
+        x.back();
+        int i = 0;
+        for (;;) {
+            boolean wanted = i >= start && i < end;
+            if (x.nextClean() == ',') {
+                //elided element is a null, which has nothing below it
+                x.back();
+                if (wanted && segIdx + 1 == segments.length) {
+                    res.add(JSONObject.NULL);
+                }
+            }
+            else {
+                x.back();
+                if (wanted) {
+                    stream(x, segIdx + 1, res);
+                }
+                else {
+                    x.skipValue();
+                }
+            }
+            i++;
+            switch (x.nextClean()) {
+            case ';':
+            case ',':
+                if (x.nextClean() == ']') {
+                    return;
+                }
+                x.back();
+                break;
+            case ']':
+                return;
+            default:
+                throw x.syntaxError("Expected a ',' or ']'");
+            }
+        }
+    }
+}
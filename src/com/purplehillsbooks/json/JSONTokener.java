@@ -403,6 +403,84 @@ public class JSONTokener {
     }
 
 
+    /**
+     * Skip over the next value, whether it is a string, number, literal,
+     * object or array, without constructing it.  Objects and arrays are
+     * skipped by matching the braces and brackets, and the structure within
+     * them is not checked as strictly as when parsing.  This is useful for
+     * passing over the parts of a large document that are not needed.
+     * @throws JSONException if the value is missing or unterminated
+     */
+    public void skipValue() throws JSONException {
+        char c = this.nextClean();
+        switch (c) {
+            case '"':
+            case '\'':
+                this.skipString(c);
+                return;
+            case '{':
+            case '[':
+                int depth = 1;
+                while (depth > 0) {
+                    c = this.next();
+                    switch (c) {
+                        case 0:
+                            throw this.syntaxError("Unterminated object or array");
+                        case '"':
+                        case '\'':
+                            this.skipString(c);
+                            break;
+                        case '{':
+                        case '[':
+                            depth++;
+                            break;
+                        case '}':
+                        case ']':
+                            depth--;
+                            break;
+                        default:
+                    }
+                }
+                return;
+            default:
+        }
+        int count = 0;
+        while (c >= ' ' && ",:]}/\\\"[{;=#".indexOf(c) < 0) {
+            count++;
+            c = this.next();
+        }
+        this.back();
+        if (count == 0) {
+            throw this.syntaxError("Missing value");
+        }
+    }
+
+    /**
+     * Pass over the characters up to and including the close quote,
+     * without collecting them.
+     */
+    private void skipString(char quote) throws JSONException {
+        for (;;) {
+            char c = this.next();
+            switch (c) {
+            case 0:
+            case '\n':
+            case '\r':
+                throw this.syntaxError("Unterminated string");
+            case '\\':
+                if (this.next() == 'u') {
+                    this.next(4);
+                }
+                break;
+            default:
+                if (c == quote) {
+                    return;
+                }
+            }
+        }
+    }
+
+
     /**
      * Skip characters until the next character is the requested character.
      * If the requested character is not found, no characters are skipped.
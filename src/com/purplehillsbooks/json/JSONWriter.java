@@ -2,6 +2,9 @@ package com.purplehillsbooks.json;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
 
 /*
 Copyright (c) 2006 JSON.org
@@ -50,9 +53,18 @@ SOFTWARE.
  * <p>
  * The first method called must be <code>array</code> or <code>object</code>.
  * There are no methods for adding commas or colons. JSONWriter adds them for
- * you. Objects and arrays can be nested up to 20 levels deep.
+ * you. Objects and arrays can be nested up to 200 levels deep.
  * <p>
  * This can sometimes be easier than using a JSONObject to build a string.
+ * <p>
+ * <b>Streaming:</b> JSONWriter never builds a tree, and so it can be used to
+ * stream out very large documents.  Numbers, booleans, and strings are written
+ * directly into an internal buffer without making intermediate String objects,
+ * and the buffer is passed to the writer in large blocks.  The buffer is flushed
+ * to the writer when the outermost array or object is ended, or when flush()
+ * is called.  Checking for duplicate keys requires remembering all the keys of
+ * every open object, so for streaming large exports use
+ * <code>new JSONWriter(writer, false)</code> to turn that check off.
  * @author JSON.org
  * @version 2011-11-24
  */
@@ -76,9 +88,9 @@ public class JSONWriter {
     protected char mode;
 
     /**
-     * The object/array stack.
+     * The object/array stack, 'a' for an array, and 'k' for an object.
      */
-    private final JSONObject stack[];
+    private final char stack[];
 
     /**
      * The stack top index. A value of 0 indicates that the stack is empty.
@@ -86,47 +98,65 @@ public class JSONWriter {
     private int top;
 
     /**
-     * The writer that will receive the output.
+     * When checking for duplicate keys, the keys already written at
+     * each level.  The sets are reused as the levels open and close.
+     */
+    private final ArrayList<HashSet<String>> keySets;
+
+    /**
+     * The writer that will receive the output.  Output is buffered in this
+     * class, so call flush() before writing anything directly to it.
      */
     protected Writer writer;
 
+    /**
+     * The buffer holding output not yet passed to the writer.
+     */
+    private final CharSink sink;
+
     /**
      * Make a fresh JSONWriter. It can be used to build one JSON text.
+     * Duplicate keys in an object cause an exception.
      */
     public JSONWriter(Writer w) {
+        this(w, true);
+    }
+
+    /**
+     * Make a fresh JSONWriter. It can be used to build one JSON text.
+     * @param checkDuplicateKeys if true, then writing a key a second time
+     *        in the same object causes an exception.  If false, then no memory of
+     *        the keys is kept, which is best when streaming large documents.
+     */
+    public JSONWriter(Writer w, boolean checkDuplicateKeys) {
         this.comma = false;
         this.mode = 'i';
-        this.stack = new JSONObject[maxdepth];
+        this.stack = new char[maxdepth];
         this.top = 0;
         this.writer = w;
+        this.sink = new CharSink(w);
+        this.keySets = checkDuplicateKeys ? new ArrayList<HashSet<String>>() : null;
     }
 
     /**
-     * Append a value.
-     * @param string A string value.
-     * @return this
+     * Check that a value is allowed here, and write the comma if needed.
      * @throws JSONException If the value is out of sequence.
      */
-    private JSONWriter append(String string) throws JSONException {
-        if (string == null) {
-            throw new JSONException("Null pointer");
+    private void beforeValue() throws JSONException, IOException {
+        if (this.mode != 'o' && this.mode != 'a') {
+            throw new JSONException("Value out of sequence.");
         }
-        if (this.mode == 'o' || this.mode == 'a') {
-            try {
-                if (this.comma && this.mode == 'a') {
-                    this.writer.write(',');
-                }
-                this.writer.write(string);
-            } catch (IOException e) {
-                throw new JSONException("Error while appending a string to the JSONWriter", e);
-            }
-            if (this.mode == 'o') {
-                this.mode = 'k';
-            }
-            this.comma = true;
-            return this;
+        if (this.comma && this.mode == 'a') {
+            this.sink.write(',');
         }
-        throw new JSONException("Value out of sequence.");
+    }
+
+    private JSONWriter afterValue() {
+        if (this.mode == 'o') {
+            this.mode = 'k';
+        }
+        this.comma = true;
+        return this;
     }
 
     /**
@@ -140,8 +170,14 @@ public class JSONWriter {
      */
     public JSONWriter array() throws JSONException {
         if (this.mode == 'i' || this.mode == 'o' || this.mode == 'a') {
-            this.push(null);
-            this.append("[");
+            this.push('a');
+            try {
+                beforeValue();
+                this.sink.write('[');
+            } catch (IOException e) {
+                throw new JSONException("Error while starting an array in the JSONWriter", e);
+            }
+            afterValue();
             this.comma = false;
             return this;
         }
@@ -163,7 +199,10 @@ public class JSONWriter {
         }
         this.pop(mode);
         try {
-            this.writer.write(c);
+            this.sink.write(c);
+            if (this.top == 0) {
+                this.sink.flush();
+            }
         } catch (IOException e) {
             throw new JSONException("Error while ending an array or object", e);
         }
@@ -204,13 +243,15 @@ public class JSONWriter {
             throw new JSONException("Null key encountered while writing.");
         }
         if (this.mode == 'k') {
+            if (this.keySets != null && !this.keySets.get(this.top - 1).add(string)) {
+                throw new JSONException("Duplicate key \"" + string + "\"");
+            }
             try {
-                this.stack[this.top - 1].putOnce(string, Boolean.TRUE);
                 if (this.comma) {
-                    this.writer.write(',');
+                    this.sink.write(',');
                 }
-                this.writer.write(JSONObject.quote(string));
-                this.writer.write(':');
+                JSONObject.quote(string, this.sink);
+                this.sink.write(':');
                 this.comma = false;
                 this.mode = 'o';
                 return this;
@@ -236,8 +277,14 @@ public class JSONWriter {
             this.mode = 'o';
         }
         if (this.mode == 'o' || this.mode == 'a') {
-            this.append("{");
-            this.push(new JSONObject());
+            try {
+                beforeValue();
+                this.sink.write('{');
+            } catch (IOException e) {
+                throw new JSONException("Error while starting an object in the JSONWriter", e);
+            }
+            afterValue();
+            this.push('k');
             this.comma = false;
             return this;
         }
@@ -255,16 +302,13 @@ public class JSONWriter {
         if (this.top <= 0) {
             throw new JSONException("Nesting error.");
         }
-        char m = this.stack[this.top - 1] == null ? 'a' : 'k';
-        if (m != c) {
+        if (this.stack[this.top - 1] != c) {
             throw new JSONException("Nesting error.");
         }
         this.top -= 1;
         this.mode = this.top == 0
             ? 'd'
-            : this.stack[this.top - 1] == null
-            ? 'a'
-            : 'k';
+            : this.stack[this.top - 1];
     }
 
     /**
@@ -272,12 +316,18 @@ public class JSONWriter {
      * @param c The scope to open.
      * @throws JSONException If nesting is too deep.
      */
-    private void push(JSONObject jo) throws JSONException {
+    private void push(char c) throws JSONException {
         if (this.top >= maxdepth) {
             throw new JSONException("Nesting too deep.");
         }
-        this.stack[this.top] = jo;
-        this.mode = jo == null ? 'a' : 'k';
+        if (this.keySets != null && c == 'k') {
+            while (this.keySets.size() <= this.top) {
+                this.keySets.add(new HashSet<String>());
+            }
+            this.keySets.get(this.top).clear();
+        }
+        this.stack[this.top] = c;
+        this.mode = c;
         this.top += 1;
     }
 
@@ -290,7 +340,13 @@ public class JSONWriter {
      * @throws JSONException
      */
     public JSONWriter value(boolean b) throws JSONException {
-        return this.append(b ? "true" : "false");
+        try {
+            beforeValue();
+            this.sink.write(b ? "true" : "false");
+        } catch (IOException e) {
+            throw new JSONException("Error while appending a boolean to the JSONWriter", e);
+        }
+        return afterValue();
     }
 
     /**
@@ -300,7 +356,16 @@ public class JSONWriter {
      * @throws JSONException If the number is not finite.
      */
     public JSONWriter value(double d) throws JSONException {
-        return this.value(new Double(d));
+        if (Double.isInfinite(d) || Double.isNaN(d)) {
+            throw new JSONException("JSON does not allow non-finite numbers.");
+        }
+        try {
+            beforeValue();
+            this.sink.writeDouble(d);
+        } catch (IOException e) {
+            throw new JSONException("Error while appending a number to the JSONWriter", e);
+        }
+        return afterValue();
     }
 
     /**
@@ -310,7 +375,53 @@ public class JSONWriter {
      * @throws JSONException
      */
     public JSONWriter value(long l) throws JSONException {
-        return this.append(Long.toString(l));
+        try {
+            beforeValue();
+            this.sink.writeLong(l);
+        } catch (IOException e) {
+            throw new JSONException("Error while appending a number to the JSONWriter", e);
+        }
+        return afterValue();
+    }
+
+    /**
+     * Append a string value, quoted and escaped.
+     * @param string The string.  Null is written as the JSON null.
+     * @return this
+     * @throws JSONException If the value is out of sequence.
+     */
+    public JSONWriter value(String string) throws JSONException {
+        if (string == null) {
+            return this.value((Object) null);
+        }
+        try {
+            beforeValue();
+            JSONObject.quote(string, this.sink);
+        } catch (IOException e) {
+            throw new JSONException("Error while appending a string to the JSONWriter", e);
+        }
+        return afterValue();
+    }
+
+    /**
+     * Append a string value, quoted and escaped, from a StringBuilder,
+     * CharBuffer or other CharSequence, without making a String of it.
+     * The characters are escaped straight into the writer's buffer.
+     * @param chars The characters of the string.  Null is written as the JSON null.
+     * @return this
+     * @throws JSONException If the value is out of sequence.
+     */
+    public JSONWriter value(CharSequence chars) throws JSONException {
+        if (chars instanceof String || chars == null) {
+            return this.value((String) chars);
+        }
+        try {
+            beforeValue();
+            this.sink.writeQuoted(chars);
+        } catch (IOException e) {
+            throw new JSONException("Error while appending a string to the JSONWriter", e);
+        }
+        return afterValue();
     }
 
 
@@ -322,6 +433,216 @@ public class JSONWriter {
      * @throws JSONException If the value is out of sequence.
      */
     public JSONWriter value(Object object) throws JSONException {
-        return this.append(JSONObject.valueToString(object));
+        try {
+            beforeValue();
+            if (object instanceof Integer || object instanceof Long
+                    || object instanceof Short || object instanceof Byte) {
+                this.sink.writeLong(((Number) object).longValue());
+            }
+            else if (object instanceof Double) {
+                JSONObject.testValidity(object);
+                this.sink.writeDouble(((Double) object).doubleValue());
+            }
+            else if (object instanceof String) {
+                JSONObject.quote((String) object, this.sink);
+            }
+            else {
+                //containers are written straight into the buffer, not made into strings
+                JSONObject.writeValue(this.sink, object, 0, 0);
+            }
+        } catch (IOException e) {
+            throw new JSONException("Error while appending a value to the JSONWriter", e);
+        }
+        return afterValue();
+    }
+
+    /**
+     * Pass everything written so far on to the writer, and flush the writer.
+     * This is done automatically when the outermost object or array is ended.
+     */
+    public void flush() throws JSONException {
+        try {
+            this.sink.flush();
+        } catch (IOException e) {
+            throw new JSONException("Error while flushing the JSONWriter", e);
+        }
+    }
+
+
+    /**
+     * A simple, unsynchronized buffer in front of the writer, which can
+     * also format numbers directly into the buffer.
+     */
+    private static class CharSink extends Writer {
+        private final Writer dest;
+        private final char[] buf = new char[8192];
+        private int count = 0;
+        // holds a block of a CharSequence while it is escaped, made when first needed
+        private char[] scratch;
+
+        CharSink(Writer dest) {
+            this.dest = dest;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if (count == buf.length) {
+                flushBuffer();
+            }
+            buf[count++] = (char) c;
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            if (len > buf.length - count) {
+                flushBuffer();
+                if (len > buf.length) {
+                    dest.write(str, off, len);
+                    return;
+                }
+            }
+            str.getChars(off, off + len, buf, count);
+            count += len;
+        }
+
+        @Override
+        public void write(String str) throws IOException {
+            write(str, 0, str.length());
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (len > buf.length - count) {
+                flushBuffer();
+                if (len > buf.length) {
+                    dest.write(cbuf, off, len);
+                    return;
+                }
+            }
+            System.arraycopy(cbuf, off, buf, count, len);
+            count += len;
+        }
+
+        /**
+         * Writes the digits of a long without making a String
+         */
+        void writeLong(long l) throws IOException {
+            if (l == Long.MIN_VALUE) {
+                write("-9223372036854775808");
+                return;
+            }
+            if (buf.length - count < 20) {
+                flushBuffer();
+            }
+            if (l < 0) {
+                buf[count++] = '-';
+                l = -l;
+            }
+            int digits = 1;
+            for (long t = l; t >= 10; t /= 10) {
+                digits++;
+            }
+            int pos = count + digits;
+            do {
+                buf[--pos] = (char) ('0' + (int) (l % 10));
+                l /= 10;
+            } while (l > 0);
+            count += digits;
+        }
+
+        /**
+         * Writes a double the same way JSONObject.numberToString does:
+         * whole numbers without a decimal point, and others as Double.toString
+         * with trailing zeros removed.
+         */
+        void writeDouble(double d) throws IOException, JSONException {
+            if (d == (long) d && Math.abs(d) < 1e7 && !(d == 0 && 1/d < 0)) {
+                writeLong((long) d);
+                return;
+            }
+            write(JSONObject.numberToString(Double.valueOf(d)));
+        }
+
+        /**
+         * Writes the characters quoted and escaped exactly as JSONObject.quote
+         * does.  They are copied a block at a time into the scratch array,
+         * in bulk where the type allows, and the runs that need no escaping
+         * are copied from there into the buffer.
+         */
+        void writeQuoted(CharSequence chars) throws IOException {
+            if (scratch == null) {
+                scratch = new char[1024];
+            }
+            write('"');
+            int len = chars.length();
+            char prev = 0;
+            for (int off = 0; off < len; off += scratch.length) {
+                int n = Math.min(scratch.length, len - off);
+                copyChars(chars, off, n);
+                int start = 0;
+                for (int i = 0; i < n; i++) {
+                    char c = scratch[i];
+                    char esc = JSONObject.escapeCode(c, prev);
+                    prev = c;
+                    if (esc == 0) {
+                        continue;
+                    }
+                    write(scratch, start, i - start);
+                    if (buf.length - count < 6) {
+                        flushBuffer();
+                    }
+                    buf[count++] = '\\';
+                    if (esc == 'u') {
+                        buf[count++] = 'u';
+                        buf[count++] = JSONObject.HEX_DIGITS[(c >> 12) & 0xF];
+                        buf[count++] = JSONObject.HEX_DIGITS[(c >> 8) & 0xF];
+                        buf[count++] = JSONObject.HEX_DIGITS[(c >> 4) & 0xF];
+                        buf[count++] = JSONObject.HEX_DIGITS[c & 0xF];
+                    }
+                    else {
+                        buf[count++] = esc;
+                    }
+                    start = i + 1;
+                }
+                write(scratch, start, n - start);
+            }
+            write('"');
+        }
+
+        private void copyChars(CharSequence chars, int off, int n) {
+            if (chars instanceof StringBuilder) {
+                ((StringBuilder) chars).getChars(off, off + n, scratch, 0);
+            }
+            else if (chars instanceof StringBuffer) {
+                ((StringBuffer) chars).getChars(off, off + n, scratch, 0);
+            }
+            else if (chars instanceof CharBuffer && ((CharBuffer) chars).hasArray()) {
+                CharBuffer cb = (CharBuffer) chars;
+                System.arraycopy(cb.array(), cb.arrayOffset() + cb.position() + off, scratch, 0, n);
+            }
+            else {
+                for (int i = 0; i < n; i++) {
+                    scratch[i] = chars.charAt(off + i);
+                }
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                dest.write(buf, 0, count);
+                count = 0;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            dest.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
     }
 }
@@ -159,6 +159,7 @@ public class LockableJSONFile {
     private RandomAccessFile lockAccessFile2 = null;
     private FileLock lock = null;
     private FileLock lock2 = null;
+    private boolean binaryFormat = false;
 
     private static Hashtable<String, LockableJSONFile> surrogates = new Hashtable<String, LockableJSONFile>();
 
@@ -316,6 +317,44 @@ public class LockableJSONFile {
         }
     }
 
+    /**
+     * <p>Store the target file using the compact binary form (see JSONBinary)
+     * instead of JSON text.  The binary form is much faster to read for large
+     * files, but it is not human readable.</p>
+     *
+     * <p>This setting only chooses the form that is written.  Reading looks at
+     * the start of the target file and accepts either form no matter how this is
+     * set, so an existing file is converted to the chosen form the next time it
+     * is written.  The setting is held by the surrogate, so it applies to all
+     * threads that share this file.</p>
+     */
+    public void setBinaryFormat(boolean useBinary) {
+        binaryFormat = useBinary;
+    }
+
+    /**
+     * Tells whether the target file is written in the compact binary form.
+     */
+    public boolean isBinaryFormat() {
+        return binaryFormat;
+    }
+
+    private JSONObject readContents() throws Exception {
+        if (JSONBinary.isBinaryFile(target)) {
+            return JSONBinary.readFromFile(target);
+        }
+        return JSONObject.readFromFile(target);
+    }
+
+    private void writeContents(JSONObject newContent) throws Exception {
+        if (binaryFormat) {
+            JSONBinary.writeToFile(newContent, target);
+        }
+        else {
+            newContent.writeToFile(target);
+        }
+    }
+
     /**
      * Tells whether the calling program/thead is holding the lock.  It does not tell you whether
      * any other thread or program is holding the lock at the current moment.
@@ -361,7 +400,7 @@ public class LockableJSONFile {
         int retryCount = 0;
         while (retryCount++ < 5) {
             try {
-                newContent.writeToFile(target);
+                writeContents(newContent);
                 waitUntilItExists();
                 return;
             }
@@ -394,7 +433,7 @@ public class LockableJSONFile {
         while (retryCount++ < 5) {
             try {
                 waitUntilItExists();
-                JSONObject result = JSONObject.readFromFile(target);
+                JSONObject result = readContents();
                 getSecondLock();
                 return result;
             }
@@ -436,7 +475,7 @@ public class LockableJSONFile {
                 writeTarget(new JSONObject());
                 //System.out.println("LockableJSONFile: initialized file to empty JSON object: "+target);
             }
-            return JSONObject.readFromFile(target);
+            return readContents();
         }
         catch (Exception e) {
             JSONException.traceException(e, "LockableJSONFile.readTargetIfExists FAILURE: "+target);
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.purplehillsbooks.streams;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousByteChannel;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A copy that runs in the background without holding a thread while it
+ * waits for the disk or the network.  These are the non-blocking
+ * counterparts of the StreamHelper copy methods.  Each step of the copy is
+ * started by the completion of the step before, on the thread pool of the
+ * asynchronous channels, so many large copies can run at the same time
+ * using only a few threads.
+ *
+ * <pre>
+ * AsyncCopy copy = AsyncCopy.fileToFile(source, dest, null);
+ * ...
+ * long bytes = copy.get(10, TimeUnit.MINUTES);
+ * </pre>
+ *
+ * <p>The copy is started when it is created, and is a Future that gives
+ * the number of bytes copied.  Use get with a timeout to wait for it
+ * with a limit, and cancel to stop it.  If a copy fails, get throws an
+ * ExecutionException holding the cause.</p>
+ *
+ * <p>A copy to a file is written to a temporary file first, and moved into
+ * place only when it is complete, in the same way as StreamHelper does.  If
+ * the copy fails or is cancelled, the temporary file is deleted and the
+ * destination is left as it was.</p>
+ *
+ * <p>The "stream" end of a copy is an AsynchronousByteChannel, for example an
+ * AsynchronousSocketChannel.  That channel is not closed when the copy is done,
+ * it belongs to the caller.  Files are opened and closed by the copy.</p>
+ *
+ * Author: Keith Swenson Copyright: Keith Swenson, all rights reserved License:
+ * This code is made available under the GNU Lesser GPL license.
+ */
+public class AsyncCopy implements Future<Long> {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    // exactly one of each pair is set
+    private AsynchronousFileChannel inFile;
+    private AsynchronousByteChannel inChannel;
+    private AsynchronousFileChannel outFile;
+    private AsynchronousByteChannel outChannel;
+
+    // when writing to a file, the file being written and where it goes at the end
+    private File tempFile;
+    private File destFile;
+
+    private final CopyProgress progress;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private long total = -1;
+    private long readPos = 0;
+    private volatile long copied = 0;
+
+    private boolean done = false;
+    private boolean cancelled = false;
+    private Throwable failure = null;
+
+    private AsyncCopy(CopyProgress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Copies the contents of one file to another, replacing the destination
+     * file if it exists.
+     * @param progress is told about each block copied, or null
+     */
+    public static AsyncCopy fileToFile(File from, File to, CopyProgress progress) throws Exception {
+        AsyncCopy copy = new AsyncCopy(progress);
+        copy.openSource(from);
+        copy.openDestination(to);
+        copy.readNext();
+        return copy;
+    }
+
+    /**
+     * Sends the contents of a file to a channel, for example a socket.
+     * @param progress is told about each block copied, or null
+     */
+    public static AsyncCopy fileToChannel(File from, AsynchronousByteChannel out, CopyProgress progress) throws Exception {
+        AsyncCopy copy = new AsyncCopy(progress);
+        copy.openSource(from);
+        copy.outChannel = out;
+        copy.readNext();
+        return copy;
+    }
+
+    /**
+     * Reads everything from a channel, for example a socket, until it is
+     * at the end, and stores it in a file, replacing the file if it exists.
+     * @param progress is told about each block copied, or null
+     */
+    public static AsyncCopy channelToFile(AsynchronousByteChannel in, File to, CopyProgress progress) throws Exception {
+        AsyncCopy copy = new AsyncCopy(progress);
+        copy.inChannel = in;
+        copy.openDestination(to);
+        copy.readNext();
+        return copy;
+    }
+
+    private void openSource(File from) throws Exception {
+        try {
+            inFile = AsynchronousFileChannel.open(from.toPath(), StandardOpenOption.READ);
+            total = inFile.size();
+        }
+        catch (Exception e) {
+            closeFiles();
+            throw new Exception("Unable to open the file to copy: "+from, e);
+        }
+    }
+
+    private void openDestination(File to) throws Exception {
+        destFile = to;
+        tempFile = new File(to.getParentFile(), "~"+to.getName()+".tmp~");
+        try {
+            outFile = AsynchronousFileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        catch (Exception e) {
+            closeFiles();
+            throw new Exception("Unable to create the temporary file: "+tempFile, e);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private void readNext() {
+        if (isDone()) {
+            return;
+        }
+        if (inFile != null) {
+            inFile.read(buffer, readPos, null, readHandler);
+        }
+        else {
+            inChannel.read(buffer, null, readHandler);
+        }
+    }
+
+    private void writeNext() {
+        if (isDone()) {
+            return;
+        }
+        if (outFile != null) {
+            outFile.write(buffer, copied, null, writeHandler);
+        }
+        else {
+            outChannel.write(buffer, null, writeHandler);
+        }
+    }
+
+    private final CompletionHandler<Integer, Object> readHandler = new CompletionHandler<Integer, Object>() {
+        public void completed(Integer amt, Object attachment) {
+            try {
+                if (amt.intValue() < 0) {
+                    finish(null);
+                    return;
+                }
+                readPos += amt.intValue();
+                buffer.flip();
+                writeNext();
+            }
+            catch (Throwable t) {
+                finish(t);
+            }
+        }
+        public void failed(Throwable t, Object attachment) {
+            finish(t);
+        }
+    };
+
+    private final CompletionHandler<Integer, Object> writeHandler = new CompletionHandler<Integer, Object>() {
+        public void completed(Integer amt, Object attachment) {
+            try {
+                copied += amt.intValue();
+                if (buffer.hasRemaining()) {
+                    writeNext();
+                    return;
+                }
+                if (progress != null) {
+                    progress.bytesCopied(copied, total);
+                }
+                buffer.clear();
+                readNext();
+            }
+            catch (Throwable t) {
+                finish(t);
+            }
+        }
+        public void failed(Throwable t, Object attachment) {
+            finish(t);
+        }
+    };
+
+    /*
+     * Called once at the end, with null when the copy succeeded.
+     * Does nothing if the copy was already cancelled.
+     */
+    private synchronized void finish(Throwable t) {
+        if (done) {
+            return;
+        }
+        closeFiles();
+        if (t == null && tempFile != null) {
+            try {
+                StreamHelper.moveIntoPlace(tempFile, destFile);
+            }
+            catch (Throwable e) {
+                t = e;
+            }
+        }
+        if (t != null && tempFile != null) {
+            tempFile.delete();
+        }
+        failure = t;
+        done = true;
+        notifyAll();
+    }
+
+    private void closeFiles() {
+        closeQuietly(inFile);
+        closeQuietly(outFile);
+    }
+
+    private static void closeQuietly(Channel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        }
+        catch (Exception e) {
+            //nothing more can be done with it
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * The number of bytes written to the destination so far.
+     */
+    public long getBytesCopied() {
+        return copied;
+    }
+
+    /**
+     * Stops the copy.  The files are closed right away, which stops any
+     * read or write on them.  A read or write on the caller's channel is
+     * allowed to finish, unless mayInterruptIfRunning is true, in which case
+     * the caller's channel is closed as well.
+     * @return false if the copy had already finished
+     */
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+        if (done) {
+            return false;
+        }
+        cancelled = true;
+        done = true;
+        closeFiles();
+        if (mayInterruptIfRunning) {
+            closeQuietly(inChannel);
+            closeQuietly(outChannel);
+        }
+        if (tempFile != null) {
+            tempFile.delete();
+        }
+        notifyAll();
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Waits for the copy to finish and returns the number of bytes copied.
+     */
+    public synchronized Long get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    /**
+     * Waits no longer than the timeout for the copy to finish.  If it times
+     * out, the copy continues, and can be waited for again, or cancelled.
+     */
+    public synchronized Long get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException("Copy did not finish in the time allowed, "
+                        + copied + " bytes were copied");
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    private Long result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException("Copy was cancelled after "+copied+" bytes");
+        }
+        if (failure != null) {
+            throw new ExecutionException("Copy failed after "+copied+" bytes", failure);
+        }
+        return Long.valueOf(copied);
+    }
+}
@@ -29,6 +29,10 @@ import java.util.List;
  * That should be all you need. Create or open the file & streams yourself from
  * whatever source you need to read from.. Everything in this class works on
  * characters, and not bytes.
+ *
+ * parseLine reads only the characters of the line, and so it reads one
+ * character at a time.  To read a large file, use CSVReader, which reads
+ * the same format from a buffer.
  */
 public class CSVHelper {
 
@@ -44,26 +48,31 @@ public class CSVHelper {
     }
 
     /**
-     * Write a single row of a CSV table, all values are quoted
+     * Write a single row of a CSV table, all values are quoted.
+     * The characters between quotes are written as a single run.
      */
     public static void writeLine(Writer w, List<String> values) throws Exception {
         boolean firstVal = true;
         for (String val : values) {
-            if (!firstVal) {
-                w.write(",");
+            if (firstVal) {
+                w.write('\"');
             }
-            w.write("\"");
-            for (int i = 0; i < val.length(); i++) {
-                char ch = val.charAt(i);
-                if (ch == '\"') {
-                    w.write("\""); // extra quote
-                }
-                w.write(ch);
+            else {
+                w.write(",\"");
+            }
+            int start = 0;
+            int quote = val.indexOf('\"');
+            while (quote >= 0) {
+                w.write(val, start, quote + 1 - start);
+                w.write('\"'); // extra quote
+                start = quote + 1;
+                quote = val.indexOf('\"', start);
             }
-            w.write("\"");
+            w.write(val, start, val.length() - start);
+            w.write('\"');
             firstVal = false;
         }
-        w.write("\n");
+        w.write('\n');
     }
 
 
@@ -105,7 +114,7 @@ public class CSVHelper {
                 }
                 else if (ch == ',') {
                     store.add(curVal.toString());
-                    curVal = new StringBuilder();
+                    curVal.setLength(0);
                     started = false;
                 }
                 else if (ch == '\r') {
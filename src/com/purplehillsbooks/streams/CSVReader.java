@@ -0,0 +1,336 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.purplehillsbooks.streams;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads a CSV file one row at a time, for files too large to parse a line
+ * at a time with CSVHelper.parseLine.  The rules are exactly the same as
+ * parseLine, so anything written by CSVHelper.writeLine reads back the same.
+ *
+ * <pre>
+ * CSVReader csv = new CSVReader(reader);
+ * while (csv.nextRow()) {
+ *     String name = csv.getField(0);
+ *     ...
+ * }
+ * </pre>
+ *
+ * <p>The characters are read from the Reader into a large window and scanned
+ * there, a run of ordinary characters at a time, instead of calling read()
+ * for every character.  The values of a row are all kept in one character
+ * buffer that is used again for every row, so nothing is allocated for a row
+ * unless a value is asked for as a String.  To look at values without making
+ * Strings, use fieldEquals, appendField and writeField.</p>
+ *
+ * <p>Because it reads ahead, the Reader must not be used for anything else
+ * once the CSVReader has it.  For the same reason there is no need to wrap
+ * the Reader in a BufferedReader.  Like the other stream classes, use from
+ * a single thread only.</p>
+ *
+ * Author: Keith Swenson Copyright: Keith Swenson, all rights reserved License:
+ * This code is made available under the GNU Lesser GPL license.
+ */
+public class CSVReader implements Iterable<List<String>> {
+
+    private final Reader source;
+
+    // the window of characters read from the source: pos is the next to scan
+    private final char[] window;
+    private int pos = 0;
+    private int limit = 0;
+    private boolean atEnd = false;
+
+    // all the values of the current row, one after another, and where each ends
+    private char[] values = new char[256];
+    private int valuesLen = 0;
+    private int[] fieldEnds = new int[16];
+    private int fieldCount = 0;
+    private int rowNumber = 0;
+
+    public CSVReader(Reader source) {
+        this(source, 65536);
+    }
+
+    /**
+     * @param windowSize the number of characters read from the source at a time
+     */
+    public CSVReader(Reader source, int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("CSVReader window size must be positive: " + windowSize);
+        }
+        this.source = source;
+        this.window = new char[windowSize];
+    }
+
+    /*
+     * Makes sure there is at least one character in the window to scan.
+     * Returns false at the end of the source.
+     */
+    private boolean fill() throws Exception {
+        if (pos < limit) {
+            return true;
+        }
+        if (atEnd) {
+            return false;
+        }
+        int amt = source.read(window, 0, window.length);
+        while (amt == 0) {
+            amt = source.read(window, 0, window.length);
+        }
+        if (amt < 0) {
+            atEnd = true;
+            return false;
+        }
+        pos = 0;
+        limit = amt;
+        return true;
+    }
+
+    /**
+     * Moves to the next row of the file.  The values of the previous row
+     * are no longer available after this.
+     * @return false if there are no more rows
+     */
+    public boolean nextRow() throws Exception {
+        //ignore linefeed characters wherever they are, particularly just before end of file
+        while (fill() && window[pos] == '\r') {
+            pos++;
+        }
+        fieldCount = 0;
+        valuesLen = 0;
+        if (!fill()) {
+            return false;
+        }
+        boolean inquotes = false;
+        boolean started = false;
+        while (fill()) {
+            if (inquotes) {
+                started = true;
+                int start = pos;
+                while (pos < limit && window[pos] != '\"') {
+                    pos++;
+                }
+                appendValue(start, pos - start);
+                if (pos < limit) {
+                    //skip the closing quote
+                    pos++;
+                    inquotes = false;
+                }
+                continue;
+            }
+            int start = pos;
+            while (pos < limit) {
+                char ch = window[pos];
+                if (ch == '\"' || ch == ',' || ch == '\r' || ch == '\n') {
+                    break;
+                }
+                pos++;
+            }
+            appendValue(start, pos - start);
+            if (pos == limit) {
+                continue;
+            }
+            char ch = window[pos++];
+            if (ch == '\"') {
+                inquotes = true;
+                if (started) {
+                    // if this is the second quote in a value, add a quote
+                    // this is for the double quote in the middle of a value
+                    appendValue(pos - 1, 1);
+                }
+            }
+            else if (ch == ',') {
+                endField();
+                started = false;
+            }
+            else if (ch == '\n') {
+                //end of a line, break out
+                break;
+            }
+            //LF characters are ignored
+        }
+        endField();
+        rowNumber++;
+        return true;
+    }
+
+    private void appendValue(int start, int len) {
+        if (len == 0) {
+            return;
+        }
+        if (valuesLen + len > values.length) {
+            char[] bigger = new char[Math.max(values.length * 2, valuesLen + len)];
+            System.arraycopy(values, 0, bigger, 0, valuesLen);
+            values = bigger;
+        }
+        System.arraycopy(window, start, values, valuesLen, len);
+        valuesLen += len;
+    }
+
+    private void endField() {
+        if (fieldCount == fieldEnds.length) {
+            int[] bigger = new int[fieldCount * 2];
+            System.arraycopy(fieldEnds, 0, bigger, 0, fieldCount);
+            fieldEnds = bigger;
+        }
+        fieldEnds[fieldCount++] = valuesLen;
+    }
+
+    /**
+     * The number of values in the current row
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * The number of the current row, the first row is 1.  A value with a
+     * newline in it does not start a new row, so this is not always the
+     * line number of the file.
+     */
+    public int getRowNumber() {
+        return rowNumber;
+    }
+
+    private int fieldStart(int i) {
+        if (i < 0 || i >= fieldCount) {
+            throw new IndexOutOfBoundsException("Row " + rowNumber + " has " + fieldCount
+                    + " values, there is no value " + i);
+        }
+        return i == 0 ? 0 : fieldEnds[i - 1];
+    }
+
+    /**
+     * Returns a value of the current row, the first value is 0
+     */
+    public String getField(int i) {
+        int start = fieldStart(i);
+        return new String(values, start, fieldEnds[i] - start);
+    }
+
+    /**
+     * The number of characters in a value of the current row
+     */
+    public int getFieldLength(int i) {
+        return fieldEnds[i] - fieldStart(i);
+    }
+
+    /**
+     * Compares a value of the current row without making a String of it
+     */
+    public boolean fieldEquals(int i, String val) {
+        int start = fieldStart(i);
+        int len = fieldEnds[i] - start;
+        if (len != val.length()) {
+            return false;
+        }
+        for (int j = 0; j < len; j++) {
+            if (values[start + j] != val.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a value of the current row to the end of the StringBuilder
+     */
+    public void appendField(int i, StringBuilder sb) {
+        int start = fieldStart(i);
+        sb.append(values, start, fieldEnds[i] - start);
+    }
+
+    /**
+     * Writes a value of the current row to the Writer
+     */
+    public void writeField(int i, Writer w) throws Exception {
+        int start = fieldStart(i);
+        w.write(values, start, fieldEnds[i] - start);
+    }
+
+    /**
+     * Returns the values of the current row as a new list, the same
+     * as CSVHelper.parseLine would return.
+     */
+    public List<String> getRow() {
+        ArrayList<String> row = new ArrayList<String>(fieldCount);
+        getRow(row);
+        return row;
+    }
+
+    /**
+     * Clears the list, and fills it with the values of the current row,
+     * so that one list can be used for every row.
+     */
+    public void getRow(List<String> row) {
+        row.clear();
+        for (int i = 0; i < fieldCount; i++) {
+            row.add(getField(i));
+        }
+    }
+
+    /**
+     * Iterates the remaining rows, each as a new list.  The rows are read
+     * as they are iterated.  A problem reading the source is thrown as a
+     * RuntimeException, since an Iterator can not throw anything else.
+     */
+    public Iterator<List<String>> iterator() {
+        return new Iterator<List<String>>() {
+            private boolean ready = false;
+            private boolean more = false;
+
+            public boolean hasNext() {
+                if (!ready) {
+                    try {
+                        more = nextRow();
+                    }
+                    catch (Exception e) {
+                        throw new RuntimeException("Unable to read row " + (rowNumber + 1) + " of CSV file", e);
+                    }
+                    ready = true;
+                }
+                return more;
+            }
+
+            public List<String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("There are no more rows in the CSV file");
+                }
+                ready = false;
+                return getRow();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("Rows can not be removed from a CSV file");
+            }
+        };
+    }
+
+    /**
+     * Closes the Reader
+     */
+    public void close() throws Exception {
+        source.close();
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.purplehillsbooks.streams;
+
+/**
+ * Is told how far an AsyncCopy has gotten.  It is called on the thread
+ * that completed the I/O, which is a thread of the channel's thread pool,
+ * so it should return quickly and never block.
+ *
+ * @see com.purplehillsbooks.streams.AsyncCopy
+ */
+public interface CopyProgress {
+
+    /**
+     * @param copied the number of bytes written to the destination so far
+     * @param total the number of bytes that will be copied, or -1 if that
+     *        is not known because the source is not a file
+     */
+    public void bytesCopied(long copied, long total);
+
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.purplehillsbooks.streams;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+
+/**
+ * The same as MemFile, except that the bytes are held in direct ByteBuffers,
+ * outside of the Java heap.  Use this for large outputs, megabytes in size,
+ * that would otherwise fill the heap and be copied around by the garbage
+ * collector.
+ * <p>
+ * Streams, readers and writers work the same as MemFile.  In addition, the
+ * contents can be written to a channel, and when the channel is a
+ * FileChannel or a SocketChannel, all the buffers are passed to the operating
+ * system in a single gathering write, without copying them into the heap.
+ * outToOutputStream and outToFile do this automatically for file output.
+ * <p>
+ * Allocating a direct buffer is much slower than allocating a byte array, and
+ * the memory is only given back when the garbage collector finds the buffer
+ * is no longer used.  So clear() keeps the buffers, and a DirectMemFile should
+ * be cleared and used again rather than thrown away.  For small contents, use
+ * MemFile.
+ * <p>
+ * Threading: the same as MemFile, use from a single thread only.
+ * <p>
+ * Author: Keith Swenson Copyright: Keith Swenson, all rights reserved License:
+ * This code is made available under the GNU Lesser GPL license.
+ */
+public class DirectMemFile {
+
+    // all the buffers, in write mode: position is the amount filled
+    private ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+    // index of the buffer being filled, or -1 before the first write
+    private int current = -1;
+
+    private final int chunkSize;
+
+    /**
+     * Uses buffers of 256K each
+     */
+    public DirectMemFile() {
+        this(262144);
+    }
+
+    /**
+     * @param chunkSize the size of each direct buffer
+     */
+    public DirectMemFile(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("DirectMemFile chunk size must be positive: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Empties the file, but keeps the buffers to be filled again.
+     * Any input stream or reader on the old contents must no longer be used.
+     */
+    public void clear() {
+        for (ByteBuffer buf : chunks) {
+            buf.clear();
+        }
+        current = -1;
+    }
+
+    /*
+     * Returns the buffer to write into, with at least one byte of room
+     */
+    private ByteBuffer room() {
+        if (current >= 0) {
+            ByteBuffer buf = chunks.get(current);
+            if (buf.hasRemaining()) {
+                return buf;
+            }
+        }
+        current++;
+        if (current == chunks.size()) {
+            chunks.add(ByteBuffer.allocateDirect(chunkSize));
+        }
+        return chunks.get(current);
+    }
+
+    private void addBytes(byte[] b, int off, int len) {
+        while (len > 0) {
+            ByteBuffer buf = room();
+            int amt = Math.min(buf.remaining(), len);
+            buf.put(b, off, amt);
+            off += amt;
+            len -= amt;
+        }
+    }
+
+    /**
+     * Returns the filled part of each buffer, as separate buffers ready
+     * for reading, which share the contents but not the position.
+     */
+    private ByteBuffer[] readableBuffers() {
+        ByteBuffer[] res = new ByteBuffer[current + 1];
+        for (int i = 0; i <= current; i++) {
+            ByteBuffer view = chunks.get(i).duplicate();
+            view.flip();
+            res[i] = view;
+        }
+        return res;
+    }
+
+    /**
+     * Reads all bytes from the passed in InputStream and stores them.
+     * A FileInputStream is read through its channel, straight into the buffers.
+     */
+    public void fillWithInputStream(InputStream in) throws Exception {
+        if (in instanceof FileInputStream) {
+            fillWithChannel(((FileInputStream) in).getChannel());
+            return;
+        }
+        byte[] buf = new byte[8192];
+        int len = in.read(buf);
+        while (len >= 0) {
+            addBytes(buf, 0, len);
+            len = in.read(buf);
+        }
+    }
+
+    /**
+     * Reads everything from the channel into the buffers.
+     */
+    public void fillWithChannel(ReadableByteChannel in) throws Exception {
+        while (true) {
+            if (in.read(room()) < 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads all characters from the Reader and stores them as UTF-8.
+     */
+    public void fillWithReader(Reader in) throws Exception {
+        char[] buf = new char[8192];
+        Writer w = getWriter();
+        int len = in.read(buf);
+        while (len >= 0) {
+            w.write(buf, 0, len);
+            len = in.read(buf);
+        }
+        w.flush();
+    }
+
+    /**
+     * Writes the entire contents to the channel.  If the channel can do
+     * gathering writes, all the buffers are written with one call.
+     */
+    public void outToChannel(WritableByteChannel out) throws Exception {
+        ByteBuffer[] bufs = readableBuffers();
+        if (out instanceof GatheringByteChannel) {
+            GatheringByteChannel gather = (GatheringByteChannel) out;
+            int first = 0;
+            while (first < bufs.length) {
+                gather.write(bufs, first, bufs.length - first);
+                while (first < bufs.length && !bufs[first].hasRemaining()) {
+                    first++;
+                }
+            }
+        }
+        else {
+            for (ByteBuffer buf : bufs) {
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the entire contents to the OutputStream.  A FileOutputStream
+     * is written through its channel, without copying the bytes into the heap.
+     */
+    public void outToOutputStream(OutputStream out) throws Exception {
+        if (out instanceof FileOutputStream) {
+            outToChannel(((FileOutputStream) out).getChannel());
+            return;
+        }
+        byte[] tmp = new byte[8192];
+        for (ByteBuffer buf : readableBuffers()) {
+            while (buf.hasRemaining()) {
+                int amt = Math.min(tmp.length, buf.remaining());
+                buf.get(tmp, 0, amt);
+                out.write(tmp, 0, amt);
+            }
+        }
+    }
+
+    /**
+     * Writes the entire contents, decoded from UTF-8, to the Writer.
+     */
+    public void outToWriter(Writer w) throws Exception {
+        Reader r = getReader();
+        char[] buf = new char[8192];
+        int amt = r.read(buf);
+        while (amt > -1) {
+            w.write(buf, 0, amt);
+            amt = r.read(buf);
+        }
+    }
+
+    /**
+     * Writes the entire contents to the file.
+     */
+    public void outToFile(File file) throws Exception {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            outToChannel(fos.getChannel());
+        }
+        finally {
+            fos.close();
+        }
+    }
+
+    public InputStream getInputStream() {
+        return new DirectInputStream(readableBuffers());
+    }
+
+    /**
+     * Reads the contents as UTF-8
+     */
+    public Reader getReader() throws Exception {
+        return new InputStreamReader(getInputStream(), "UTF-8");
+    }
+
+    /**
+     * Adds to the end of whatever is currently in the file.
+     * The stream has no buffer, so flushing is not needed.
+     */
+    public OutputStream getOutputStream() {
+        return new DirectOutputStream();
+    }
+
+    /**
+     * Adds to the end in UTF-8.  Holds a buffer, so be sure to flush.
+     */
+    public Writer getWriter() throws Exception {
+        return new OutputStreamWriter(getOutputStream(), "UTF-8");
+    }
+
+    /**
+     * Returns the number of bytes currently held.
+     */
+    public long totalBytes() {
+        long total = 0;
+        for (int i = 0; i <= current; i++) {
+            total += chunks.get(i).position();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of bytes of direct memory allocated, which
+     * is more than totalBytes when there is room left in the buffers.
+     */
+    public long capacity() {
+        return (long) chunks.size() * chunkSize;
+    }
+
+    /**
+     * Returns the entire contents as a String, decoding from UTF-8.
+     * This copies everything into the heap, so be frugal.
+     */
+    public String toString() {
+        try {
+            StringBuilder sb = new StringBuilder();
+            Reader r = getReader();
+            char[] buf = new char[8192];
+            int amt = r.read(buf);
+            while (amt > 0) {
+                sb.append(buf, 0, amt);
+                amt = r.read(buf);
+            }
+            return sb.toString();
+        }
+        catch (Exception e) {
+            throw new RuntimeException("FATAL ERROR while converting a DirectMemFile to a String", e);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private static class DirectInputStream extends InputStream {
+        ByteBuffer[] bufs;
+        int idx = 0;
+
+        DirectInputStream(ByteBuffer[] bufs) {
+            this.bufs = bufs;
+        }
+
+        private ByteBuffer currentBuffer() {
+            while (idx < bufs.length) {
+                if (bufs[idx].hasRemaining()) {
+                    return bufs[idx];
+                }
+                idx++;
+            }
+            return null;
+        }
+
+        public int read() throws IOException {
+            ByteBuffer buf = currentBuffer();
+            if (buf == null) {
+                return -1;
+            }
+            return buf.get() & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int total = 0;
+            ByteBuffer buf = currentBuffer();
+            while (total < len && buf != null) {
+                int amt = Math.min(buf.remaining(), len - total);
+                buf.get(b, off + total, amt);
+                total += amt;
+                buf = currentBuffer();
+            }
+            if (total == 0) {
+                return -1;
+            }
+            return total;
+        }
+
+        public long skip(long n) throws IOException {
+            long total = 0;
+            ByteBuffer buf = currentBuffer();
+            while (total < n && buf != null) {
+                int amt = (int) Math.min(buf.remaining(), n - total);
+                buf.position(buf.position() + amt);
+                total += amt;
+                buf = currentBuffer();
+            }
+            return total;
+        }
+
+        public int available() throws IOException {
+            ByteBuffer buf = currentBuffer();
+            if (buf == null) {
+                return 0;
+            }
+            return buf.remaining();
+        }
+    }
+
+    private class DirectOutputStream extends OutputStream {
+
+        public void write(int b) throws IOException {
+            room().put((byte) b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || off + len > b.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            addBytes(b, off, len);
+        }
+
+        public void flush() throws IOException {
+            //there is nothing to do, no flushing required
+        }
+
+        public void close() throws IOException {
+            //there is nothing to do, no flushing required
+        }
+    }
+}
@@ -22,10 +22,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Holds a stream of bytes in memory. It is a buffer that you can stream to, and
@@ -92,32 +100,137 @@ import java.util.ArrayList;
  * the MemFile to write the entire contents to that.  But once you start using
  * streams correctly, the need to convert them to strings is almost elminated.
  * <p>
+ * <i>Memory:</i> Nothing is allocated until the first byte is written.  The first
+ * buffer is small (1K by default) and each new buffer is twice as large as the one
+ * before, up to a maximum (64K by default), so small files stay small and large
+ * files do not need many buffers.  Programs that make many MemFiles can give them
+ * a shared MemFileBufferPool, and call release() when done, so that the buffers
+ * are used again instead of being garbage collected.
+ * <p>
  * Author: Keith Swenson Copyright: Keith Swenson, all rights reserved License:
  * This code is made available under the GNU Lesser GPL license.
  */
 public class MemFile {
 
+    private static final byte[] NO_BYTES = new byte[0];
+
     // holds all the bytes as byte arrays in this vector
     private ArrayList<byte[]> contents;
+    // the number of bytes used in each of the arrays in contents, which is
+    // less than the array length only for chunks that were spliced in by append
+    private int[] contentLengths = new int[16];
 
     // this is the new, unfinished buffer must never be NULL!
-    private byte[] incomingBytes = null;
+    // it is empty until the first byte is written
+    private byte[] incomingBytes = NO_BYTES;
     // position in the new buffer
     private int    incomingPos   = 0;
 
+    // the first chunk is small, and each new one is twice as large up to the max
+    private final int initialChunkSize;
+    private final int maxChunkSize;
+    private int nextChunkSize;
+
+    // if not null, chunks come from here and go back here
+    private final MemFileBufferPool pool;
 
+    // running totals, so that the sizes do not need to be counted
+    private int adoptedBytes = 0;
+    private int charCount = 0;
+
+
+    /**
+     * Chunks start at 1K, and double in size up to 64K
+     */
     public MemFile() throws Exception {
+        this(1024, 65536, null);
+    }
+
+    /**
+     * Chunks start at 1K, and double in size up to 64K,
+     * and are taken from and returned to the pool.
+     */
+    public MemFile(MemFileBufferPool pool) {
+        this(1024, 65536, pool);
+    }
+
+    /**
+     * @param initialChunkSize the size of the first buffer
+     * @param maxChunkSize each buffer is twice the size of the one before, up to this size
+     * @param pool if not null, the buffers are taken from and returned to this pool
+     */
+    public MemFile(int initialChunkSize, int maxChunkSize, MemFileBufferPool pool) {
+        if (initialChunkSize < 1 || maxChunkSize < initialChunkSize) {
+            throw new IllegalArgumentException("MemFile chunk sizes must be positive and the max can not be less than the initial: "
+                    + initialChunkSize + ", " + maxChunkSize);
+        }
         contents = new ArrayList<byte[]>();
-        incomingBytes = new byte[5000];
+        this.initialChunkSize = initialChunkSize;
+        this.maxChunkSize = maxChunkSize;
+        this.nextChunkSize = initialChunkSize;
+        this.pool = pool;
     }
 
     /**
      * Gets rid of all stored contents and clears out memory ready to receive
-     * new content.
+     * new content.  If the MemFile has a pool, the buffers are returned to it,
+     * so any input stream or reader on the old contents must no longer be used.
      */
     public void clear() {
+        if (pool != null) {
+            for (byte[] buf : contents) {
+                pool.give(buf);
+            }
+        }
         contents.clear();
         incomingPos = 0;
+        adoptedBytes = 0;
+        charCount = 0;
+    }
+
+    /**
+     * Clears the contents and gives all the buffers back to the pool, if there is one.
+     * The MemFile can be used again, and will start again with a small buffer.
+     * Call this when finished with a MemFile that uses a pool.
+     */
+    public void release() {
+        clear();
+        if (pool != null && incomingBytes.length > 0) {
+            pool.give(incomingBytes);
+        }
+        incomingBytes = NO_BYTES;
+        nextChunkSize = initialChunkSize;
+    }
+
+    private void addChunk(byte[] buf, int len) {
+        int idx = contents.size();
+        if (idx >= contentLengths.length) {
+            contentLengths = Arrays.copyOf(contentLengths, idx * 2);
+        }
+        contents.add(buf);
+        contentLengths[idx] = len;
+        adoptedBytes += len;
+    }
+
+    /*
+     * The incoming buffer is full, keep it and start a new one
+     */
+    private void newChunk() {
+        if (incomingBytes.length > 0) {
+            //already counted as it was written
+            addChunk(incomingBytes, incomingBytes.length);
+        }
+        int size = nextChunkSize;
+        if (nextChunkSize < maxChunkSize) {
+            nextChunkSize = Math.min(nextChunkSize * 2, maxChunkSize);
+        }
+        if (pool != null) {
+            incomingBytes = pool.take(size);
+        }
+        else {
+            incomingBytes = new byte[size];
+        }
+        incomingPos = 0;
     }
 
 
@@ -125,13 +238,35 @@ public class MemFile {
      * This is the CORE routine for adding bytes to the internal buffers
      */
     private void addByte(int b) throws IOException {
-        if (incomingPos >= 5000) {
-            adopt(incomingBytes);
-            incomingBytes = new byte[5000];
-            incomingPos = 0;
+        if (incomingPos >= incomingBytes.length) {
+            newChunk();
         }
         incomingBytes[incomingPos] = (byte) b;
         incomingPos++;
+        if ((b & 0xC0) != 0x80) {
+            charCount += ((b & 0xF8) == 0xF0) ? 2 : 1;
+        }
+    }
+
+    /*
+     * Bulk version of addByte, copies as much as fits into the incoming
+     * buffer at a time.
+     */
+    private void addBytes(byte[] buf, int off, int len) {
+        while (len > 0) {
+            if (incomingPos >= incomingBytes.length) {
+                newChunk();
+            }
+            int amt = incomingBytes.length - incomingPos;
+            if (amt > len) {
+                amt = len;
+            }
+            System.arraycopy(buf, off, incomingBytes, incomingPos, amt);
+            charCount += countChars(incomingBytes, incomingPos, amt);
+            incomingPos += amt;
+            off += amt;
+            len -= amt;
+        }
     }
 
 
@@ -142,20 +277,18 @@ public class MemFile {
      * contents in memory.
      */
     public void fillWithInputStream(InputStream in) throws Exception {
-        byte[] buf = new byte[5000];
-        OutputStream out = getOutputStream();
-        int len = in.read(buf);
-        while (len > 0) {
-            if (len == 5000) {
-                out.write(buf);
+        //read directly into the incoming buffer, no copying needed
+        while (true) {
+            if (incomingPos >= incomingBytes.length) {
+                newChunk();
             }
-            else {
-                out.write(buf, 0, len);
+            int len = in.read(incomingBytes, incomingPos, incomingBytes.length - incomingPos);
+            if (len < 0) {
+                return;
             }
-            len = in.read(buf);
+            charCount += countChars(incomingBytes, incomingPos, len);
+            incomingPos += len;
         }
-        out.flush();
-        out.close();
     }
 
     /**
@@ -182,14 +315,53 @@ public class MemFile {
 
     /**
      * Writes the entire contents of the memory file to the OutputStream passed.
+     * A FileOutputStream is written through its channel with a single gathering
+     * write, see outToChannel.
      */
     public void outToOutputStream(OutputStream out) throws Exception {
-        for (byte[] buf : contents) {
-            out.write(buf);
+        if (out instanceof FileOutputStream) {
+            outToChannel(((FileOutputStream) out).getChannel());
+            return;
+        }
+        int count = contents.size();
+        for (int i = 0; i < count; i++) {
+            out.write(contents.get(i), 0, contentLengths[i]);
         }
         out.write(incomingBytes, 0, incomingPos);
     }
 
+    /**
+     * Writes the entire contents of the memory file to the channel.  The
+     * buffers are wrapped, not copied, and if the channel can do gathering writes
+     * (FileChannel and SocketChannel can) then all of them are passed to the
+     * operating system in one call, instead of one call per buffer.
+     */
+    public void outToChannel(WritableByteChannel out) throws Exception {
+        int count = contents.size();
+        ByteBuffer[] bufs = new ByteBuffer[count + 1];
+        for (int i = 0; i < count; i++) {
+            bufs[i] = ByteBuffer.wrap(contents.get(i), 0, contentLengths[i]);
+        }
+        bufs[count] = ByteBuffer.wrap(incomingBytes, 0, incomingPos);
+        if (out instanceof GatheringByteChannel) {
+            GatheringByteChannel gather = (GatheringByteChannel) out;
+            int first = 0;
+            while (first < bufs.length) {
+                gather.write(bufs, first, bufs.length - first);
+                while (first < bufs.length && !bufs[first].hasRemaining()) {
+                    first++;
+                }
+            }
+        }
+        else {
+            for (ByteBuffer buf : bufs) {
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+            }
+        }
+    }
+
     /**
      * Writes the entire contents of the memory file to the Writer that is
      * passed.
@@ -209,10 +381,13 @@ public class MemFile {
      * Writes the entire contents of the memory file to the file name passed in
      */
     public void outToFile(File file) throws Exception {
-        OutputStream os = new FileOutputStream(file);
-        this.outToOutputStream(os);
-        os.flush();
-        os.close();
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            outToChannel(fos.getChannel());
+        }
+        finally {
+            fos.close();
+        }
     }
 
     /**
@@ -244,14 +419,61 @@ public class MemFile {
     /**
      * Returns a Writer which may be written to in order to fill the memory
      * file. Adds to the end of whatever is currently in memory, so use "Clear"
-     * if you want to start with an empty memfile. Only supports UTF-8. Holds a
-     * buffer, so be sure to flush and/or close to get the complete value into
-     * the mem file.
+     * if you want to start with an empty memfile. Only supports UTF-8.
+     * The characters are encoded straight into the memory file, there is no
+     * buffer in the middle, but it does no harm to flush and close anyway.
+     * Only if the last character written is the first half of a surrogate pair
+     * is it held back, waiting for the second half.
      */
     public Writer getWriter() throws Exception {
-        return new OutputStreamWriter(getOutputStream(), "UTF-8");
-        // Should get this to work some day so that there is no buffer in the middle
-        //return new UTF8Writer(getOutputStream());
+        return new UTF8Writer();
+    }
+
+    /**
+     * Moves the entire contents of the other MemFile to the end of this one,
+     * without copying any bytes: the buffers of the other file become buffers
+     * of this file, and the other file is left empty.  Any buffers of the other
+     * file that are not full stay that way, and writing continues in the last
+     * buffer of the other file.  This is the way to put together output that
+     * was produced in separate pieces, in any order and even on different threads.
+     */
+    public void append(MemFile other) {
+        if (other == this) {
+            throw new IllegalArgumentException("A MemFile can not be appended to itself");
+        }
+        if (other.totalBytes() == 0) {
+            return;
+        }
+        if (incomingPos > 0) {
+            addChunk(incomingBytes, incomingPos);
+        }
+        else if (incomingBytes.length > 0 && pool != null) {
+            pool.give(incomingBytes);
+        }
+        int count = other.contents.size();
+        for (int i = 0; i < count; i++) {
+            addChunk(other.contents.get(i), other.contentLengths[i]);
+        }
+        charCount += other.charCount;
+        incomingBytes = other.incomingBytes;
+        incomingPos = other.incomingPos;
+        if (nextChunkSize < other.nextChunkSize) {
+            nextChunkSize = Math.min(other.nextChunkSize, maxChunkSize);
+        }
+
+        other.contents.clear();
+        other.adoptedBytes = 0;
+        other.charCount = 0;
+        other.incomingBytes = NO_BYTES;
+        other.incomingPos = 0;
+    }
+
+    /**
+     * Makes a new, empty MemFile with the same chunk sizes and pool as this one,
+     * for pieces that will later be appended to this one.
+     */
+    public MemFile newSegment() {
+        return new MemFile(initialChunkSize, maxChunkSize, pool);
     }
 
     /**
@@ -260,117 +482,140 @@ public class MemFile {
      * the file. Do NOT reuse the buffer after passing it to this routine.
      */
     public void adopt(byte[] buf) {
-        contents.add(buf);
+        addChunk(buf, buf.length);
+        charCount += countChars(buf, 0, buf.length);
     }
 
     /**
      * Returns the number of bytes that the MemFile currently is holding.
+     * This is kept as the bytes are written, so it takes no time.
      */
     public int totalBytes() {
-        int total = 0;
-        for (byte[] buf : contents) {
-            total += buf.length;
-        }
-        //now account for the partial buffer
-        total += incomingPos;
-        return total;
+        return adoptedBytes + incomingPos;
     }
 
     /**
-     * Returns the number of characters that the MemFile currently is holding.
-     * Caution, the result is accurate, but this requires scanning and deciding
-     * all the bytes to determine when multibyte sequences add up to only a
-     * single character.
+     * Returns the number of characters that the MemFile currently is holding,
+     * which is the length of the String that toString would return.  This is
+     * counted as the bytes are written, so it takes no time.  Characters outside
+     * of the basic multilingual plane are four bytes in UTF-8 and count as two,
+     * because they take two chars (a surrogate pair) in Java.  If the bytes are
+     * not valid UTF-8, the count may be different from the decoded length.
      */
     public int totalChars() {
-        int total = 0;
-        for (byte[] buf : contents) {
-            for (byte ch : buf) {
-                // There are three cases:
-                // 1) if the byte is below 128, then it is a simple ASCII
-                // character where each character takes one byte. Count this.
-                // 2) if the byte is between 128 and 192 then it is part of
-                // a multibyte sequence. Don't count any of these.
-                // since bytes are signed, this is -128 thru -65
-                // 3) if the byte is 192 or above, then it is the terminating
-                // byte of a multibyte character. Count this.
-                // since bytes are signed, this is -64 thru -1
-                if (ch >= -64) {
-                    total++;
-                }
-            }
-        }
+        return charCount;
+    }
 
-        //account for those in the incoming buffer
-        for (int i=0; i<incomingPos; i++) {
-            if (incomingBytes[i] >= -64) {
-                total++;
+    /*
+     * Counts the chars that the UTF-8 bytes decode to.  Every byte that is
+     * not a continuation byte (10xxxxxx) starts a character, and the lead byte
+     * of a four byte sequence (11110xxx) makes a surrogate pair.  There is no
+     * state to carry between calls, so this works even when a sequence is
+     * split between two buffers.
+     */
+    private static int countChars(byte[] buf, int off, int len) {
+        int count = 0;
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            int b = buf[i];
+            if ((b & 0xC0) != 0x80) {
+                count += ((b & 0xF8) == 0xF0) ? 2 : 1;
             }
         }
-        return total;
+        return count;
     }
 
     /**
      * copies the specified number of bytes from the byte array and adds it to
      * the file. It is OK to use the buffer for other purposes after this.
+     *
+     * @param buf the bytes to copy from
+     * @param pos the position in buf of the first byte to copy
+     * @param len the number of bytes to copy
      */
     public void addPartial(byte[] buf, int pos, int len) {
-
-        // first test and handle the incoming overflow situation
-        // there might be many of these if incoming buffer is
-        // quite large
-        while (len - pos > 5000 - incomingPos) {
-            int amtToXFer = 5000 - incomingPos;
-            for (int i = 0; i < amtToXFer; i++) {
-                incomingBytes[i+incomingPos] = buf[i+pos];
-            }
-            adopt(incomingBytes);
-            incomingBytes=new byte[5000];
-            incomingPos=0;
-            pos = pos + amtToXFer;
-        }
-
-        //now we have less than a full buffer to deal with, transfer the rest
-        if (len - pos > 0) {
-            int amtToXFer = len - pos;
-            for (int i = 0; i < amtToXFer; i++) {
-                incomingBytes[i+incomingPos] = buf[i+pos];
-            }
-            incomingPos = incomingPos + amtToXFer;
-        }
+        addBytes(buf, pos, len);
     }
 
 
     /**
     * Returns the entire contents of the MemFile as a single string.
-    * It first figures out how many characters there are, and then
-    * allocates a single StringBuffer of the right size,
-    * puts the characters into it, and returns the string.
+    * The bytes are decoded straight from the buffers into a char array
+    * of the right size, which is known from totalChars.  Bad UTF-8
+    * is replaced with the Unicode replacement character.
     *
     * It does this copying every time you call it, so be frugal.
     */
     public String toString() {
         try {
-            int size = totalChars();
-            StringBuffer sb = new StringBuffer(size+10);
-            Reader r = getReader();
-            char[] buf = new char[1000];
-            int amt = r.read(buf, 0, 1000);
-            while (amt>0) {
-                sb.append(buf,0,amt);
-                amt = r.read(buf, 0, 1000);
-            }
-            String res = sb.toString();
-            return res;
+            CharsetDecoder dec = Charset.forName("UTF-8").newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer out = CharBuffer.allocate(charCount);
+            //holds the bytes of a character split between two buffers
+            ByteBuffer carry = ByteBuffer.allocate(8);
+            int count = contents.size();
+            for (int i = 0; i <= count; i++) {
+                ByteBuffer in;
+                if (i < count) {
+                    in = ByteBuffer.wrap(contents.get(i), 0, contentLengths[i]);
+                }
+                else {
+                    in = ByteBuffer.wrap(incomingBytes, 0, incomingPos);
+                }
+                while (carry.position() > 0 && in.hasRemaining()) {
+                    carry.put(in.get());
+                    carry.flip();
+                    out = decodeInto(dec, carry, out, false);
+                    carry.compact();
+                }
+                out = decodeInto(dec, in, out, false);
+                carry.put(in);
+            }
+            carry.flip();
+            out = decodeInto(dec, carry, out, true);
+            while (dec.flush(out).isOverflow()) {
+                out = grow(out);
+            }
+            return new String(out.array(), 0, out.position());
         }
         catch (Exception e) {
             throw new RuntimeException("FATAL ERROR while converting a MemFile to a String", e);
         }
     }
 
+    private static CharBuffer decodeInto(CharsetDecoder dec, ByteBuffer in, CharBuffer out,
+            boolean endOfInput) throws Exception {
+        while (true) {
+            CoderResult cr = dec.decode(in, out, endOfInput);
+            if (cr.isOverflow()) {
+                //only happens when replacements make the text longer than counted
+                out = grow(out);
+            }
+            else if (cr.isError()) {
+                cr.throwException();
+            }
+            else {
+                return out;
+            }
+        }
+    }
+
+    private static CharBuffer grow(CharBuffer out) {
+        CharBuffer bigger = CharBuffer.allocate(out.capacity() * 2 + 16);
+        out.flip();
+        bigger.put(out);
+        return bigger;
+    }
+
     ////////////////////////////////////////////////////////////////////
 
-    class MemFileInputStream extends InputStream {
+    /**
+     * The stream returned by getInputStream.  It is public so that transferTo
+     * can be called on it directly, which writes the rest of the MemFile to an
+     * OutputStream straight from the internal buffers.
+     */
+    public class MemFileInputStream extends InputStream {
         MemFile mf = null;
         int idx = 0;
         byte[] currentBuf = null;
@@ -381,7 +626,7 @@ public class MemFile {
             mf = newmf;
             if (mf.contents.size() > 0) {
                 currentBuf = mf.contents.get(0);
-                currentBufAmt = currentBuf.length;
+                currentBufAmt = mf.contentLengths[0];
             }
             else {
                 currentBuf = mf.incomingBytes;
@@ -391,10 +636,14 @@ public class MemFile {
             posInBuf = 0;
         }
 
-        public int read() throws IOException {
-            if (posInBuf >= currentBufAmt) {
+        /*
+         * Move to the next buffer if the current one is used up.
+         * Returns false at the end of the file.
+         */
+        private boolean ensureBytes() {
+            while (posInBuf >= currentBufAmt) {
                 if (idx > mf.contents.size()) {
-                    return -1;
+                    return false;
                 }
                 else if (idx == mf.contents.size()) {
                     currentBuf = mf.incomingBytes;
@@ -402,17 +651,72 @@ public class MemFile {
                 }
                 else {
                     currentBuf = mf.contents.get(idx);
-                    currentBufAmt = currentBuf.length;
+                    currentBufAmt = mf.contentLengths[idx];
                 }
                 posInBuf = 0;
                 idx++;
             }
+            return true;
+        }
+
+        public int read() throws IOException {
+            if (!ensureBytes()) {
+                return -1;
+            }
             // return an unsigned value!
             int res = (currentBuf[posInBuf]) & 0xFF;
             posInBuf++;
             return res;
         }
 
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int total = 0;
+            while (total < len && ensureBytes()) {
+                int amt = currentBufAmt - posInBuf;
+                if (amt > len - total) {
+                    amt = len - total;
+                }
+                System.arraycopy(currentBuf, posInBuf, b, off + total, amt);
+                posInBuf += amt;
+                total += amt;
+            }
+            if (total == 0) {
+                return -1;
+            }
+            return total;
+        }
+
+        public long skip(long n) throws IOException {
+            long total = 0;
+            while (total < n && ensureBytes()) {
+                long amt = currentBufAmt - posInBuf;
+                if (amt > n - total) {
+                    amt = n - total;
+                }
+                posInBuf += (int) amt;
+                total += amt;
+            }
+            return total;
+        }
+
+        /**
+         * Writes all the remaining bytes directly from the buffers
+         * of the MemFile to the output stream.
+         */
+        public long transferTo(OutputStream out) throws IOException {
+            long total = 0;
+            while (ensureBytes()) {
+                int amt = currentBufAmt - posInBuf;
+                out.write(currentBuf, posInBuf, amt);
+                posInBuf += amt;
+                total += amt;
+            }
+            return total;
+        }
+
         // returns the number of bytes in the current buffer
         public int available() throws IOException {
             if (currentBuf == null) {
@@ -436,6 +740,13 @@ public class MemFile {
             mf.addByte(b);
         }
 
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || off + len > b.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            mf.addBytes(b, off, len);
+        }
+
         public void flush() throws IOException {
             //there is nothing to do, no flushing required
         }
@@ -446,67 +757,141 @@ public class MemFile {
     }
 
 
+    /**
+     * Encodes characters as UTF-8 directly into the incoming buffer of the
+     * MemFile, with no buffer of its own, so there is nothing to flush.
+     * Runs of ASCII characters are copied in a tight loop.  A surrogate pair
+     * is written as a single four byte character, even when the two halves
+     * come in separate calls.  A surrogate without its other half is written
+     * as '?', the same as OutputStreamWriter does.
+     */
     class UTF8Writer extends Writer {
-        OutputStream wos = null;
-        int  firstSurrogateChar = -1;
+        // the first half of a surrogate pair, waiting for the second
+        int pendingHigh = -1;
+        char[] strBuf = null;
 
-        UTF8Writer(OutputStream _wos) {
-            wos = _wos;
-        }
+        char[] one = new char[1];
 
         public void write(int ch) throws IOException {
-
-            //handle the second half of a surrogate char pair
-            if (firstSurrogateChar>0) {
-                if (ch < 0xD800 || ch > 0xDFFF) {
-                     throw new IOException("UTF-16 encoding error: got the first character of a surrogate pair, but followed by an invalid character: "
-                         +Integer.toString(firstSurrogateChar)+"&"+Integer.toString(ch));
-                }
-                int combined = 0x10000 + ((firstSurrogateChar % 1024) << 10) + (ch % 1024);
-                wos.write(140 + ((combined >> 18) % 8));
-                wos.write(128 + (combined % 64));
-                wos.write(128 + ((combined >> 6) % 64));
-                wos.write(128 + ((combined >> 12) % 64));
-                firstSurrogateChar=-1;
+            if (ch < 0x80 && pendingHigh < 0) {
+                addByte(ch);
                 return;
             }
-            if (ch < 128)  {
-                wos.write(ch);
-                return;
+            one[0] = (char) ch;
+            write(one, 0, 1);
+        }
+
+        public void write(String str, int off, int len) throws IOException {
+            if (strBuf == null) {
+                strBuf = new char[1024];
             }
-            if (ch < 2048)  {
-                wos.write(192 + ((ch >> 6) % 32));
-                wos.write(128 + (ch % 64));
-                return;
+            while (len > 0) {
+                int amt = Math.min(len, strBuf.length);
+                str.getChars(off, off + amt, strBuf, 0);
+                write(strBuf, 0, amt);
+                off += amt;
+                len -= amt;
             }
+        }
 
-            // exclude the 'surrogate' characters
-            if (ch < 0xD800 || ch > 0xDFFF) {
-                wos.write(224 + ((ch >> 12) % 16));
-                wos.write(128 + (ch % 64));
-                wos.write(128 + ((ch >> 6) % 64));
-                return;
+        @Override
+        public void write(char[] buf, int off, int len) throws IOException {
+            int pos = off;
+            int end = off + len;
+            if (pendingHigh >= 0 && pos < end) {
+                char low = buf[pos];
+                if (Character.isLowSurrogate(low)) {
+                    writeCodePoint(Character.toCodePoint((char) pendingHigh, low));
+                    pos++;
+                }
+                else {
+                    addByte('?');
+                }
+                pendingHigh = -1;
             }
+            while (pos < end) {
+                if (incomingPos >= incomingBytes.length) {
+                    newChunk();
+                }
 
-            // oh boy, we are in the surrogate-character world, store this and
-            // wait for the next character
-            firstSurrogateChar = ch;
-        }
+                //ASCII fast path: copy as many as fit in the buffer
+                byte[] dest = incomingBytes;
+                int dp = incomingPos;
+                int limit = Math.min(dest.length - dp, end - pos) + pos;
+                int start = pos;
+                while (pos < limit) {
+                    char ch = buf[pos];
+                    if (ch >= 0x80) {
+                        break;
+                    }
+                    dest[dp++] = (byte) ch;
+                    pos++;
+                }
+                incomingPos = dp;
+                charCount += pos - start;
+                if (pos >= end || pos >= limit) {
+                    continue;
+                }
 
-        @Override
-        public void write(char[] buf, int pos, int last) throws IOException {
-            for (int i=pos; i<last; i++) {
-                write(buf[i]);
+                char ch = buf[pos++];
+                if (ch < 0x800) {
+                    writeCodePoint(ch);
+                }
+                else if (Character.isHighSurrogate(ch)) {
+                    if (pos >= end) {
+                        //the other half might come in the next call
+                        pendingHigh = ch;
+                    }
+                    else if (Character.isLowSurrogate(buf[pos])) {
+                        writeCodePoint(Character.toCodePoint(ch, buf[pos]));
+                        pos++;
+                    }
+                    else {
+                        addByte('?');
+                    }
+                }
+                else if (Character.isLowSurrogate(ch)) {
+                    addByte('?');
+                }
+                else {
+                    writeCodePoint(ch);
+                }
             }
         }
 
+        /*
+         * Writes one non-ASCII character.  addByte keeps the char count.
+         */
+        private void writeCodePoint(int cp) throws IOException {
+            if (cp < 0x80) {
+                addByte(cp);
+            }
+            else if (cp < 0x800) {
+                addByte(0xC0 | (cp >> 6));
+                addByte(0x80 | (cp & 0x3F));
+            }
+            else if (cp < 0x10000) {
+                addByte(0xE0 | (cp >> 12));
+                addByte(0x80 | ((cp >> 6) & 0x3F));
+                addByte(0x80 | (cp & 0x3F));
+            }
+            else {
+                addByte(0xF0 | (cp >> 18));
+                addByte(0x80 | ((cp >> 12) & 0x3F));
+                addByte(0x80 | ((cp >> 6) & 0x3F));
+                addByte(0x80 | (cp & 0x3F));
+            }
+        }
 
         public void flush() throws IOException {
             //there is nothing to do, no flushing required
         }
 
         public void close() throws IOException {
-            //there is nothing to do, no flushing required
+            if (pendingHigh >= 0) {
+                addByte('?');
+                pendingHigh = -1;
+            }
         }
 
     }
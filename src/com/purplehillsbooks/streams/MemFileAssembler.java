@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.purplehillsbooks.streams;
+
+import java.util.ArrayList;
+
+/**
+ * Puts together one MemFile from pieces that are written at the same time
+ * by different threads.  The pieces are reserved in the order they belong in
+ * the output, then each is handed to a thread to fill.  When a piece is
+ * complete, it is appended to the target as soon as all the pieces before it
+ * are complete.  Appending moves the buffers, so no bytes are ever copied.
+ *
+ * <pre>
+ * MemFile page = new MemFile();
+ * MemFileAssembler asm = new MemFileAssembler(page);
+ * final MemFile header = asm.reserve();
+ * final MemFile body = asm.reserve();
+ * executor.submit(... render body ...; asm.complete(body); ...);
+ * ... render header ...; asm.complete(header);
+ * asm.finish();
+ * page.outToOutputStream(response);
+ * </pre>
+ *
+ * <p>Each piece is a normal MemFile, and must be used by only one thread
+ * at a time, and not used at all after it is completed.  The target must not
+ * be written or read until finish() returns.  reserve(), complete() and finish()
+ * can be called from any thread.</p>
+ *
+ * Author: Keith Swenson Copyright: Keith Swenson, all rights reserved License:
+ * This code is made available under the GNU Lesser GPL license.
+ */
+public class MemFileAssembler {
+
+    private final MemFile target;
+    private final ArrayList<MemFile> segments = new ArrayList<MemFile>();
+    private final ArrayList<Boolean> completed = new ArrayList<Boolean>();
+    // all segments before this one have been appended to the target
+    private int nextToAppend = 0;
+
+    public MemFileAssembler(MemFile target) {
+        this.target = target;
+    }
+
+    /**
+     * Returns a new, empty MemFile for the next piece of the output.
+     * Pieces appear in the output in the order they were reserved.
+     */
+    public synchronized MemFile reserve() {
+        MemFile seg = target.newSegment();
+        segments.add(seg);
+        completed.add(Boolean.FALSE);
+        return seg;
+    }
+
+    /**
+     * Call when the piece has been completely written.  If all the pieces
+     * before it are complete, it is appended to the target right away,
+     * along with any complete pieces after it.
+     */
+    public synchronized void complete(MemFile segment) {
+        int idx = indexOf(segment);
+        if (completed.get(idx).booleanValue()) {
+            throw new IllegalStateException("MemFile segment " + idx + " was already completed");
+        }
+        completed.set(idx, Boolean.TRUE);
+        while (nextToAppend < segments.size() && completed.get(nextToAppend).booleanValue()) {
+            target.append(segments.get(nextToAppend));
+            //let the emptied segment be garbage collected
+            segments.set(nextToAppend, null);
+            nextToAppend++;
+        }
+        if (nextToAppend == segments.size()) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until every reserved piece has been completed and appended,
+     * and returns the target, which is then safe to use on this thread.
+     */
+    public synchronized MemFile finish() throws InterruptedException {
+        while (nextToAppend < segments.size()) {
+            wait();
+        }
+        return target;
+    }
+
+    private int indexOf(MemFile segment) {
+        for (int i = nextToAppend; i < segments.size(); i++) {
+            if (segments.get(i) == segment) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("MemFile is not a segment of this assembler, or was already completed");
+    }
+}
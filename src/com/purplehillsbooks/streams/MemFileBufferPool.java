@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.purplehillsbooks.streams;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * A pool of byte arrays that MemFile uses for its chunks, so that the chunks
+ * of a MemFile that is cleared or released can be used again by the next
+ * MemFile, instead of being left for the garbage collector.  A program that
+ * makes many short lived MemFiles, for example one for every web request, can
+ * share one pool for all of them.
+ *
+ * <pre>
+ * MemFile mf = new MemFile(MemFileBufferPool.getShared());
+ * ...
+ * mf.release();
+ * </pre>
+ *
+ * <p>Buffers are kept by their exact size.  The pool holds at most the
+ * given number of bytes; buffers returned beyond that are simply dropped.
+ * The pool is synchronized and can be shared by any number of threads,
+ * but each MemFile must still be used by only one thread at a time.</p>
+ *
+ * Author: Keith Swenson Copyright: Keith Swenson, all rights reserved License:
+ * This code is made available under the GNU Lesser GPL license.
+ */
+public class MemFileBufferPool {
+
+    private static MemFileBufferPool shared = null;
+
+    private final long maxPooledBytes;
+    private long pooledBytes = 0;
+    private final HashMap<Integer, ArrayDeque<byte[]>> free = new HashMap<Integer, ArrayDeque<byte[]>>();
+
+    /**
+     * @param maxPooledBytes the most bytes that will be held in the pool
+     *        while not in use.
+     */
+    public MemFileBufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * A pool for the whole JVM, holding up to 16 megabytes of free buffers.
+     */
+    public static synchronized MemFileBufferPool getShared() {
+        if (shared == null) {
+            shared = new MemFileBufferPool(16L * 1024 * 1024);
+        }
+        return shared;
+    }
+
+    /**
+     * Returns a buffer of exactly this size, from the pool if there
+     * is one available, otherwise newly allocated.  The contents of a
+     * recycled buffer are whatever was left in it.
+     */
+    public byte[] take(int size) {
+        synchronized (this) {
+            ArrayDeque<byte[]> list = free.get(size);
+            if (list != null) {
+                byte[] buf = list.poll();
+                if (buf != null) {
+                    pooledBytes -= size;
+                    return buf;
+                }
+            }
+        }
+        return new byte[size];
+    }
+
+    /**
+     * Puts a buffer into the pool for use later.  The caller must not
+     * use the buffer after this.
+     */
+    public synchronized void give(byte[] buf) {
+        int size = buf.length;
+        if (size == 0 || pooledBytes + size > maxPooledBytes) {
+            return;
+        }
+        ArrayDeque<byte[]> list = free.get(size);
+        if (list == null) {
+            list = new ArrayDeque<byte[]>();
+            free.put(size, list);
+        }
+        list.push(buf);
+        pooledBytes += size;
+    }
+
+    /**
+     * The number of bytes in buffers currently waiting in the pool.
+     */
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+}
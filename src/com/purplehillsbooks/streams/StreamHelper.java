@@ -3,32 +3,51 @@ package com.purplehillsbooks.streams;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /**
  * Quite simply: there are a number of patterns that get written over and over
  * when using streams, and so these methods are just a common colection of shortcuts
  *
+ * When both ends of a copy are files (or a file and a channel), the copy is done
+ * with FileChannel.transferTo, which lets the operating system move the bytes
+ * without bringing them into Java at all.  Other copies use a 64K buffer.
+ * Files are written to a temporary file first and then moved into place
+ * atomically, so a reader of the destination sees either the old or the new
+ * contents, never a partial file.
+ *
+ * These methods block until the copy is done.  To copy without holding a
+ * thread, use AsyncCopy.
+ *
  * Author: Keith Swenson Copyright: Keith Swenson, all rights reserved License:
  * This code is made available under the GNU Lesser GPL license.
  */
 public class StreamHelper {
 
+    private static final int BUFFER_SIZE = 65536;
+
     /**
     * copyReaderToWriter will read character from the Reader, and send them to the
     * Writer until the Reader is exhausted.
     */
     public static void copyReaderToWriter(Reader r, Writer w) throws Exception {
-        char[] buf = new char[1000];
-        int amt = r.read(buf, 0, 1000);
+        char[] buf = new char[16384];
+        int amt = r.read(buf, 0, buf.length);
         while (amt>0) {
             w.write(buf, 0, amt);
-            amt = r.read(buf, 0, 1000);
+            amt = r.read(buf, 0, buf.length);
         }
         w.flush();
     }
@@ -38,11 +57,22 @@ public class StreamHelper {
     * output stream until the input stream is exhausted.
     */
     public static void copyInputToOutput(InputStream is, OutputStream os) throws Exception {
-        byte[] buf = new byte[1000];
-        int amt = is.read(buf, 0, 1000);
+        if (is instanceof FileInputStream && os instanceof FileOutputStream) {
+            FileChannel in = ((FileInputStream) is).getChannel();
+            transferFully(in, in.position(), ((FileOutputStream) os).getChannel());
+            return;
+        }
+        if (is instanceof MemFile.MemFileInputStream) {
+            //writes straight from the MemFile buffers
+            ((MemFile.MemFileInputStream) is).transferTo(os);
+            os.flush();
+            return;
+        }
+        byte[] buf = new byte[BUFFER_SIZE];
+        int amt = is.read(buf, 0, buf.length);
         while (amt>0) {
             os.write(buf, 0, amt);
-            amt = is.read(buf, 0, 1000);
+            amt = is.read(buf, 0, buf.length);
         }
         os.flush();
     }
@@ -50,11 +80,80 @@ public class StreamHelper {
     /**
     * Given an output stream, copyFileToOutput will read the contents of a file
     * and stream those contents to the output stream until the entire file is sent.
+    * If the output stream is a FileOutputStream the copy is done by the operating
+    * system without passing through Java.
     */
     public static void copyFileToOutput(File file, OutputStream os) throws Exception {
         FileInputStream fis = new FileInputStream(file);
-        copyInputToOutput(fis, os);
-        fis.close();
+        try {
+            copyInputToOutput(fis, os);
+        }
+        finally {
+            fis.close();
+        }
+    }
+
+    /**
+    * Sends the contents of a file to a channel, for example a SocketChannel,
+    * using FileChannel.transferTo so that the operating system can send the
+    * file without copying it into memory (sendfile on Linux).
+    */
+    public static void copyFileToChannel(File file, WritableByteChannel out) throws Exception {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            transferFully(fis.getChannel(), 0, out);
+        }
+        finally {
+            fis.close();
+        }
+    }
+
+    /*
+    * transferTo may move fewer bytes than asked, so it is called until the
+    * whole file is done.  If it makes no progress, which can happen with a
+    * non-blocking channel, the rest is copied through a buffer.
+    */
+    private static void transferFully(FileChannel in, long position, WritableByteChannel out) throws Exception {
+        long size = in.size();
+        while (position < size) {
+            long amt = in.transferTo(position, size - position, out);
+            if (amt <= 0) {
+                break;
+            }
+            position += amt;
+        }
+        if (position < size) {
+            ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+            in.position(position);
+            while (in.read(buf) >= 0) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+                buf.clear();
+            }
+        }
+        else {
+            in.position(size);
+        }
+    }
+
+    /*
+    * Moves the finished temporary file to the destination in one step, replacing
+    * the destination if it exists.  If the file system can not do that atomically,
+    * it is moved the ordinary way.
+    */
+    static void moveIntoPlace(File tempFile, File file) throws Exception {
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            throw new Exception("Unable to replace the output file: "+file
+                    +".  Is the input stream that was used to read the file closed?", e);
+        }
     }
 
     /**
@@ -102,17 +201,14 @@ public class StreamHelper {
             }
     
             FileOutputStream fos = new FileOutputStream(tempFile);
-    
-            copyInputToOutput(is, fos);
-            fos.close();
-    
-            if (file.exists()) {
-                if (!file.delete()) {
-                    throw new Exception("Unable to delete the previous output file: "+file
-                            +".  Is the input stream that was used to read the file closed?");
-                }
+            try {
+                copyInputToOutput(is, fos);
             }
-            tempFile.renameTo(file);
+            finally {
+                fos.close();
+            }
+
+            moveIntoPlace(tempFile, file);
         }
         catch (Exception e) {
             throw new Exception("Unable to copy the stream to the file: "+ file, e);
@@ -153,18 +249,15 @@ public class StreamHelper {
             }
     
             FileOutputStream fos = new FileOutputStream(tempFile);
-            OutputStreamWriter osw = new OutputStreamWriter(fos, encoding);
-    
-            copyReaderToWriter(r, osw);
-            fos.close();
-    
-            if (file.exists()) {
-                if (!file.delete()) {
-                    throw new Exception("Unable to delete the previous output file: "+file
-                            +".  Is the input stream that was used to read the file closed?");
-                }
+            try {
+                OutputStreamWriter osw = new OutputStreamWriter(fos, encoding);
+                copyReaderToWriter(r, osw);
+            }
+            finally {
+                fos.close();
             }
-            tempFile.renameTo(file);
+
+            moveIntoPlace(tempFile, file);
         }
         catch (Exception e) {
             throw new Exception("Unable to copy the Reader data to the file: "+file, e);
@@ -173,7 +266,7 @@ public class StreamHelper {
 
     /**
     * This is a convenience routine to copy the contents of one file to another file.
-    * It does do by reading all the bytes from one, and writing the butes to another.
+    * The operating system copies the bytes directly from one to the other.
     * There is no restriction on where those files might exist, just as long as they
     * can be opened and read/writen to.
     *
@@ -186,8 +279,12 @@ public class StreamHelper {
             throw new Exception("Can not copy a file that does not exist: "+inFile);
         }
         FileInputStream fis = new FileInputStream(inFile);
-        copyStreamToFile(fis, outFile);
-        fis.close();
+        try {
+            copyStreamToFile(fis, outFile);
+        }
+        finally {
+            fis.close();
+        }
     }
 
 
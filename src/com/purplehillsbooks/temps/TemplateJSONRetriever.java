@@ -7,6 +7,7 @@ import java.util.Hashtable;
 
 import com.purplehillsbooks.json.JSONArray;
 import com.purplehillsbooks.json.JSONObject;
+import com.purplehillsbooks.json.JSONPath;
 
 /**
 * <p>
@@ -46,12 +47,32 @@ import com.purplehillsbooks.json.JSONObject;
  * If the expression ends at an object or an array, it will write nothing.
  * If the expression addresses a member that does not exist, it writes nothing.
  * </p>
+ * <p>
+ * Each token is compiled into a JSONPath the first time it is seen, and the
+ * compiled path is used every time after that, so the same expression in a
+ * loop is not parsed again for every row.
+ * </p>
  */
 public class TemplateJSONRetriever implements TemplateTokenRetriever {
     JSONObject data;
     Hashtable<String,JSONArray> loopArray = new Hashtable<String,JSONArray>();
     Hashtable<String,Object> loopValue = new Hashtable<String,Object>();
 
+    //templates use the same tokens over and over, so compile each one only once
+    Hashtable<String,CompiledToken> compiledTokens = new Hashtable<String,CompiledToken>();
+
+    /**
+     * The first name of a token, which might be a loop variable, the path of
+     * the whole token from the data, and the path of the rest of the token
+     * after the first name (null if there is only one name) for use from the
+     * current value of a loop.
+     */
+    private static class CompiledToken {
+        String first;
+        JSONPath whole;
+        JSONPath rest;
+    }
+
     public TemplateJSONRetriever(JSONObject _data) {
         data = _data;
     }
@@ -105,35 +126,55 @@ public class TemplateJSONRetriever implements TemplateTokenRetriever {
     
     
     
-    private Object getValueFromContext(String token) throws Exception {
-        ArrayList<String> tokens = splitDots(token);
-        if (tokens.size()==0) {
-            throw new Exception("Strange, the token value passed yeilded no tokens: "+token);
-        }
-        String firstToken = tokens.get(0);
-        JSONArray itArray = loopArray.get(firstToken);
-        Object val = null;
-
-        if (itArray!=null) {
-            Object o = loopValue.get(firstToken);
-            if (o==null) {
-                throw new Exception("Problem that loop have been initiated, but the setIteration has not been called");
-            }
-            if (tokens.size()<=1) {
-                val = o;
-            }
-            else if (o instanceof JSONArray) {
-                val = getValuefromArray(tokens, 1, (JSONArray)o);
-            }
-            else if (o instanceof JSONObject) {
-                val = getValuefromObject(tokens, 1, (JSONObject)o);
+    private CompiledToken compileToken(String token) throws Exception {
+        CompiledToken ct = compiledTokens.get(token);
+        if (ct == null) {
+            ArrayList<String> tokens = splitDots(token);
+            if (tokens.size()==0) {
+                throw new Exception("Strange, the token value passed yeilded no tokens: "+token);
             }
-            else {
-                val = o;
+            ct = new CompiledToken();
+            ct.first = tokens.get(0);
+            ct.whole = JSONPath.compile(token);
+            if (tokens.size()>1) {
+                StringBuilder restPath = new StringBuilder();
+                for (int i=1; i<tokens.size(); i++) {
+                    if (i>1) {
+                        restPath.append('.');
+                    }
+                    restPath.append(tokens.get(i));
+                }
+                ct.rest = JSONPath.compile(restPath.toString());
             }
+            compiledTokens.put(token, ct);
         }
-        else {
-            val = getValuefromObject(tokens, 0, data);
+        return ct;
+    }
+
+    private Object getValueFromContext(String token) throws Exception {
+        CompiledToken ct = compileToken(token);
+        JSONArray itArray = loopArray.get(ct.first);
+
+        if (itArray==null) {
+            return valueOrEmpty(ct.whole.getFirst(data));
+        }
+        Object o = loopValue.get(ct.first);
+        if (o==null) {
+            throw new Exception("Problem that loop have been initiated, but the setIteration has not been called");
+        }
+        if (ct.rest!=null && (o instanceof JSONObject || o instanceof JSONArray)) {
+            return valueOrEmpty(ct.rest.getFirst(o));
+        }
+        return o;
+    }
+
+    /**
+     * A path that does not lead to a value gives an empty string, so that
+     * nothing is written, and it tests as false.
+     */
+    private static Object valueOrEmpty(Object val) {
+        if (val==null) {
+            return "";
         }
         return val;
     }
@@ -142,8 +183,7 @@ public class TemplateJSONRetriever implements TemplateTokenRetriever {
     public int initLoop(String id, String token) throws Exception {
         //find the array that the token refers to
         //and set up to handle as a loop
-        ArrayList<String> tokens = splitDots(token);
-        Object o = getValuefromObject(tokens, 0, data);
+        Object o = compileToken(token).whole.getFirst(data);
 
         if (o instanceof JSONArray) {
             loopArray.put(id, (JSONArray)o);
@@ -205,61 +245,6 @@ public class TemplateJSONRetriever implements TemplateTokenRetriever {
     }
     
     
-    private static Object getValuefromObject(ArrayList<String> tokens, int index, JSONObject d) throws Exception {
-        String thisToken = tokens.get(index);
-        if (!d.has(thisToken)) {
-            //no member by this name, so return no value, keep it silent
-            return "";
-        }
-
-        //not at the end, so we need to be somewhat fancier
-        Object o = d.get(thisToken);
-
-        if (index == tokens.size() - 1) {
-            //in this case we actually need to get a string
-            return o;
-        }
-
-        if (o instanceof JSONObject) {
-            return getValuefromObject(tokens, index+1, (JSONObject)o );
-        }
-
-        if (o instanceof JSONArray) {
-            return getValuefromArray(tokens, index+1, (JSONArray)o );
-        }
-
-        //don't know what else it is, so just return object
-        return o;
-    }
-
-    private static Object getValuefromArray(ArrayList<String> tokens, int index, JSONArray ja) throws Exception {
-        String thisToken = tokens.get(index);
-        int intIndex = safeConvertInt(thisToken);
-        if (intIndex >= ja.length()) {
-            //exceeded the length of the array, so return a empty string
-            return "";
-        }
-
-        //not at the end, so we need to be somewhat fancier
-        Object o = ja.get(intIndex);
-
-        if (index == tokens.size() - 1) {
-            //in this case we actually need to get a string
-            return o;
-        }
-
-        if (o instanceof JSONObject) {
-            return getValuefromObject(tokens, index+1, (JSONObject)o );
-        }
-
-        if (o instanceof JSONArray) {
-            return getValuefromArray(tokens, index+1, (JSONArray)o );
-        }
-
-        //anything else, just return the string version of it
-        return o;
-    }
-
     /**
      * designed primarily for returning date long values works only for positive
      * integer (long) values considers all numeral, ignores all letter and
@@ -301,6 +286,8 @@ public class TemplateJSONRetriever implements TemplateTokenRetriever {
      * Breaks a string into a list of strings using dots (periods)
      * as separators of the token, and trimming each token of
      * spaces if there are any.
+     * To evaluate the same path many times, consider JSONPath.compile
+     * which parses the path once.
      */
     public static ArrayList<String> splitDots(String val) {
         ArrayList<String> ret = new ArrayList<String>();
@@ -16,14 +16,30 @@
 
 package com.purplehillsbooks.testcase;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.nio.CharBuffer;
+import java.util.List;
 
+import com.purplehillsbooks.json.JSONArray;
+import com.purplehillsbooks.json.JSONArrayIndex;
+import com.purplehillsbooks.json.JSONBeanBinding;
+import com.purplehillsbooks.json.JSONBinary;
+import com.purplehillsbooks.json.JSONException;
+import com.purplehillsbooks.json.JSONFileIndex;
+import com.purplehillsbooks.json.JSONNumberCursor;
 import com.purplehillsbooks.json.JSONObject;
+import com.purplehillsbooks.json.JSONPatch;
+import com.purplehillsbooks.json.JSONPath;
 import com.purplehillsbooks.json.JSONTokener;
+import com.purplehillsbooks.json.JSONWriter;
+import com.purplehillsbooks.json.LockableJSONFile;
 import com.purplehillsbooks.testframe.TestRecorder;
 import com.purplehillsbooks.testframe.TestRecorderText;
 import com.purplehillsbooks.testframe.TestSet;
@@ -45,6 +61,18 @@ public class JSONTest implements TestSet {
         tr = newTr;
 
         testAllWriteAndReadOperations();
+        testBinaryFormat();
+        testFileIndex();
+        testFrozenSharing();
+        testDeepCopyAndEquals();
+        testBeanBinding();
+        testStreamingWriter();
+        testQuote();
+        testPaths();
+        testArrayIndex();
+        testTypedViews();
+        testPatch();
+        testStructuralHash();
     }
 
 
@@ -122,6 +150,663 @@ public class JSONTest implements TestSet {
 
     }
 
+    public void testBinaryFormat() throws Exception {
+        JSONObject allChars = constructCharacterJSON();
+        JSONObject nested = new JSONObject();
+        nested.put("int", 42);
+        nested.put("long", 12345678901234L);
+        nested.put("double", 3.25);
+        nested.put("flag", true);
+        nested.put("nothing", JSONObject.NULL);
+        nested.put("surrogate", "pair \uD83D\uDE00 end");
+        JSONArray list = new JSONArray();
+        list.put("a");
+        list.put(7);
+        list.put(new JSONObject().put("Val1", "shared key"));
+        nested.put("list", list);
+        allChars.put("nested", nested);
+
+        File binFile = new File(tr.getProperty("testoutput", null), "characterTest1.pjb");
+        JSONBinary.writeToFile(allChars, binFile);
+        if (!JSONBinary.isBinaryFile(binFile)) {
+            tr.markFailed("binary file header", "file written by JSONBinary is not recognized as binary");
+        }
+        JSONObject allChars2 = JSONBinary.readFromFile(binFile);
+        checkCharacterJSON(allChars2);
+
+        JSONObject nested2 = allChars2.getJSONObject("nested");
+        tr.testInt("binary int value", nested2.getInt("int"), 42);
+        if (nested2.getLong("long")!=12345678901234L || nested2.getDouble("double")!=3.25
+                || !nested2.getBoolean("flag") || !nested2.isNull("nothing")) {
+            tr.markFailed("binary scalar values", "scalar values did not survive: "+nested2.toString());
+        }
+        else {
+            tr.markPassed("binary scalar values");
+        }
+        if (!nested.toString().equals(nested2.toString())) {
+            tr.markFailed("binary nested object", "Expected "+nested.toString()+" but got "+nested2.toString());
+        }
+        else {
+            tr.markPassed("binary nested object");
+        }
+
+        Object picked = JSONBinary.readValueAt(binFile, "nested.surrogate");
+        if (!"pair \uD83D\uDE00 end".equals(picked)) {
+            tr.markFailed("binary readValueAt", "Expected the surrogate pair string but got "+picked);
+        }
+        else {
+            tr.markPassed("binary readValueAt");
+        }
+        if (JSONBinary.readValueAt(binFile, "nested.missing")!=null) {
+            tr.markFailed("binary readValueAt missing", "Expected null for a missing member");
+        }
+        else {
+            tr.markPassed("binary readValueAt missing");
+        }
+
+        //reading from a stream stops at the end of the value
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        JSONBinary.write(nested, bos);
+        bos.write("after".getBytes("UTF-8"));
+        ByteArrayInputStream bis = new ByteArrayInputStream(bos.toByteArray());
+        JSONObject nested3 = JSONBinary.read(bis);
+        byte[] rest = new byte[10];
+        int restLen = bis.read(rest);
+        if (!nested.toString().equals(nested3.toString()) || restLen != 5
+                || !"after".equals(new String(rest, 0, 5, "UTF-8"))) {
+            tr.markFailed("binary stream remainder", "The bytes after the value were consumed, "+restLen+" left");
+        }
+        else {
+            tr.markPassed("binary stream remainder");
+        }
+
+        //the format setting only chooses what is written, either form is read
+        File lockedFile = new File(tr.getProperty("testoutput", null), "lockedBinary.json");
+        if (lockedFile.exists()) {
+            lockedFile.delete();
+        }
+        LockableJSONFile ljf = LockableJSONFile.getSurrogate(lockedFile);
+        ljf.setBinaryFormat(true);
+        ljf.lock();
+        try {
+            ljf.writeTarget(nested);
+        }
+        finally {
+            ljf.unlock();
+        }
+        ljf.setBinaryFormat(false);
+        JSONObject nested4 = ljf.lockReadUnlock();
+        if (!JSONBinary.isBinaryFile(lockedFile) || !nested.toString().equals(nested4.toString())) {
+            tr.markFailed("locked binary read as text", "Binary file was not read with the binary format off: "+nested4.toString());
+        }
+        else {
+            tr.markPassed("locked binary read as text");
+        }
+        ljf.lock();
+        try {
+            ljf.writeTarget(nested4);
+        }
+        finally {
+            ljf.unlock();
+        }
+        ljf.setBinaryFormat(true);
+        JSONObject nested5 = ljf.lockReadUnlock();
+        if (JSONBinary.isBinaryFile(lockedFile) || !nested.toString().equals(nested5.toString())) {
+            tr.markFailed("locked text read as binary", "Text file was not read with the binary format on: "+nested5.toString());
+        }
+        else {
+            tr.markPassed("locked text read as binary");
+        }
+    }
+
+
+    public void testFileIndex() throws Exception {
+        JSONObject allChars = constructCharacterJSON();
+        allChars.put("nested", new JSONObject().put("inner", "pair \uD83D\uDE00 end").put("num", 17));
+        File dataFile = new File(tr.getProperty("testoutput", null), "indexTest.json");
+        allChars.writeToFile(dataFile);
+
+        JSONFileIndex index = JSONFileIndex.buildIndex(dataFile, 2);
+        try {
+            JSONObject direct = JSONObject.readFromFile(dataFile);
+            int count = 0;
+            for (String key : direct.keySet()) {
+                Object fromIndex = index.get(key);
+                if (fromIndex==null || !fromIndex.toString().equals(direct.get(key).toString())) {
+                    tr.markFailed("file index value "+key, "Expected "+direct.get(key)+" but got "+fromIndex);
+                    continue;
+                }
+                count++;
+            }
+            tr.testInt("file index all values", count, direct.length());
+            if (!"pair \uD83D\uDE00 end".equals(index.get("nested.inner"))) {
+                tr.markFailed("file index nested", "Expected the surrogate pair string but got "+index.get("nested.inner"));
+            }
+            else {
+                tr.markPassed("file index nested");
+            }
+            if (index.get("nested.missing")!=null || index.has("missing")) {
+                tr.markFailed("file index missing", "Expected nothing for a missing path");
+            }
+            else {
+                tr.markPassed("file index missing");
+            }
+        }
+        finally {
+            index.close();
+        }
+
+        JSONFileIndex reopened = JSONFileIndex.open(dataFile);
+        try {
+            tr.testInt("file index reopened", reopened.getJSONObject("nested").getInt("num"), 17);
+        }
+        finally {
+            reopened.close();
+        }
+    }
+
+
+    public void testFrozenSharing() throws Exception {
+        JSONObject cached = new JSONObject();
+        cached.put("name", "base");
+        JSONObject server = new JSONObject().put("host", "localhost").put("port", 8080);
+        cached.put("server", server);
+        JSONObject other = new JSONObject().put("untouched", true);
+        cached.put("other", other);
+        cached.put("list", new JSONArray().put(new JSONObject().put("a", 1)));
+        cached.freeze();
+
+        if (!server.isFrozen() || !cached.getJSONArray("list").getJSONObject(0).isFrozen()) {
+            tr.markFailed("freeze nested", "freezing the root did not freeze the contents");
+        }
+        else {
+            tr.markPassed("freeze nested");
+        }
+        try {
+            server.put("port", 9090);
+            tr.markFailed("freeze put", "was able to put a value into a frozen object");
+        }
+        catch (UnsupportedOperationException e) {
+            tr.markPassed("freeze put");
+        }
+        try {
+            cached.getJSONArray("list").put("x");
+            tr.markFailed("freeze array put", "was able to put a value into a frozen array");
+        }
+        catch (UnsupportedOperationException e) {
+            tr.markPassed("freeze array put");
+        }
+
+        JSONObject mine = cached.thaw();
+        mine.editJSONObject("server").put("port", 9090);
+        mine.editJSONArray("list").editJSONObject(0).put("a", 2);
+        mine.put("name", "mine");
+        tr.testInt("thaw changed copy", mine.getJSONObject("server").getInt("port"), 9090);
+        tr.testInt("thaw original unchanged", cached.getJSONObject("server").getInt("port"), 8080);
+        tr.testInt("thaw array original unchanged", cached.getJSONArray("list").getJSONObject(0).getInt("a"), 1);
+        if (mine.getJSONObject("other")!=other || !"base".equals(cached.getString("name"))) {
+            tr.markFailed("thaw shares untouched", "untouched subtree was not shared, or the original was changed");
+        }
+        else {
+            tr.markPassed("thaw shares untouched");
+        }
+    }
+
+
+    public void testDeepCopyAndEquals() throws Exception {
+        JSONObject original = constructCharacterJSON();
+        original.put("nested", new JSONObject().put("count", 1).put("list",
+                new JSONArray().put("a").put(new JSONObject().put("b", JSONObject.NULL))));
+        JSONObject copy = original.deepCopy();
+        if (!original.deepEquals(copy) || !copy.deepEquals(original)
+                || original.deepHashCode()!=copy.deepHashCode()) {
+            tr.markFailed("deep copy equals", "copy is not deep equal to the original");
+        }
+        else {
+            tr.markPassed("deep copy equals");
+        }
+        if (!original.toString().equals(copy.toString())) {
+            tr.markFailed("deep copy output", "copy does not produce the same JSON text");
+        }
+        else {
+            tr.markPassed("deep copy output");
+        }
+
+        copy.getJSONObject("nested").getJSONArray("list").getJSONObject(1).put("b", "changed");
+        if (original.deepEquals(copy)
+                || !original.getJSONObject("nested").getJSONArray("list").getJSONObject(1).isNull("b")) {
+            tr.markFailed("deep copy independent", "changing the copy affected the original, or was not detected");
+        }
+        else {
+            tr.markPassed("deep copy independent");
+        }
+
+        JSONObject intVersion = new JSONObject().put("x", 1).put("y", "z");
+        JSONObject dblVersion = new JSONObject().put("y", "z").put("x", 1.0);
+        if (!intVersion.deepEquals(dblVersion) || intVersion.deepHashCode()!=dblVersion.deepHashCode()) {
+            tr.markFailed("deep equals numbers", "1 and 1.0 should be deep equal with the same hash");
+        }
+        else {
+            tr.markPassed("deep equals numbers");
+        }
+        if (intVersion.deepEquals(new JSONObject().put("x", 2).put("y", "z"))) {
+            tr.markFailed("deep equals different", "different values reported as deep equal");
+        }
+        else {
+            tr.markPassed("deep equals different");
+        }
+    }
+
+
+    public static class SampleBean {
+        private String name;
+        private int count;
+        private boolean active;
+        private List<String> tags;
+        private SampleBean child;
+
+        public String getName() { return name; }
+        public void setName(String name) { this.name = name; }
+        public int getCount() { return count; }
+        public void setCount(int count) { this.count = count; }
+        public boolean isActive() { return active; }
+        public void setActive(boolean active) { this.active = active; }
+        public List<String> getTags() { return tags; }
+        public void setTags(List<String> tags) { this.tags = tags; }
+        public SampleBean getChild() { return child; }
+        public void setChild(SampleBean child) { this.child = child; }
+    }
+
+    public void testBeanBinding() throws Exception {
+        SampleBean bean = new SampleBean();
+        bean.setName("top");
+        bean.setCount(3);
+        bean.setActive(true);
+        SampleBean child = new SampleBean();
+        child.setName("kid");
+        bean.setChild(child);
+
+        JSONObject jo = new JSONObject(bean);
+        if (!"top".equals(jo.optString("name")) || jo.optInt("count")!=3 || !jo.optBoolean("active")
+                || !"kid".equals(jo.getJSONObject("child").optString("name"))) {
+            tr.markFailed("bean to JSON", "unexpected conversion: "+jo.toString());
+        }
+        else {
+            tr.markPassed("bean to JSON");
+        }
+
+        JSONObject input = new JSONObject(new JSONTokener("{\"name\":\"abc\",\"count\":\"42\",\"active\":true,"
+                +"\"tags\":[\"x\",\"y\"],\"child\":{\"name\":\"inner\",\"count\":7},\"unknown\":1}"));
+        SampleBean back = JSONBeanBinding.toBean(input, SampleBean.class);
+        if (!"abc".equals(back.getName()) || back.getCount()!=42 || !back.isActive()
+                || back.getTags()==null || back.getTags().size()!=2 || !"y".equals(back.getTags().get(1))
+                || back.getChild()==null || back.getChild().getCount()!=7) {
+            tr.markFailed("JSON to bean", "bean values not set from "+input.toString());
+        }
+        else {
+            tr.markPassed("JSON to bean");
+        }
+        if (JSONBeanBinding.forClass(SampleBean.class)!=JSONBeanBinding.forClass(SampleBean.class)) {
+            tr.markFailed("bean binding cached", "binding was not cached for the class");
+        }
+        else {
+            tr.markPassed("bean binding cached");
+        }
+    }
+
+
+    public void testStreamingWriter() throws Exception {
+        JSONObject expected = new JSONObject();
+        expected.put("a long", -9223372036854775808L);
+        expected.put("big", 12345678901L);
+        expected.put("whole", 42.0);
+        expected.put("fraction", -0.125);
+        expected.put("flag", false);
+        expected.put("text", "line\none \"quoted\" </tag> \u2028");
+        expected.put("list", new JSONArray().put(1).put("two").put(new JSONObject().put("x", 3)));
+
+        StringWriter sw = new StringWriter();
+        JSONWriter jw = new JSONWriter(sw, false);
+        jw.object();
+        jw.key("a long").value(-9223372036854775808L);
+        jw.key("big").value(12345678901L);
+        jw.key("whole").value(42.0);
+        jw.key("fraction").value(-0.125);
+        jw.key("flag").value(false);
+        jw.key("text").value("line\none \"quoted\" </tag> \u2028");
+        jw.key("list").array().value(1).value("two").value(new JSONObject().put("x", 3)).endArray();
+        jw.endObject();
+
+        JSONObject streamed = new JSONObject(new JSONTokener(sw.toString()));
+        if (!expected.deepEquals(streamed)) {
+            tr.markFailed("streaming writer", "Expected "+expected.toString()+" but got "+sw.toString());
+        }
+        else {
+            tr.markPassed("streaming writer");
+        }
+        if (sw.toString().indexOf("\"whole\":42,")<0 || sw.toString().indexOf("<\\/tag>")<0) {
+            tr.markFailed("streaming writer format", "Numbers or escapes are not formatted like JSONObject: "+sw.toString());
+        }
+        else {
+            tr.markPassed("streaming writer format");
+        }
+
+        JSONWriter checking = new JSONWriter(new StringWriter());
+        checking.object().key("dup").value(1);
+        try {
+            checking.key("dup");
+            tr.markFailed("writer duplicate key", "duplicate key was not detected");
+        }
+        catch (JSONException e) {
+            tr.markPassed("writer duplicate key");
+        }
+    }
+
+
+    public void testQuote() throws Exception {
+        checkString("quote slash", JSONObject.quote("a/b</c>/"), "\"a/b<\\/c>/\"");
+        checkString("quote controls", JSONObject.quote("\b\t\n\f\r\u0001\u001f"),
+                "\"\\b\\t\\n\\f\\r\\u0001\\u001f\"");
+        checkString("quote ranges", JSONObject.quote("\u0080\u009f\u00a0\u2000\u20ff\u2100\"\\"),
+                "\"\\u0080\\u009f\u00a0\\u2000\\u20ff\u2100\\\"\\\\\"");
+        checkString("quote empty", JSONObject.quote(""), "\"\"");
+        checkString("quote null", JSONObject.quote(null), "\"\"");
+
+        StringBuilder all = new StringBuilder();
+        for (int i=0; i<0x3000; i++) {
+            all.append((char)i);
+        }
+        String allChars = all.toString();
+        StringWriter sw = new StringWriter();
+        JSONObject.quote(allChars, sw);
+        StringBuilder sb = new StringBuilder("prefix");
+        JSONObject.quote(allChars, sb);
+        if (!sw.toString().equals(JSONObject.quote(allChars)) || !sb.toString().equals("prefix"+sw.toString())) {
+            tr.markFailed("quote variants agree", "The Writer, String and StringBuilder versions of quote differ");
+        }
+        else {
+            tr.markPassed("quote variants agree");
+        }
+        StringWriter csw = new StringWriter();
+        JSONObject.quote(all, csw);
+        checkString("quote CharSequence", csw.toString(), sw.toString());
+        StringWriter jsw = new StringWriter();
+        new JSONWriter(jsw).array().value(all).value(new StringBuffer(all))
+                .value(CharBuffer.wrap(allChars.toCharArray())).value(CharBuffer.wrap(allChars)).endArray();
+        String q = sw.toString();
+        checkString("writer CharSequence", jsw.toString(), "["+q+","+q+","+q+","+q+"]");
+        if (!allChars.equals(new JSONTokener(sw.toString()).nextValue())) {
+            tr.markFailed("quote round trip", "quoted string did not parse back to the same value");
+        }
+        else {
+            tr.markPassed("quote round trip");
+        }
+    }
+
+
+    public void testPaths() throws Exception {
+        String source = "{\"cust\":[{\"name\":\"Jones\",\"address\":{\"city\":\"Pittsburg\"}},"
+                +"{\"name\":\"Smith\",\"address\":{\"city\":\"Highland Park\"}},"
+                +"{\"name\":\"Brown\",\"skip\":[1,{\"a\":\"]\"}],\"address\":{\"city\":\"Erie\"}}],"
+                +"\"odd.key\":{\"value\":5}}";
+        JSONObject data = new JSONObject(new JSONTokener(source));
+
+        checkString("path index", (String) JSONPath.compile("cust.0.name").getFirst(data), "Jones");
+        checkString("path bracket", (String) JSONPath.compile("cust[1].address.city").getFirst(data), "Highland Park");
+        checkString("path negative", (String) JSONPath.compile("cust[-1].name").getFirst(data), "Brown");
+        tr.testInt("path quoted name", ((Integer)JSONPath.compile("['odd.key'].value").getFirst(data)).intValue(), 5);
+        checkString("path wildcard", JSONPath.compile("cust.*.address.city").getAll(data).toString(),
+                "[Pittsburg, Highland Park, Erie]");
+        checkString("path slice", JSONPath.compile("cust[1:].name").getAll(data).toString(), "[Smith, Brown]");
+        checkString("path slice end", JSONPath.compile("cust[:-1].name").getAll(data).toString(), "[Jones, Smith]");
+        if (JSONPath.compile("cust.5.name").getFirst(data)!=null || JSONPath.compile("cust.x").matches(data)) {
+            tr.markFailed("path missing", "a path to a missing value returned something");
+        }
+        else {
+            tr.markPassed("path missing");
+        }
+
+        JSONPath streamPath = JSONPath.compile("cust[*].address.city");
+        checkString("path streaming", streamPath.getAll(new JSONTokener(source)).toString(),
+                "[Pittsburg, Highland Park, Erie]");
+        checkString("path streaming slice", JSONPath.compile("cust[1:2].name").getAll(new JSONTokener(source)).toString(),
+                "[Smith]");
+    }
+
+
+    public void testArrayIndex() throws Exception {
+        JSONArray users = new JSONArray();
+        for (int i=0; i<1000; i++) {
+            users.put(new JSONObject().put("id", "u"+i).put("num", i));
+        }
+        JSONArrayIndex byId = users.getIndex("id");
+        JSONArrayIndex byNum = users.getIndex("num");
+        tr.testInt("index lookup", byId.get("u500").getInt("num"), 500);
+        tr.testInt("index numeric key", byNum.indexOf("42"), 42);
+
+        byId.delete("u10");
+        tr.testInt("index after delete", byId.indexOf("u11"), 10);
+        tr.testInt("index after delete other index", byNum.indexOf(11), 10);
+        if (byId.containsKey("u10") || byNum.containsKey(10)) {
+            tr.markFailed("index delete", "deleted record is still found");
+        }
+        else {
+            tr.markPassed("index delete");
+        }
+
+        byId.upsert(new JSONObject().put("id", "u20").put("num", 2020));
+        tr.testInt("index upsert replace", users.length(), 999);
+        tr.testInt("index upsert other index", byNum.get(2020).getInt("num"), 2020);
+        byId.upsert(new JSONObject().put("id", "new").put("num", -1));
+        tr.testInt("index upsert add", byId.indexOf("new"), 999);
+
+        users.put(0, new JSONObject().put("id", "u1").put("num", 1));
+        tr.testInt("index duplicate finds first", byId.indexOf("u1"), 0);
+        users.remove(0);
+        tr.testInt("index duplicate after remove", byId.indexOf("u1"), 0);
+
+        users.getJSONObject(5).put("id", "renamed");
+        if (byId.get("u6")!=null) {
+            tr.markFailed("index changed record", "record with a changed key is still found under the old key");
+        }
+        else {
+            tr.markPassed("index changed record");
+        }
+        byId.rebuild();
+        tr.testInt("index rebuild", byId.indexOf("renamed"), 5);
+
+        //many removes and inserts, more than the index records before
+        //bringing every position up to date, must agree with a scan
+        JSONArray recs = new JSONArray();
+        for (int i=0; i<300; i++) {
+            recs.put(new JSONObject().put("id", "r"+i));
+        }
+        JSONArrayIndex byRec = recs.getIndex("id");
+        byRec.indexOf("r0");
+        int wrong = 0;
+        for (int step=0; step<500; step++) {
+            int pos = (step * 37) % recs.length();
+            if (step % 3 == 0) {
+                recs.insert(pos, new JSONObject().put("id", "n"+step));
+            }
+            else {
+                recs.remove(pos);
+            }
+            for (int i=step % 5; i<recs.length(); i+=23) {
+                String id = recs.getJSONObject(i).getString("id");
+                if (byRec.indexOf(id) != i) {
+                    wrong++;
+                }
+            }
+        }
+        tr.testInt("index shifts agree with scan", wrong, 0);
+    }
+
+
+    public void testTypedViews() throws Exception {
+        JSONArray records = new JSONArray();
+        JSONArray names = new JSONArray();
+        JSONArray numbers = new JSONArray();
+        for (int i=0; i<100; i++) {
+            records.put(new JSONObject().put("n", i));
+            names.put("name"+i);
+        }
+        numbers.put(1).put(2L).put(2.5).put("4").put("9007199254740993");
+
+        List<JSONObject> recView = records.viewJSONObjectList();
+        int total = 0;
+        for (JSONObject rec : recView) {
+            total += rec.getInt("n");
+        }
+        tr.testInt("view object list", total, 4950);
+        tr.testInt("view object list size", recView.size(), records.length());
+        checkString("view string list", names.viewStringList().get(99), "name99");
+        tr.testInt("copy string list", names.getStringList().size(), 100);
+
+        try {
+            names.viewJSONObjectList();
+            tr.markFailed("view wrong type", "strings were accepted as a list of JSONObject");
+        }
+        catch (JSONException e) {
+            tr.markPassed("view wrong type");
+        }
+
+        double sum = 0;
+        JSONNumberCursor cursor = numbers.numberCursor();
+        while (cursor.next()) {
+            sum += cursor.getDouble();
+        }
+        if (sum != 9.5 + 9007199254740993.0) {
+            tr.markFailed("number cursor sum", "got "+sum);
+        }
+        else {
+            tr.markPassed("number cursor sum");
+        }
+        long[] longs = numbers.toLongArray();
+        if (longs.length!=5 || longs[2]!=2 || longs[4]!=9007199254740993L) {
+            tr.markFailed("number cursor longs", "long conversion is wrong");
+        }
+        else {
+            tr.markPassed("number cursor longs");
+        }
+        try {
+            names.toDoubleArray();
+            tr.markFailed("number cursor wrong type", "strings that are not numbers were accepted");
+        }
+        catch (JSONException e) {
+            tr.markPassed("number cursor wrong type");
+        }
+    }
+
+
+    public void testPatch() throws Exception {
+        JSONObject before = new JSONObject(new JSONTokener("{\"name\":\"Jones\",\"tags\":[\"a\",\"b\",\"c\"],"
+                +"\"address\":{\"city\":\"Erie\",\"zip\":\"16501\"},\"a/b\":1,\"old\":true}"));
+        JSONObject after = new JSONObject(new JSONTokener("{\"name\":\"Jones\",\"tags\":[\"a\",\"x\",\"b\",\"c\"],"
+                +"\"address\":{\"city\":\"Pittsburg\",\"zip\":\"16501\"},\"a/b\":2,\"new\":[1,2]}"));
+        JSONArray patch = JSONPatch.createPatch(before, after);
+        tr.testInt("patch size", patch.length(), 5);
+        checkString("patch escaped path", patch.getJSONObject(1).getString("path"), "/a~1b");
+
+        JSONObject target = before.deepCopy();
+        JSONPatch.applyPatch(target, patch);
+        if (!target.deepEquals(after)) {
+            tr.markFailed("patch apply", "patched object is "+target.toString());
+        }
+        else {
+            tr.markPassed("patch apply");
+        }
+        tr.testInt("patch equal objects", JSONPatch.createPatch(after, after.deepCopy()).length(), 0);
+
+        //the operations that createPatch never makes
+        JSONArray ops = new JSONArray("[{\"op\":\"test\",\"path\":\"/tags/0\",\"value\":\"a\"},"
+                +"{\"op\":\"move\",\"from\":\"/tags/1\",\"path\":\"/tags/-\"},"
+                +"{\"op\":\"copy\",\"from\":\"/address\",\"path\":\"/home\"},"
+                +"{\"op\":\"remove\",\"path\":\"/home/zip\"}]");
+        JSONPatch.applyPatch(target, ops);
+        checkString("patch move", target.getJSONArray("tags").join(","), "\"a\",\"b\",\"c\",\"x\"");
+        checkString("patch copy", target.getJSONObject("address").getString("zip"), "16501");
+        tr.testInt("patch copy is separate", target.getJSONObject("home").length(), 1);
+
+        try {
+            JSONPatch.applyPatch(target, new JSONArray("[{\"op\":\"test\",\"path\":\"/name\",\"value\":\"Smith\"}]"));
+            tr.markFailed("patch test fails", "test operation did not throw an exception");
+        }
+        catch (JSONException e) {
+            tr.markPassed("patch test fails");
+        }
+        try {
+            JSONPatch.applyPatch(target, new JSONArray("[{\"op\":\"remove\",\"path\":\"/tags/9\"}]"));
+            tr.markFailed("patch bad index", "removing a missing element did not throw an exception");
+        }
+        catch (JSONException e) {
+            tr.markPassed("patch bad index");
+        }
+    }
+
+
+    public void testStructuralHash() throws Exception {
+        JSONObject doc = new JSONObject();
+        for (int i=0; i<200; i++) {
+            JSONObject sect = new JSONObject();
+            sect.put("n", i);
+            sect.put("list", new JSONArray().put("a").put(i));
+            doc.put("sect"+i, sect);
+        }
+        JSONObject same = doc.deepCopy();
+        if (doc.structuralHash() != same.structuralHash()) {
+            tr.markFailed("structural hash equal", "equal trees have different hashes");
+        }
+        else {
+            tr.markPassed("structural hash equal");
+        }
+        same.getJSONObject("sect7").put("n", 7.0);
+        if (doc.structuralHash() != same.structuralHash()) {
+            tr.markFailed("structural hash number", "7 and 7.0 have different hashes");
+        }
+        else {
+            tr.markPassed("structural hash number");
+        }
+
+        doc.freeze();
+        long frozenHash = doc.structuralHash();
+        JSONObject next = doc.thaw();
+        next.editJSONObject("sect150").editJSONArray("list").put(0, "b");
+        next.freeze();
+        if (frozenHash == next.structuralHash() || next.deepEquals(doc)) {
+            tr.markFailed("structural hash changed", "a change deep in the tree was not detected");
+        }
+        else {
+            tr.markPassed("structural hash changed");
+        }
+        if (next.getJSONObject("sect3") != doc.getJSONObject("sect3")
+                || !next.getJSONObject("sect3").deepEquals(doc.getJSONObject("sect3"))) {
+            tr.markFailed("structural hash shared", "unchanged subtree is not shared and equal");
+        }
+        else {
+            tr.markPassed("structural hash shared");
+        }
+        JSONObject reverted = next.thaw();
+        reverted.editJSONObject("sect150").editJSONArray("list").put(0, "a");
+        reverted.freeze();
+        if (reverted.structuralHash() != frozenHash || !reverted.deepEquals(doc)) {
+            tr.markFailed("structural hash reverted", "reverting the change did not restore the hash");
+        }
+        else {
+            tr.markPassed("structural hash reverted");
+        }
+    }
+
+
+    private void checkString(String id, String value, String expected) {
+        if (expected.equals(value)) {
+            tr.markPassed(id);
+        }
+        else {
+            tr.markFailed(id, "Expected ("+expected+") but got ("+value+")");
+        }
+    }
+
 
     public static void main(String args[]) {
         JSONTest thisTest = new JSONTest();
@@ -16,17 +16,28 @@
 
 package com.purplehillsbooks.testcase;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.StringWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
 
+import com.purplehillsbooks.streams.AsyncCopy;
+import com.purplehillsbooks.streams.CopyProgress;
+import com.purplehillsbooks.streams.DirectMemFile;
 import com.purplehillsbooks.streams.HTMLWriter;
 import com.purplehillsbooks.streams.JavaScriptWriter;
 import com.purplehillsbooks.streams.MemFile;
+import com.purplehillsbooks.streams.MemFileAssembler;
+import com.purplehillsbooks.streams.MemFileBufferPool;
+import com.purplehillsbooks.streams.StreamHelper;
 import com.purplehillsbooks.testframe.TestRecorder;
 import com.purplehillsbooks.testframe.TestRecorderText;
 import com.purplehillsbooks.testframe.TestSet;
@@ -78,6 +89,394 @@ public class MemFileTester implements TestSet {
 		testWriteHTML("upper ascii", "Smpl\nStrg\t", "Smpl\nStrg\t");
 
 		letsTestAllPossibleCharacters();
+		testBulkTransfer();
+		testPooledChunks();
+		testDirectMemFile();
+		testChannelOutput();
+		testCounters();
+		testAppendAndAssemble();
+		testUTF8Writer();
+		testStreamHelperCopy();
+		testAsyncCopy();
+	}
+
+	private void testBulkTransfer() throws Exception {
+		// enough to cross many 5000 byte buffers at odd positions
+		byte[] data = new byte[23457];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 7);
+		}
+
+		MemFile mf = new MemFile();
+		OutputStream os = mf.getOutputStream();
+		os.write(data, 0, 3);
+		os.write(data[3]);
+		os.write(data, 4, 12000);
+		mf.addPartial(data, 12004, data.length - 12004);
+		tr.testInt("bulk write size", mf.totalBytes(), data.length);
+
+		InputStream is = mf.getInputStream();
+		byte[] back = new byte[data.length];
+		int pos = 0;
+		int amt = is.read(back, pos, 777);
+		while (amt > 0) {
+			pos += amt;
+			amt = is.read(back, pos, Math.min(7777, back.length - pos));
+			if (pos == back.length) {
+				break;
+			}
+		}
+		tr.testInt("bulk read size", pos, data.length);
+		compareBytes("bulk read", data, 0, back);
+		tr.testInt("bulk read end", is.read(back, 0, 10), -1);
+
+		is = mf.getInputStream();
+		tr.testInt("bulk skip", (int) is.skip(10001), 10001);
+		tr.testInt("bulk skip byte", is.read(), data[10001] & 0xFF);
+		ByteArrayOutputStream rest = new ByteArrayOutputStream();
+		long moved = ((MemFile.MemFileInputStream) is).transferTo(rest);
+		tr.testInt("bulk transfer size", (int) moved, data.length - 10002);
+		compareBytes("bulk transfer", data, 10002, rest.toByteArray());
+
+		MemFile mf2 = new MemFile();
+		mf2.fillWithInputStream(new ByteArrayInputStream(data));
+		ByteArrayOutputStream all = new ByteArrayOutputStream();
+		mf2.outToOutputStream(all);
+		compareBytes("bulk fill", data, 0, all.toByteArray());
+	}
+
+	private void testPooledChunks() throws Exception {
+		byte[] data = new byte[3000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 251);
+		}
+		MemFileBufferPool pool = new MemFileBufferPool(100000);
+		MemFile mf = new MemFile(16, 256, pool);
+		mf.getOutputStream().write(data);
+		tr.testInt("pool growing chunks", mf.totalBytes(), data.length);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		mf.outToOutputStream(out);
+		compareBytes("pool growing chunks content", data, 0, out.toByteArray());
+
+		mf.release();
+		tr.testInt("pool release empties", mf.totalBytes(), 0);
+		long pooled = pool.getPooledBytes();
+		if (pooled < data.length) {
+			tr.markFailed("pool holds buffers", "only " + pooled + " bytes returned to the pool");
+		}
+		else {
+			tr.markPassed("pool holds buffers");
+		}
+
+		// a second file gets the same buffers back, with old data in them
+		MemFile mf2 = new MemFile(16, 256, pool);
+		OutputStream os = mf2.getOutputStream();
+		os.write(data, 1000, 2000);
+		if (pool.getPooledBytes() >= pooled) {
+			tr.markFailed("pool reuse", "no buffers were taken from the pool");
+		}
+		else {
+			tr.markPassed("pool reuse");
+		}
+		out = new ByteArrayOutputStream();
+		mf2.outToOutputStream(out);
+		compareBytes("pool reuse content", data, 1000, out.toByteArray());
+		mf2.clear();
+		tr.testInt("pool clear", mf2.totalBytes(), 0);
+		tr.testInt("pool clear string", mf2.toString().length(), 0);
+	}
+
+	private void testDirectMemFile() throws Exception {
+		byte[] data = new byte[10000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 13);
+		}
+		DirectMemFile dmf = new DirectMemFile(1024);
+		OutputStream os = dmf.getOutputStream();
+		os.write(data, 0, 5);
+		os.write(data[5]);
+		os.write(data, 6, data.length - 6);
+		tr.testInt("direct size", (int) dmf.totalBytes(), data.length);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		dmf.outToOutputStream(out);
+		compareBytes("direct out to stream", data, 0, out.toByteArray());
+
+		InputStream is = dmf.getInputStream();
+		tr.testInt("direct skip", (int) is.skip(2050), 2050);
+		byte[] back = new byte[data.length - 2050];
+		int pos = 0;
+		int amt = is.read(back, 0, back.length);
+		while (amt > 0 && pos + amt < back.length) {
+			pos += amt;
+			amt = is.read(back, pos, back.length - pos);
+		}
+		compareBytes("direct read", data, 2050, back);
+		tr.testInt("direct read end", is.read(), -1);
+
+		// written to a file with a gathering write, and read back through the channel
+		File outFile = new File(tr.getProperty("testoutput", null), "directMemFile.bin");
+		dmf.outToFile(outFile);
+		tr.testInt("direct file size", (int) outFile.length(), data.length);
+		DirectMemFile fromFile = new DirectMemFile(700);
+		FileInputStream fis = new FileInputStream(outFile);
+		fromFile.fillWithInputStream(fis);
+		fis.close();
+		out = new ByteArrayOutputStream();
+		fromFile.outToOutputStream(out);
+		compareBytes("direct file round trip", data, 0, out.toByteArray());
+
+		long capacity = dmf.capacity();
+		dmf.clear();
+		Writer w = dmf.getWriter();
+		w.write("S\u00e4mpl\u00e9 \u1234\u1235");
+		w.flush();
+		if (!"S\u00e4mpl\u00e9 \u1234\u1235".equals(dmf.toString())) {
+			tr.markFailed("direct characters", "got " + dmf.toString());
+		}
+		else {
+			tr.markPassed("direct characters");
+		}
+		tr.testInt("direct clear keeps buffers", (int) dmf.capacity(), (int) capacity);
+	}
+
+	private void testChannelOutput() throws Exception {
+		byte[] data = new byte[200000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 31 + 5);
+		}
+		MemFile mf = new MemFile();
+		mf.getOutputStream().write(data);
+
+		// a file channel gets one gathering write of all the buffers
+		File outFile = new File(tr.getProperty("testoutput", null), "memFileChannel.bin");
+		mf.outToFile(outFile);
+		MemFile back = new MemFile();
+		FileInputStream fis = new FileInputStream(outFile);
+		back.fillWithInputStream(fis);
+		fis.close();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		back.outToOutputStream(out);
+		compareBytes("channel out to file", data, 0, out.toByteArray());
+
+		// a channel that can not gather is written one buffer at a time
+		out = new ByteArrayOutputStream();
+		mf.outToChannel(Channels.newChannel(out));
+		compareBytes("channel out plain", data, 0, out.toByteArray());
+	}
+
+	private void testStreamHelperCopy() throws Exception {
+		byte[] data = new byte[150000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 17 + 3);
+		}
+		File outDir = new File(tr.getProperty("testoutput", null));
+		File first = new File(outDir, "helperCopy1.bin");
+		File second = new File(outDir, "helperCopy2.bin");
+
+		// a general stream is copied through a buffer
+		StreamHelper.copyStreamToFile(new ByteArrayInputStream(data), first);
+		compareBytes("helper stream to file", data, 0, readFileBytes(first));
+
+		// file to file goes channel to channel, and replaces what was there
+		StreamHelper.copyStreamToFile(new ByteArrayInputStream(new byte[10]), second);
+		StreamHelper.copyFileToFile(first, second);
+		compareBytes("helper file to file", data, 0, readFileBytes(second));
+
+		// file to a channel that is not a file
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		StreamHelper.copyFileToChannel(second, Channels.newChannel(out));
+		compareBytes("helper file to channel", data, 0, out.toByteArray());
+
+		// a MemFile stream writes straight from its buffers
+		MemFile mf = new MemFile();
+		mf.getOutputStream().write(data);
+		out = new ByteArrayOutputStream();
+		StreamHelper.copyInputToOutput(mf.getInputStream(), out);
+		compareBytes("helper memfile to stream", data, 0, out.toByteArray());
+	}
+
+	private void testAsyncCopy() throws Exception {
+		byte[] data = new byte[300000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 13 + 7);
+		}
+		File outDir = new File(tr.getProperty("testoutput", null));
+		File source = new File(outDir, "asyncCopy1.bin");
+		File dest = new File(outDir, "asyncCopy2.bin");
+		StreamHelper.copyStreamToFile(new ByteArrayInputStream(data), source);
+		StreamHelper.copyStreamToFile(new ByteArrayInputStream(new byte[10]), dest);
+
+		final long[] lastSeen = new long[2];
+		AsyncCopy copy = AsyncCopy.fileToFile(source, dest, new CopyProgress() {
+			public void bytesCopied(long copied, long total) {
+				lastSeen[0] = copied;
+				lastSeen[1] = total;
+			}
+		});
+		long bytes = copy.get(60, TimeUnit.SECONDS).longValue();
+		tr.testInt("async copy count", (int) bytes, data.length);
+		tr.testInt("async copy progress", (int) lastSeen[0], data.length);
+		tr.testInt("async copy total", (int) lastSeen[1], data.length);
+		compareBytes("async file to file", data, 0, readFileBytes(dest));
+		if (copy.cancel(true)) {
+			tr.markFailed("async cancel after done", "cancel should return false once the copy is finished");
+		}
+		else {
+			tr.markPassed("async cancel after done");
+		}
+	}
+
+	private byte[] readFileBytes(File file) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		StreamHelper.copyFileToOutput(file, out);
+		return out.toByteArray();
+	}
+
+	private void testCounters() throws Exception {
+		// one, two, three and four byte characters, the last is a surrogate pair
+		String text = "a\u00e9\u1234\ud83d\ude00z";
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 500; i++) {
+			sb.append(text);
+		}
+		String expected = sb.toString();
+
+		// tiny buffers so that characters are split between them
+		MemFile mf = new MemFile(1, 7, null);
+		Writer w = mf.getWriter();
+		w.write(expected);
+		w.flush();
+		tr.testInt("count bytes", mf.totalBytes(), expected.getBytes("UTF-8").length);
+		tr.testInt("count chars", mf.totalChars(), expected.length());
+		if (!expected.equals(mf.toString())) {
+			tr.markFailed("count toString", "decoded string is different from what was written");
+		}
+		else {
+			tr.markPassed("count toString");
+		}
+
+		mf.adopt("\u00e9\u00e9".getBytes("UTF-8"));
+		tr.testInt("count adopted bytes", mf.totalBytes(), expected.getBytes("UTF-8").length + 4);
+		tr.testInt("count adopted chars", mf.totalChars(), expected.length() + 2);
+		mf.clear();
+		tr.testInt("count cleared", mf.totalBytes() + mf.totalChars(), 0);
+
+		// a bad byte is replaced, and the string is still complete
+		mf.addPartial(new byte[] {'x', (byte) 0xC3, 'y'}, 0, 3);
+		if (!"x\ufffdy".equals(mf.toString())) {
+			tr.markFailed("count bad utf8", "got " + mf.toString());
+		}
+		else {
+			tr.markPassed("count bad utf8");
+		}
+	}
+
+	private void testAppendAndAssemble() throws Exception {
+		MemFile first = new MemFile(4, 16, null);
+		Writer w = first.getWriter();
+		w.write("Hello, ");
+		w.flush();
+		MemFile second = first.newSegment();
+		w = second.getWriter();
+		w.write("w\u00f6rld and more text");
+		w.flush();
+		first.append(second);
+		w = first.getWriter();
+		w.write("!");
+		w.flush();
+		if (!"Hello, w\u00f6rld and more text!".equals(first.toString())) {
+			tr.markFailed("append", "got " + first.toString());
+		}
+		else {
+			tr.markPassed("append");
+		}
+		tr.testInt("append bytes", first.totalBytes(), 28);
+		tr.testInt("append chars", first.totalChars(), 27);
+		tr.testInt("append empties other", second.totalBytes(), 0);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		first.outToOutputStream(out);
+		compareBytes("append stream", "Hello, w\u00f6rld and more text!".getBytes("UTF-8"), 0, out.toByteArray());
+
+		// pieces written on separate threads, completed in reverse order
+		MemFile page = new MemFile();
+		final MemFileAssembler asm = new MemFileAssembler(page);
+		final MemFile[] pieces = new MemFile[8];
+		for (int i = 0; i < pieces.length; i++) {
+			pieces[i] = asm.reserve();
+		}
+		Thread[] threads = new Thread[pieces.length];
+		for (int i = pieces.length - 1; i >= 0; i--) {
+			final int num = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						Writer pw = pieces[num].getWriter();
+						for (int j = 0; j < 1000; j++) {
+							pw.write(Integer.toString(num));
+						}
+						pw.flush();
+						asm.complete(pieces[num]);
+					}
+					catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		asm.finish();
+		String result = page.toString();
+		boolean ordered = result.length() == 8000;
+		for (int i = 0; ordered && i < result.length(); i++) {
+			ordered = result.charAt(i) == (char) ('0' + i / 1000);
+		}
+		if (ordered) {
+			tr.markPassed("assemble parallel pieces");
+		}
+		else {
+			tr.markFailed("assemble parallel pieces", "pieces are missing or out of order");
+		}
+	}
+
+	private void testUTF8Writer() throws Exception {
+		String pair = "\ud83d\ude00";
+		String text = "ascii run \u00e9\u07ff\u0800\uffff" + pair + " end";
+		MemFile mf = new MemFile(3, 8, null);
+		Writer w = mf.getWriter();
+		w.write(text);
+		// a surrogate pair split between two calls
+		w.write(pair.charAt(0));
+		w.write(pair.substring(1) + "x");
+		// surrogates without their other half
+		w.write("a\ud83db\ude00c");
+		w.write('\ud83d');
+		w.close();
+		String expected = text + pair + "xa?b?c?";
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		mf.outToOutputStream(out);
+		compareBytes("utf8 writer bytes", expected.getBytes("UTF-8"), 0, out.toByteArray());
+		tr.testInt("utf8 writer chars", mf.totalChars(), expected.length());
+		if (!expected.equals(mf.toString())) {
+			tr.markFailed("utf8 writer string", "got " + mf.toString());
+		}
+		else {
+			tr.markPassed("utf8 writer string");
+		}
+	}
+
+	private void compareBytes(String testId, byte[] expected, int offset, byte[] actual) {
+		if (actual.length != expected.length - offset) {
+			tr.markFailed(testId, "expected " + (expected.length - offset) + " bytes but got " + actual.length);
+			return;
+		}
+		for (int i = 0; i < actual.length; i++) {
+			if (actual[i] != expected[i + offset]) {
+				tr.markFailed(testId, "bytes differ at position " + i);
+				return;
+			}
+		}
+		tr.markPassed(testId);
 	}
 
 	private void testMemFiles(String caseDescription, String testCase) throws Exception {
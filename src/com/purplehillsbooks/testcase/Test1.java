@@ -59,6 +59,7 @@ public class Test1 implements TestSet {
         TestEmpty();
         TestReadWrite();
         testGenSchema();
+        testStreamingConversion();
     }
 
     public void TestUserProfileFile() throws Exception {
@@ -317,6 +318,44 @@ public class Test1 implements TestSet {
     }
 
 
+    /**
+     * The StAX conversion must give exactly the same JSON as the DOM conversion
+     */
+    public void testStreamingConversion() throws Exception {
+        Hashtable<String,Integer> hints = new Hashtable<String,Integer>();
+        hints.put("userprofile", Integer.valueOf(3));
+        hints.put("servlet", Integer.valueOf(3));
+        hints.put("Pool", Integer.valueOf(3));
+        hints.put("Lane", Integer.valueOf(3));
+        hints.put("Activity", Integer.valueOf(3));
+        hints.put("Transition", Integer.valueOf(3));
+        hints.put("Coordinates", Integer.valueOf(3));
+        hints.put("ExtendedAttribute", Integer.valueOf(3));
+        hints.put("Participant", Integer.valueOf(1));
+        hints.put("Description", Integer.valueOf(0));
+
+        File sourceFolder = new File(tr.getProperty("source", null), "testdata");
+        String[] fileNames = new String[] {"UserProfiles.xml", "web.xml", "TroubleTicket.xpdl",
+                "FujitsuExample1_x2.xpdl", "simpleProcess2a_mod.xpdl", "simpleProcess2a.xpdl",
+                "Loyalty_updated_Mar3.xpdl", "simplefuj2new_with2008.xpdl",
+                "simplefuj2new_with2008b.xpdl", "Loyalty.xpdl", "RawFeed1.rss"};
+        for (String fileName : fileNames) {
+            File sourceFile = new File(sourceFolder, fileName);
+            Mel me = Mel.readFile(sourceFile, Mel.class);
+            JSONObject fromDom = Dom2JSON.convertElementToJSON(me.getElement(), hints);
+            FileInputStream fis = new FileInputStream(sourceFile);
+            JSONObject fromStream = Dom2JSON.convertXMLToJSON(fis, hints);
+            fis.close();
+            if (fromDom.deepEquals(fromStream)) {
+                tr.markPassed("streaming conversion of "+fileName);
+            }
+            else {
+                tr.markFailed("streaming conversion of "+fileName, "StAX conversion is different from the DOM conversion");
+            }
+        }
+    }
+
+
     public void writeBothStylesAndCompare(Mel me, String fileNamePart, Hashtable<String,Integer> hints) throws Exception {
         writeFileAndCompare(me, fileNamePart + ".xml");
         writeJSONAndCompare(me, fileNamePart + ".json", hints);
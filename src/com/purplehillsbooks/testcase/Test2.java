@@ -11,6 +11,7 @@ import java.util.Random;
 import java.util.Vector;
 
 import com.purplehillsbooks.streams.CSVHelper;
+import com.purplehillsbooks.streams.CSVReader;
 import com.purplehillsbooks.streams.MemFile;
 import com.purplehillsbooks.testframe.TestRecorder;
 import com.purplehillsbooks.testframe.TestRecorderText;
@@ -62,6 +63,21 @@ public class Test2 implements TestSet {
             vals = CSVHelper.parseLine(lnr);
         }
         testVal(count, 3, "Expected to get three rows back");
+
+        CSVReader csv = new CSVReader(new InputStreamReader(new ByteArrayInputStream(buf), "UTF-8"));
+        count = 0;
+        while (csv.nextRow()) {
+            testVal(csv.getFieldCount(), 4, "CSVReader expected to get four values back");
+            if (csv.fieldEquals(0, "a")) {
+                tr.markPassed("Value: CSVReader first value compared in place");
+            }
+            else {
+                tr.markFailed("Value: CSVReader first value compared in place", "expected 'a' but got '"+csv.getField(0)+"'");
+            }
+            testVal(csv.getField(3), "d", "CSVReader last value should be a letter d");
+            count++;
+        }
+        testVal(count, 3, "CSVReader expected to get three rows back");
     }
 
 
@@ -142,6 +158,21 @@ public class Test2 implements TestSet {
         List<String> extraRow = CSVHelper.parseLine(lnr);
         testNull(extraRow, desc+"- null means no additional line in file");
 
+        //the buffered reader must give the same rows, even when values cross the window edge
+        count = 0;
+        for (List<String> parsedRow : new CSVReader(mf.getReader(), 7)) {
+            if (count >= matrix.size()) {
+                throw new Exception(desc+"- CSVReader found an extra row "+count);
+            }
+            Vector<String> row = matrix.get(count);
+            testVal(parsedRow.size(), row.size(), desc+"- CSVReader row "+count+" should have "+row.size()+" values");
+            for (int i=0; i<row.size() && i<parsedRow.size(); i++) {
+                testVal(parsedRow.get(i), row.get(i), desc+"- CSVReader matrix ("+count+","+i+") result should be the same as source");
+            }
+            count++;
+        }
+        testVal(count, matrix.size(), desc+"- CSVReader should find every row");
+
     }
 
     private Vector<Vector<String>> generateMatrix(int rowMin, int rowMax, int colMin, int colMax,  Vector<String> sourceVals) {
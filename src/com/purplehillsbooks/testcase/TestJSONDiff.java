@@ -7,6 +7,7 @@ import java.io.Reader;
 import java.io.Writer;
 import java.util.List;
 
+import com.purplehillsbooks.json.JSONArray;
 import com.purplehillsbooks.json.JSONDiff;
 import com.purplehillsbooks.json.JSONObject;
 import com.purplehillsbooks.streams.CSVHelper;
@@ -36,6 +37,10 @@ public class TestJSONDiff implements TestSet {
         jdFull = new JSONDiff(true);
         jdLtd  = new JSONDiff(false);
         diffCases();
+        streamingAndParallel();
+        arrayMatching();
+        arrayElements();
+        numberTypes();
     }
 
 
@@ -82,6 +87,255 @@ public class TestJSONDiff implements TestSet {
 
     }
 
+    private void streamingAndParallel() throws Exception {
+        JSONObject big1 = new JSONObject();
+        JSONObject big2 = new JSONObject();
+        for (int i=0; i<200; i++) {
+            JSONObject sect1 = new JSONObject();
+            JSONObject sect2 = new JSONObject();
+            for (int j=0; j<50; j++) {
+                sect1.put("key"+j, "value "+i+"/"+j);
+                if (j%7!=0) {
+                    sect2.put("key"+j, (j%5==0) ? "changed" : "value "+i+"/"+j);
+                }
+            }
+            big1.put("section"+i, sect1);
+            if (i%10!=0) {
+                big2.put("section"+i, sect2);
+            }
+            big1.put("simple"+i, "s"+i);
+        }
+        big2.put("onlySecond", "x");
+
+        for (boolean reportAll : new boolean[] {true, false}) {
+            JSONDiff seq = new JSONDiff(reportAll);
+            List<List<String>> expected = seq.createDiff(big1, big2.deepCopy());
+
+            MemFile mf = new MemFile();
+            Writer w = mf.getWriter();
+            JSONDiff par = new JSONDiff(reportAll);
+            par.setParallelThreads(4);
+            par.createDiff(big1, big2.deepCopy(), JSONDiff.csvSink(w));
+            w.flush();
+
+            MemFile expectMf = new MemFile();
+            Writer ew = expectMf.getWriter();
+            CSVHelper.writeTable(ew, expected);
+            ew.flush();
+
+            if (!expectMf.toString().equals(mf.toString())) {
+                tr.markFailed("JSONDiff parallel streaming "+reportAll, "parallel CSV output differs from sequential table");
+            }
+            else {
+                tr.markPassed("JSONDiff parallel streaming "+reportAll);
+            }
+        }
+
+        //many simple keys missing from the second object, next to large
+        //objects that the tasks are reading, must fill in the same way
+        JSONObject mixed1 = new JSONObject();
+        JSONObject mixed2 = new JSONObject();
+        for (int i=0; i<20; i++) {
+            JSONObject sect = new JSONObject();
+            for (int j=0; j<2000; j++) {
+                sect.put("k"+j, "v"+j);
+            }
+            mixed1.put("big"+i, sect);
+            JSONObject sect2 = sect.deepCopy();
+            sect2.put("k7", "changed");
+            mixed2.put("big"+i, sect2);
+        }
+        for (int i=0; i<500; i++) {
+            mixed1.put("missing"+i, "m"+i);
+        }
+        JSONObject augmented = mixed2.deepCopy();
+        List<List<String>> expected = new JSONDiff(false).createDiff(mixed1, augmented);
+        boolean same = true;
+        for (int run=0; run<5 && same; run++) {
+            JSONObject parAugmented = mixed2.deepCopy();
+            JSONDiff par = new JSONDiff(false);
+            par.setParallelThreads(8);
+            List<List<String>> table = par.createDiff(mixed1, parAugmented);
+            same = expected.equals(table) && augmented.deepEquals(parAugmented);
+        }
+        if (!same) {
+            tr.markFailed("JSONDiff parallel missing simple keys", "parallel rows or augmented object differ from sequential");
+        }
+        else {
+            tr.markPassed("JSONDiff parallel missing simple keys");
+        }
+        checkRowCount("JSONDiff parallel missing simple count", expected, 520);
+    }
+
+    private void arrayMatching() throws Exception {
+        JSONObject doc1 = new JSONObject();
+        JSONObject doc2 = new JSONObject();
+        JSONArray users1 = new JSONArray();
+        JSONArray users2 = new JSONArray();
+        JSONObject inserted = new JSONObject();
+        inserted.put("id", "u-new");
+        inserted.put("name", "New User");
+        users2.put(inserted);
+        for (int i=0; i<100; i++) {
+            JSONObject u = new JSONObject();
+            u.put("id", "u"+i);
+            u.put("name", "User "+i);
+            users1.put(u);
+            JSONObject u2 = u.deepCopy();
+            if (i==50) {
+                u2.put("name", "Renamed");
+            }
+            users2.put(u2);
+        }
+        doc1.put("users", users1);
+        doc2.put("users", users2);
+
+        //by position, the insert at the front shifts every record
+        JSONDiff byPos = new JSONDiff(false);
+        List<List<String>> table = byPos.createDiff(doc1, doc2);
+        checkRowCount("array by position", table, 202);
+
+        JSONDiff byKey = new JSONDiff(false);
+        byKey.setArrayKey("id");
+        table = byKey.createDiff(doc1, doc2);
+        checkRowCount("array by key", table, 3);
+        checkRow("array by key changed", table, 0, "users[id=u50]name", "User 50", "Renamed");
+        checkRow("array by key added", table, 1, "users[id=u-new]id", "~null~", "u-new");
+
+        JSONDiff byContent = new JSONDiff(false);
+        byContent.setMatchArrayContent(true);
+        table = byContent.createDiff(doc1, doc2);
+        //the insert and the rename are two separate changes, so the records
+        //between them are still compared by position
+        if (table.size() >= 202) {
+            tr.markFailed("array by content", "expected fewer rows than by position, got "+table.size());
+        }
+        else {
+            tr.markPassed("array by content");
+        }
+
+        //an element removed from the end of a scalar array used to be ignored
+        JSONObject nums1 = new JSONObject();
+        JSONObject nums2 = new JSONObject();
+        JSONArray n1 = new JSONArray();
+        JSONArray n2 = new JSONArray();
+        n1.put("a");
+        n2.put("a");
+        n2.put("b");
+        nums1.put("list", n1);
+        nums2.put("list", n2);
+        table = new JSONDiff(false).createDiff(nums1, nums2);
+        checkRowCount("array extra element count", table, 1);
+        checkRow("array extra element", table, 0, "list[1]", "~null~", "b");
+    }
+
+    /**
+     * Elements of arrays are compared with the element at the same position
+     * of the second array.  Before, each element was compared with itself, and
+     * a change inside an array was never reported.
+     */
+    private void arrayElements() throws Exception {
+        JSONObject doc1 = new JSONObject();
+        JSONObject doc2 = new JSONObject();
+        JSONArray list1 = new JSONArray();
+        list1.put("a").put("b").put(new JSONObject().put("n", "1"));
+        JSONArray list2 = new JSONArray();
+        list2.put("a").put("x").put(new JSONObject().put("n", "2")).put("extra");
+        doc1.put("list", list1);
+        doc2.put("list", list2);
+        JSONArray short1 = new JSONArray();
+        short1.put("p").put("q");
+        JSONArray short2 = new JSONArray();
+        short2.put("p");
+        doc1.put("short", short1);
+        doc2.put("short", short2);
+
+        List<List<String>> table = new JSONDiff(false).createDiff(doc1, doc2);
+        checkRowCount("array element count", table, 4);
+        checkRow("array element scalar", table, 0, "list[1]", "b", "x");
+        checkRow("array element object", table, 1, "list[2]n", "1", "2");
+        checkRow("array element only second", table, 2, "list[3]", "~null~", "extra");
+        checkRow("array element only first", table, 3, "short[1]", "q", "~null~");
+    }
+
+    /**
+     * Subtrees that are equal by value but not as text must still be
+     * walked, because the rows compare the text: 1 and 1.0 are a change.
+     */
+    private void numberTypes() throws Exception {
+        JSONObject doc1 = new JSONObject();
+        JSONObject doc2 = new JSONObject();
+        JSONObject a1 = new JSONObject();
+        a1.put("x", "1");
+        a1.put("y", "2");
+        doc1.put("a", a1);
+        JSONObject a2 = new JSONObject();
+        a2.put("x", "1");
+        doc2.put("a", a2);
+        JSONObject n1 = new JSONObject();
+        n1.put("v", 1);
+        doc1.put("n", n1);
+        JSONObject n2 = new JSONObject();
+        n2.put("v", 1.0);
+        doc2.put("n", n2);
+        JSONArray list1 = new JSONArray();
+        list1.put(1);
+        doc1.put("list", list1);
+        JSONArray list2 = new JSONArray();
+        list2.put(1.0);
+        doc2.put("list", list2);
+
+        //copied first, since the diff extends the second document
+        JSONObject frozen1 = doc1.deepCopy().freeze();
+        JSONObject frozen2 = doc2.deepCopy().freeze();
+
+        List<List<String>> table = new JSONDiff(false).createDiff(doc1, doc2);
+        checkRowCount("number type count", table, 3);
+        checkRow("number type missing", table, 0, "a.y", "2", "~null~");
+        checkRow("number type array", table, 1, "list[0]", "1", "1.0");
+        checkRow("number type object", table, 2, "n.v", "1", "1.0");
+
+        //frozen documents can not be extended, but give the same rows
+        table = new JSONDiff(false).createDiff(frozen1, frozen2);
+        checkRowCount("frozen count", table, 3);
+        checkRow("frozen missing", table, 0, "a.y", "2", "~null~");
+        checkRow("frozen object", table, 2, "n.v", "1", "1.0");
+        JSONDiff parallel = new JSONDiff(true);
+        parallel.setParallelThreads(4);
+        table = parallel.createDiff(frozen1, frozen2);
+        checkRowCount("frozen parallel count", table, 4);
+
+        //a tree made with thaw() shares the frozen subtrees of the first
+        JSONObject edited = frozen1.thaw();
+        edited.editJSONObject("n").put("v", 2);
+        table = new JSONDiff(false).createDiff(edited, frozen2);
+        checkRowCount("thawed count", table, 3);
+        checkRow("thawed changed", table, 2, "n.v", "2", "1.0");
+    }
+
+    private void checkRowCount(String id, List<List<String>> table, int expected) {
+        if (table.size() != expected) {
+            tr.markFailed(id, "expected "+expected+" rows but got "+table.size());
+        }
+        else {
+            tr.markPassed(id);
+        }
+    }
+
+    private void checkRow(String id, List<List<String>> table, int rowNum, String path, String v1, String v2) {
+        if (table.size() <= rowNum) {
+            tr.markFailed(id, "table does not have row "+rowNum);
+            return;
+        }
+        List<String> row = table.get(rowNum);
+        if (!path.equals(row.get(0)) || !v1.equals(row.get(1)) || !v2.equals(row.get(2))) {
+            tr.markFailed(id, "expected ("+path+", "+v1+", "+v2+") but got "+row);
+        }
+        else {
+            tr.markPassed(id);
+        }
+    }
+
     private void doit(String rootFile, JSONObject ob1, JSONObject ob2) throws Exception {
 
         List<List<String>> table = jdFull.createDiff(ob1, ob2);